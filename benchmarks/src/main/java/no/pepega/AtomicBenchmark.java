@@ -0,0 +1,62 @@
+package no.pepega;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Harts contending for one counter in guest memory, with amoadd or with LR/SC loops, in increments per
+ * microsecond across all harts. Each operation is a whole guest run doing the same number of increments
+ * split over the harts, so the scores show how throughput holds up as harts are added.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(AtomicBenchmark.INCREMENTS)
+public class AtomicBenchmark {
+    static final int INCREMENTS = 1 << 20;
+
+    @Param({"1", "2", "4", "8"})
+    int harts;
+
+    @Param({"amo", "lrsc"})
+    String op;
+
+    @Param({"paged", "offheap"})
+    String memory;
+
+    byte[] program;
+
+    @Setup
+    public void setup() {
+        program = Guests.counter(harts, INCREMENTS / harts, op.equals("amo"));
+    }
+
+    @Benchmark
+    public long contended() {
+        PseudoVM vm = Guests.boot(program, memory, harts);
+        try {
+            Guests.runToHalt(vm);
+            long count = vm.arch.memory.read64(0x10000);
+            if (count != INCREMENTS)
+                throw new IllegalStateException("Lost updates, counted " + count + " of " + INCREMENTS);
+            return count;
+        } finally {
+            Guests.release(vm);
+        }
+    }
+}
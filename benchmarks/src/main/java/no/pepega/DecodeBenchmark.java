@@ -0,0 +1,65 @@
+package no.pepega;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the instructions of a real binary, in instructions per microsecond. Words that don't decode
+ * are left out, they are data and the decoder logs each one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(DecodeBenchmark.WORDS)
+public class DecodeBenchmark {
+    /* The program's instructions are repeated to this many, so each invocation decodes the same amount */
+    static final int WORDS = 4096;
+
+    @Param({"eeprom.ch8", "count_2_10", "sum_loop"})
+    String program;
+
+    int[] words;
+
+    @Setup
+    public void load() {
+        int[] all = Guests.words(Guests.program(program));
+        int[] insts = Guests.quietly(() ->
+                Arrays.stream(all).filter(w -> Instruction.decodePacked(w) != Instruction.ILLEGAL).toArray());
+        words = new int[WORDS];
+        for (int i = 0; i < words.length; i++)
+            words[i] = insts[i % insts.length];
+    }
+
+    /** The packed decoder the emulator runs on. */
+    @Benchmark
+    public long decodePacked() {
+        long acc = 0;
+        for (int w : words)
+            acc ^= Instruction.decodePacked(w);
+        return acc;
+    }
+
+    /** The heap object decoder used for disassembly. */
+    @Benchmark
+    public void decodeObject(Blackhole bh) {
+        for (int w : words)
+            bh.consume(Instruction.decode(w));
+    }
+}
@@ -0,0 +1,176 @@
+package no.pepega;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The virtio block device reading and writing a local image file, driven through its registers the
+ * way a guest driver would. Each operation moves 1 MiB in requests of blockSize bytes, notifying the
+ * device once per batch requests, so the score is in MiB/s. The image is 128 MiB, small enough to stay
+ * in the page cache, so this measures the device rather than the host's disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskBenchmark {
+    private static final long IMAGE = 128 << 20;
+    private static final int MIB = 1 << 20;
+
+    /* Guest RAM layout: the queue, request headers and status bytes, then the data buffers */
+    private static final long DESC = 0x10000;
+    private static final long AVAIL = 0x11000;
+    private static final long USED = 0x12000;
+    private static final long HEADERS = 0x13000;
+    private static final long STATUS = 0x14000;
+    private static final long BUFFERS = 0x100000;
+
+    @Param({"4096", "65536"})
+    int blockSize;
+
+    @Param({"1", "16"})
+    int batch;
+
+    @Param({"paged", "offheap"})
+    String memory;
+
+    Path image;
+    VirtioBlock disk;
+    Memory mem;
+    /* Block numbers in sequential and in shuffled order, and where each benchmark is in its order */
+    int[] sequential;
+    int[] shuffled;
+    int next;
+    int avail_idx;
+
+    @Setup
+    public void setup() throws IOException {
+        image = Files.createTempFile("jerv-disk", ".img");
+        try (FileChannel ch = FileChannel.open(image, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(MIB);
+            new Random(1).nextBytes(b.array());
+            for (long pos = 0; pos < IMAGE; pos += MIB)
+                ch.write(b.clear(), pos);
+        }
+        disk = new VirtioBlock(image, false);
+        PseudoVM vm = new PseudoVM(new Machine(new byte[0]), Guests.memory(memory));
+        vm.attachDisk(disk);
+        mem = vm.arch.memory;
+
+        int blocks = (int)(IMAGE / blockSize);
+        sequential = new int[blocks];
+        shuffled = new int[blocks];
+        Random r = new Random(2);
+        for (int i = 0; i < blocks; i++) {
+            sequential[i] = i;
+            int j = r.nextInt(i + 1);
+            shuffled[i] = shuffled[j];
+            shuffled[j] = i;
+        }
+
+        reg(VirtioBlock.STATUS, 1 | 2);
+        reg(VirtioBlock.DRIVER_FEATURES_SEL, 1);
+        reg(VirtioBlock.DRIVER_FEATURES, 1);
+        reg(VirtioBlock.STATUS, 1 | 2 | VirtioBlock.STATUS_FEATURES_OK);
+        reg(VirtioBlock.QUEUE_SEL, 0);
+        reg(VirtioBlock.QUEUE_NUM, VirtioBlock.QUEUE_SIZE);
+        reg(VirtioBlock.QUEUE_DESC_LOW, (int)DESC);
+        reg(VirtioBlock.QUEUE_DRIVER_LOW, (int)AVAIL);
+        reg(VirtioBlock.QUEUE_DEVICE_LOW, (int)USED);
+        reg(VirtioBlock.QUEUE_READY, 1);
+        reg(VirtioBlock.STATUS, 1 | 2 | VirtioBlock.STATUS_FEATURES_OK | 4);
+
+        /* Request i of a batch is the chain 3i (header), 3i+1 (data), 3i+2 (status). Reads make the data writable */
+        for (int i = 0; i < batch; i++) {
+            descriptor(3*i, HEADERS + 16*i, 16, VirtioBlock.DESC_NEXT, 3*i + 1);
+            descriptor(3*i + 1, BUFFERS + (long)i*blockSize, blockSize, VirtioBlock.DESC_NEXT, 3*i + 2);
+            descriptor(3*i + 2, STATUS + i, 1, VirtioBlock.DESC_WRITE, 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        disk.close();
+        Files.delete(image);
+        if (mem instanceof OffHeapMemory)
+            ((OffHeapMemory)mem).close();
+    }
+
+    @Benchmark
+    public int sequentialRead() {
+        return transfer(VirtioBlock.T_IN, sequential);
+    }
+
+    @Benchmark
+    public int sequentialWrite() {
+        return transfer(VirtioBlock.T_OUT, sequential);
+    }
+
+    @Benchmark
+    public int randomRead() {
+        return transfer(VirtioBlock.T_IN, shuffled);
+    }
+
+    @Benchmark
+    public int randomWrite() {
+        return transfer(VirtioBlock.T_OUT, shuffled);
+    }
+
+    /* Moves 1 MiB to or from the blocks next in order, a batch per notify */
+    private int transfer(int type, int[] order) {
+        int status = 0;
+        int flags = type == VirtioBlock.T_IN ? VirtioBlock.DESC_NEXT | VirtioBlock.DESC_WRITE : VirtioBlock.DESC_NEXT;
+        for (int done = 0; done < MIB; done += batch * blockSize) {
+            for (int i = 0; i < batch; i++) {
+                int block = order[next];
+                next = next + 1 == order.length ? 0 : next + 1;
+                mem.write32(HEADERS + 16*i, type);
+                mem.write64(HEADERS + 16*i + 8, (long)block * blockSize / VirtioBlock.SECTOR_SIZE);
+                mem.write16(DESC + 16L*(3*i + 1) + 12, (short)flags);
+                mem.write16(AVAIL + 4 + 2*(avail_idx & (VirtioBlock.QUEUE_SIZE - 1)), (short)(3*i));
+                avail_idx++;
+            }
+            mem.write16(AVAIL + 2, (short)avail_idx);
+            reg(VirtioBlock.QUEUE_NOTIFY, 0);
+            reg(VirtioBlock.INTERRUPT_ACK, 1);
+            for (int i = 0; i < batch; i++)
+                status |= mem.read8(STATUS + i);
+        }
+        if (status != VirtioBlock.S_OK)
+            throw new IllegalStateException("Request failed with status " + status);
+        return status;
+    }
+
+    private void reg(int offset, int value) {
+        disk.write(offset, 4, value);
+    }
+
+    private void descriptor(int i, long addr, int len, int flags, int next) {
+        long d = DESC + 16L*i;
+        mem.write64(d, addr);
+        mem.write32(d + 8, len);
+        mem.write16(d + 12, (short)flags);
+        mem.write16(d + 14, (short)next);
+    }
+}
@@ -0,0 +1,74 @@
+package no.pepega;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The run_cycles loop on a guest loop that never ends, in guest instructions per microsecond (MIPS).
+ * The JIT and fusion switches are read once per JVM, so each mode runs in its own fork. The idioms
+ * guest shows what fusing instruction pairs in the decode cache does for the interpreter, and loop_sv39
+ * what address translation costs. It always runs interpreted, as compiled blocks only run without paging.
+ * The mmio guest measures device accesses through the bus, it boots with a display.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(DispatchBenchmark.CYCLES)
+public class DispatchBenchmark {
+    static final int CYCLES = 100_000;
+
+    @Param({"loop", "loop_sv39", "idioms", "mmio"})
+    String program;
+
+    @Param({"paged", "offheap"})
+    String memory;
+
+    RISCV cpu;
+
+    @Setup
+    public void boot() {
+        cpu = Guests.boot(Guests.program(program), memory, program.equals("mmio")).arch;
+    }
+
+    @Benchmark
+    public int jit() {
+        cpu.run_cycles(CYCLES);
+        return cpu.cycles();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Djerv.jit.nochain=true")
+    public int jitUnchained() {
+        cpu.run_cycles(CYCLES);
+        return cpu.cycles();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Djerv.interpret=true")
+    public int interpreter() {
+        cpu.run_cycles(CYCLES);
+        return cpu.cycles();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Djerv.interpret=true", "-Djerv.nofuse=true"})
+    public int interpreterUnfused() {
+        cpu.run_cycles(CYCLES);
+        return cpu.cycles();
+    }
+}
@@ -0,0 +1,74 @@
+package no.pepega;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GC pauses with several guests' RAM fully written, on the heap or off it. fullGc is the time of one
+ * full collection, which has to mark and move every on-heap page. churn allocates short-lived garbage
+ * as a host does while guests run, so its time includes the young collections that causes.
+ *
+ * The defaults are 8 guests of 1 GiB, which needs a host with 10 GiB of free memory. On smaller hosts,
+ * pass fewer or smaller guests, e.g. -p guestMiB=256.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx10g", "-XX:MaxDirectMemorySize=10g"})
+public class GcBenchmark {
+    @Param({"8"})
+    int guests;
+
+    @Param({"1024"})
+    int guestMiB;
+
+    @Param({"paged", "offheap"})
+    String memory;
+
+    Memory[] mems;
+
+    @Setup
+    public void setup() {
+        long size = (long)guestMiB << 20;
+        mems = new Memory[guests];
+        for (int g = 0; g < guests; g++) {
+            mems[g] = memory.equals("paged") ? new PagedMemory(size) : new OffHeapMemory(size);
+            for (long a = 0; a < size; a += Memory.PAGE_SIZE)
+                mems[g].write64(a, a);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Memory m : mems)
+            if (m instanceof OffHeapMemory)
+                ((OffHeapMemory)m).close();
+    }
+
+    @Benchmark
+    public void fullGc() {
+        System.gc();
+    }
+
+    /* 64 MiB of garbage in small arrays, each consumed so none of it is optimized away */
+    @Benchmark
+    public void churn(Blackhole bh) {
+        for (int i = 0; i < 64 << 10; i++)
+            bh.consume(new byte[1024]);
+    }
+}
@@ -0,0 +1,48 @@
+package no.pepega;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Whole guest runs, from a fresh VM through boot until the program halts. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GuestBenchmark {
+    @Param({"count_2_10", "eeprom.ch8", "sum_loop"})
+    String program;
+
+    @Param({"paged", "offheap"})
+    String memory;
+
+    byte[] image;
+
+    @Setup
+    public void load() {
+        image = Guests.program(program);
+    }
+
+    @Benchmark
+    public long[] run() {
+        PseudoVM vm = Guests.boot(image, memory);
+        try {
+            Guests.runToHalt(vm);
+            return vm.arch.regs;
+        } finally {
+            Guests.release(vm);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package no.pepega;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Callable;
+
+/** Guest programs and VM setup shared by the benchmarks. */
+final class Guests {
+    /** Guest RAM the benchmarks run with, the emulator's default. */
+    static final long MEMORY = PseudoVM.DEFAULT_MEMORY;
+
+    private static final PrintStream NULL = new PrintStream(OutputStream.nullOutputStream());
+
+    private Guests() {
+    }
+
+    /**
+     * A program by name: a file in res/ (or wherever -Djerv.res points), or one of the generated ones,
+     * "loop" which never ends, "sum_loop" which halts after a million iterations, "loop_sv39" which is
+     * loop run in S mode with Sv39 paging on, "idioms" which never ends and is made of the pairs the
+     * decode cache fuses, and "mmio" which never ends and draws on the screen, see {@link #boot(byte[], String, boolean)}.
+     */
+    static byte[] program(String name) {
+        switch (name) {
+            case "loop": return assemble(loop(false));
+            case "sum_loop": return assemble(loop(true));
+            case "loop_sv39": return assemble(sv39(loop(false)));
+            case "idioms": return assemble(idioms());
+            case "mmio": return assemble(mmio());
+        }
+        Path p = Paths.get(System.getProperty("jerv.res", "res"), name);
+        if (!Files.exists(p))
+            p = Paths.get("..", "res", name);
+        try {
+            return Files.readAllBytes(p);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Benchmarks run from the repository root, or with -Djerv.res", e);
+        }
+    }
+
+    /** The program as 32-bit instruction words. */
+    static int[] words(byte[] program) {
+        ByteBuffer b = ByteBuffer.wrap(program).order(ByteOrder.LITTLE_ENDIAN);
+        int[] words = new int[program.length / 4];
+        for (int i = 0; i < words.length; i++)
+            words[i] = b.getInt();
+        return words;
+    }
+
+    static Memory memory(String kind) {
+        switch (kind) {
+            case "paged": return new PagedMemory(MEMORY);
+            case "offheap": return new OffHeapMemory(MEMORY);
+            default: throw new IllegalArgumentException("Unknown memory backend " + kind);
+        }
+    }
+
+    /** Creates and boots a VM running the program, the same way Main does. */
+    static PseudoVM boot(byte[] program, String memory) {
+        return boot(program, memory, false);
+    }
+
+    /** Boots the program on a machine with a GPU and a screen if display is set. */
+    static PseudoVM boot(byte[] program, String memory, boolean display) {
+        Machine machine = new Machine(program);
+        if (display)
+            machine.withDisplay();
+        PseudoVM vm = new PseudoVM(machine, memory(memory));
+        quietly(() -> vm.run(0));
+        return vm;
+    }
+
+    /** Boots the program on a machine with several harts. */
+    static PseudoVM boot(byte[] program, String memory, int harts) {
+        PseudoVM vm = new PseudoVM(new Machine(program), memory(memory), harts);
+        quietly(() -> vm.run(0));
+        return vm;
+    }
+
+    /** Runs a booted VM until it halts, as one guest would run on its own. */
+    static void runToHalt(PseudoVM vm) {
+        quietly(() -> {
+            while (!vm.arch.hard_halted && vm.is_booted)
+                vm.run(1);
+            return null;
+        });
+    }
+
+    /** Frees the guest RAM of a VM right away rather than when it is collected. */
+    static void release(PseudoVM vm) {
+        if (vm.arch.memory instanceof OffHeapMemory)
+            ((OffHeapMemory)vm.arch.memory).close();
+    }
+
+    /* Booting, halting and decoding illegal words print to stdout and stderr, which would end up in the results */
+    static <T> T quietly(Callable<T> action) {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setOut(NULL);
+        System.setErr(NULL);
+        try {
+            return action.call();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    /*
+     * A loop of ALU ops, a store and a load to another page than the code, and a mostly taken branch,
+     * so it runs as two chained blocks. Bounded, it ends on an illegal instruction after 2^20 iterations.
+     */
+    private static int[] loop(boolean bounded) {
+        return new int[] {
+                u(0x37, 5, 0x10000),         // lui x5, 0x10
+                i(0x13, 6, 0, 0, 0),         // addi x6, x0, 0
+                u(0x37, 12, 0x100000),       // lui x12, 0x100
+                i(0x13, 6, 0, 6, 1),         // loop: addi x6, x6, 1
+                r(0x33, 7, 0, 7, 6, 0),      // add x7, x7, x6
+                i(0x13, 8, 4, 7, 3),         // xori x8, x7, 3
+                s(8, 3, 5, 0),               // sd x8, 0(x5)
+                i(0x03, 9, 3, 5, 0),         // ld x9, 0(x5)
+                r(0x33, 10, 0, 10, 9, 0),    // add x10, x10, x9
+                i(0x13, 11, 7, 6, 255),      // andi x11, x6, 255
+                b(1, 11, 0, -28),            // bne x11, x0, loop
+                bounded ? b(0, 6, 12, 8) : 0x0000006F | jimm(-32),  // beq x6, x12, end / j loop
+                0x0000006F | jimm(-36),      // j loop
+                0,                           // end: illegal
+        };
+    }
+
+    /*
+     * Runs code in S mode through an Sv39 page table at 2 MiB, which maps the first GiB to itself with
+     * a single gigapage. The code must not use x3 or x4 before setting them.
+     */
+    private static int[] sv39(int[] code) {
+        int[] setup = {
+                u(0x37, 3, 0x200000),        // lui x3, 0x200
+                i(0x13, 4, 0, 0, 0xCF),      // addi x4, x0, 0xCF: valid, RWX, accessed and dirty
+                s(4, 3, 3, 0),               // sd x4, 0(x3)
+                i(0x13, 3, 5, 3, 12),        // srli x3, x3, 12
+                i(0x13, 4, 0, 0, 8),         // addi x4, x0, 8
+                i(0x13, 4, 1, 4, 60),        // slli x4, x4, 60
+                r(0x33, 3, 6, 3, 4, 0),      // or x3, x3, x4
+                i(0x73, 0, 1, 3, 0x180),     // csrw satp, x3
+                u(0x37, 3, 0x1000),          // lui x3, 1
+                i(0x13, 3, 0, 3, -0x800),    // addi x3, x3, -0x800: MPP = S
+                i(0x73, 0, 2, 3, 0x300),     // csrs mstatus, x3
+                u(0x17, 3, 0),               // auipc x3, 0
+                i(0x13, 3, 0, 3, 16),        // addi x3, x3, 16
+                i(0x73, 0, 1, 3, 0x341),     // csrw mepc, x3
+                0x30200073,                  // mret
+        };
+        int[] words = new int[setup.length + code.length];
+        System.arraycopy(setup, 0, words, 0, setup.length);
+        System.arraycopy(code, 0, words, setup.length, code.length);
+        return words;
+    }
+
+    /* Constants, addresses, zero extension and a far call, as compilers emit them, in a loop that never ends */
+    private static int[] idioms() {
+        return new int[] {
+                i(0x13, 10, 0, 0, 0),        // addi x10, x0, 0, as a jump to 0 ends the guest
+                u(0x37, 5, 0x12345000),      // loop: lui x5, 0x12345
+                i(0x13, 5, 0, 5, 0x678),     // addi x5, x5, 0x678
+                r(0x33, 10, 0, 10, 5, 0),    // add x10, x10, x5
+                u(0x17, 6, 0),               // auipc x6, 0
+                i(0x13, 6, 0, 6, 0x100),     // addi x6, x6, 0x100
+                r(0x33, 10, 0, 10, 6, 0),    // add x10, x10, x6
+                i(0x13, 7, 1, 10, 32),       // slli x7, x10, 32
+                i(0x13, 7, 5, 7, 32),        // srli x7, x7, 32
+                r(0x33, 11, 0, 11, 7, 0),    // add x11, x11, x7
+                u(0x17, 1, 0),               // auipc x1, 0
+                i(0x67, 1, 0, 1, 16),        // jalr x1, 16(x1), calls func
+                r(0x33, 12, 0, 12, 1, 0),    // add x12, x12, x1
+                0x0000006F | jimm(-48),      // j loop
+                i(0x13, 13, 0, 13, 1),       // func: addi x13, x13, 1
+                i(0x67, 0, 0, 1, 0),         // jalr x0, 0(x1)
+        };
+    }
+
+    /*
+     * Device accesses in a loop that never ends: moves the GPU cursor along the first row, puts a
+     * character there, reads the screen width and the first word of the EEPROM. Half of the loop's
+     * instructions go to the bus.
+     */
+    private static int[] mmio() {
+        return new int[] {
+                i(0x13, 5, 0, 0, 1),         // addi x5, x0, 1
+                i(0x13, 5, 1, 5, 32),        // slli x5, x5, 32: the GPU
+                u(0x37, 6, 0x100000),        // lui x6, 0x100
+                r(0x33, 6, 0, 5, 6, 0),      // add x6, x5, x6: the EEPROM
+                i(0x13, 9, 0, 0, 1),         // addi x9, x0, 1
+                i(0x13, 10, 0, 0, 'A'),      // addi x10, x0, 'A'
+                i(0x13, 7, 0, 7, 1),         // loop: addi x7, x7, 1
+                i(0x13, 8, 7, 7, 63),        // andi x8, x7, 63
+                s(8, 3, 5, 0x28),            // sd x8, 0x28(x5): x
+                s(9, 3, 5, 0x30),            // sd x9, 0x30(x5): y
+                s(10, 3, 5, 0x48),           // sd x10, 0x48(x5): set
+                i(0x03, 11, 3, 5, 0x10),     // ld x11, 0x10(x5): width
+                i(0x03, 12, 2, 6, 0),        // lw x12, 0(x6)
+                r(0x33, 13, 0, 13, 12, 0),   // add x13, x13, x12
+                0x0000006F | jimm(-32),      // j loop
+        };
+    }
+
+    /*
+     * Every hart adds 1 to a shared counter at 0x10000 iterations times, with amoadd.d if amo is set
+     * and with an LR/SC loop otherwise, then counts itself done at 0x10008. Hart 0 waits for all of
+     * them and halts the machine, the others halt only themselves.
+     */
+    static byte[] counter(int harts, int iterations, boolean amo) {
+        int[] add = amo
+                ? new int[] {r(0x2F, 0, 3, 22, 24, 0x03)}       // amoadd.d.aqrl x0, x24, (x22)
+                : new int[] {
+                        r(0x2F, 27, 3, 22, 0, 0x0B),           // retry: lr.d.aqrl x27, (x22)
+                        i(0x13, 27, 0, 27, 1),                 // addi x27, x27, 1
+                        r(0x2F, 28, 3, 22, 27, 0x0F),          // sc.d.aqrl x28, x27, (x22)
+                        b(1, 28, 0, -12),                      // bne x28, x0, retry
+                };
+        int[] setup = {
+                u(0x37, 22, 0x10000),        // lui x22, 0x10
+                i(0x13, 29, 0, 22, 8),       // addi x29, x22, 8
+                i(0x13, 24, 0, 0, 1),        // addi x24, x0, 1
+                u(0x37, 5, iterations + 0x800),  // lui x5, %hi(iterations)
+                i(0x13, 5, 0, 5, iterations),    // addi x5, x5, %lo(iterations)
+        };
+        int[] end = {
+                i(0x13, 6, 0, 6, 1),         // addi x6, x6, 1
+                b(4, 6, 5, -4*(add.length + 1)),  // blt x6, x5, loop
+                r(0x2F, 0, 3, 29, 24, 0x03), // amoadd.d.aqrl x0, x24, (x29)
+                b(1, 10, 0, 16),             // bne a0, x0, end
+                i(0x13, 7, 0, 0, harts),     // addi x7, x0, harts
+                i(0x03, 27, 3, 29, 0),       // wait: ld x27, 0(x29)
+                b(4, 27, 7, -4),             // blt x27, x7, wait
+                0,                           // end: illegal
+        };
+        int[] words = new int[setup.length + add.length + end.length];
+        System.arraycopy(setup, 0, words, 0, setup.length);
+        System.arraycopy(add, 0, words, setup.length, add.length);
+        System.arraycopy(end, 0, words, setup.length + add.length, end.length);
+        return assemble(words);
+    }
+
+    private static byte[] assemble(int[] words) {
+        ByteBuffer b = ByteBuffer.allocate(words.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int w : words)
+            b.putInt(w);
+        return b.array();
+    }
+
+    private static int r(int opcode, int rd, int funct3, int rs1, int rs2, int funct7) {
+        return funct7 << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12 | rd << 7 | opcode;
+    }
+
+    private static int i(int opcode, int rd, int funct3, int rs1, int imm) {
+        return (imm & 0xFFF) << 20 | rs1 << 15 | funct3 << 12 | rd << 7 | opcode;
+    }
+
+    private static int s(int rs2, int funct3, int rs1, int imm) {
+        return (imm >> 5 & 0x7F) << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12 | (imm & 0x1F) << 7 | 0x23;
+    }
+
+    private static int b(int funct3, int rs1, int rs2, int imm) {
+        return (imm >> 12 & 1) << 31 | (imm >> 5 & 0x3F) << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12
+                | (imm >> 1 & 0xF) << 8 | (imm >> 11 & 1) << 7 | 0x63;
+    }
+
+    private static int u(int opcode, int rd, int imm) {
+        return (imm & 0xFFFFF000) | rd << 7 | opcode;
+    }
+
+    private static int jimm(int imm) {
+        return (imm >> 20 & 1) << 31 | (imm >> 1 & 0x3FF) << 21 | (imm >> 11 & 1) << 20 | (imm >> 12 & 0xFF) << 12;
+    }
+}
@@ -0,0 +1,138 @@
+package no.pepega;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guest loads and stores of each width, in accesses per microsecond, naturally aligned or offset by a
+ * few bytes. The bytewise ones assemble the value a byte at a time, the way accesses were done before
+ * the memory used VarHandles, and the way it still does them across pages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(MemoryBenchmark.ACCESSES)
+public class MemoryBenchmark {
+    static final int ACCESSES = 1024;
+    /* Spread over 16 pages, all touched in setup so no access faults a page in */
+    private static final int SPAN = 64 * 1024;
+
+    @Param({"paged", "offheap"})
+    String memory;
+
+    /* Added to every address, so anything but 0 makes the wider accesses misaligned */
+    @Param({"0", "3"})
+    int offset;
+
+    Memory mem;
+    long[] addrs;
+
+    @Setup
+    public void setup() {
+        mem = Guests.memory(memory);
+        for (long a = 0; a < SPAN; a += 8)
+            mem.write64(a, a);
+        addrs = new long[ACCESSES];
+        for (int i = 0; i < ACCESSES; i++)
+            addrs[i] = (i * 8L * 37) % (SPAN - 8) + offset;
+    }
+
+    @Benchmark
+    public long read8() {
+        long acc = 0;
+        for (long a : addrs)
+            acc += mem.read8(a);
+        return acc;
+    }
+
+    @Benchmark
+    public long read16() {
+        long acc = 0;
+        for (long a : addrs)
+            acc += mem.read16(a);
+        return acc;
+    }
+
+    @Benchmark
+    public long read32() {
+        long acc = 0;
+        for (long a : addrs)
+            acc += mem.read32(a);
+        return acc;
+    }
+
+    @Benchmark
+    public long read64() {
+        long acc = 0;
+        for (long a : addrs)
+            acc += mem.read64(a);
+        return acc;
+    }
+
+    @Benchmark
+    public void write8() {
+        for (long a : addrs)
+            mem.write8(a, (byte)a);
+    }
+
+    @Benchmark
+    public void write16() {
+        for (long a : addrs)
+            mem.write16(a, (short)a);
+    }
+
+    @Benchmark
+    public void write32() {
+        for (long a : addrs)
+            mem.write32(a, (int)a);
+    }
+
+    @Benchmark
+    public void write64() {
+        for (long a : addrs)
+            mem.write64(a, a);
+    }
+
+    @Benchmark
+    public long read32Bytewise() {
+        long acc = 0;
+        for (long a : addrs)
+            acc += mem.readSlow(a, 4);
+        return acc;
+    }
+
+    @Benchmark
+    public long read64Bytewise() {
+        long acc = 0;
+        for (long a : addrs)
+            acc += mem.readSlow(a, 8);
+        return acc;
+    }
+
+    @Benchmark
+    public void write32Bytewise() {
+        for (long a : addrs)
+            mem.writeSlow(a, a, 4);
+    }
+
+    @Benchmark
+    public void write64Bytewise() {
+        for (long a : addrs)
+            mem.writeSlow(a, a, 8);
+    }
+}
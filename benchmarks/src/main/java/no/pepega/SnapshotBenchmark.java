@@ -0,0 +1,84 @@
+package no.pepega;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and restoring a guest with every other page written. restore includes reading a word of every
+ * written page, as uncompressed pages are only read from the file when the guest touches them. Each is
+ * a single shot, a 2 GiB guest takes seconds.
+ *
+ * The 2 GiB guest is on the heap, twice over while it is restored, so the fork gets a 5 GiB heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx5g")
+public class SnapshotBenchmark {
+    @Param({"64", "512", "2048"})
+    int guestMiB;
+
+    @Param({"false", "true"})
+    boolean compress;
+
+    PseudoVM vm;
+    Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        long size = (long)guestMiB << 20;
+        vm = new PseudoVM(new Machine(new byte[16]), size);
+        /* Bytes that deflate about 4x, like typical guest data */
+        Random r = new Random(1);
+        for (long p = 0; p < size; p += 2*Memory.PAGE_SIZE)
+            for (int i = 0; i < Memory.PAGE_SIZE; i += 8)
+                vm.arch.memory.write64(p + i, r.nextInt(256));
+        file = Files.createTempFile("jerv-snapshot", ".bin");
+        Snapshot.save(vm, file, compress);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    /* Restored copies are dropped right away, a 2 GiB guest doesn't fit on the heap many times */
+    @TearDown(Level.Invocation)
+    public void collect() {
+        System.gc();
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        Snapshot.save(vm, file, compress);
+    }
+
+    @Benchmark
+    public long restore() throws IOException {
+        PseudoVM restored = Snapshot.restore(file, PagedMemory::new);
+        long size = restored.arch.memory.size();
+        long sum = 0;
+        for (long p = 0; p < size; p += 2*Memory.PAGE_SIZE)
+            sum += restored.arch.memory.read64(p + 8);
+        return sum;
+    }
+}
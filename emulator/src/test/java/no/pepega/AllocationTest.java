@@ -0,0 +1,99 @@
+package no.pepega;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static no.pepega.Asm.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Once warmed up, running guest code must not allocate, or the GC ends up doing the emulator's work. */
+class AllocationTest {
+    private static final int WARMUP = 20;
+    private static final int CYCLES = 1_000_000;
+
+    /* ALU ops, a store and a load to another page than the code, and a branch, in a loop that never ends */
+    private static final int[] LOOP = {
+            u(0x37, 5, 0x10000),         // lui x5, 0x10
+            i(0x13, 6, 0, 6, 1),         // loop: addi x6, x6, 1
+            r(0x33, 7, 0, 7, 6, 0),      // add x7, x7, x6
+            i(0x13, 8, 4, 7, 3),         // xori x8, x7, 3
+            s(8, 3, 5, 0),               // sd x8, 0(x5)
+            i(0x03, 9, 3, 5, 0),         // ld x9, 0(x5)
+            r(0x33, 10, 0, 10, 9, 1),    // mul x10, x10, x9
+            i(0x13, 11, 7, 6, 255),      // andi x11, x6, 255
+            b(1, 11, 0, -28),            // bne x11, x0, loop
+            j(0, -32),                   // j loop
+    };
+
+    /* Maps the first GiB to itself with a gigapage and runs what follows in S mode with Sv39 on */
+    private static final int[] SV39 = {
+            u(0x37, 3, 0x200000),        // lui x3, 0x200
+            i(0x13, 4, 0, 0, 0xCF),      // addi x4, x0, 0xCF: valid, RWX, accessed and dirty
+            s(4, 3, 3, 0),               // sd x4, 0(x3)
+            i(0x13, 3, 5, 3, 12),        // srli x3, x3, 12
+            i(0x13, 4, 0, 0, 8),         // addi x4, x0, 8
+            i(0x13, 4, 1, 4, 60),        // slli x4, x4, 60
+            r(0x33, 3, 6, 3, 4, 0),      // or x3, x3, x4
+            i(0x73, 0, 1, 3, 0x180),     // csrw satp, x3
+            u(0x37, 3, 0x1000),          // lui x3, 1
+            i(0x13, 3, 0, 3, -0x800),    // addi x3, x3, -0x800: MPP = S
+            i(0x73, 0, 2, 3, 0x300),     // csrs mstatus, x3
+            u(0x17, 3, 0),               // auipc x3, 0
+            i(0x13, 3, 0, 3, 16),        // addi x3, x3, 16
+            i(0x73, 0, 1, 3, 0x341),     // csrw mepc, x3
+            0x30200073,                  // mret
+    };
+
+    private final ThreadMXBean threads = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    @Test
+    void interpreter() throws Exception {
+        PseudoVM vm = Guests.boot(assemble(LOOP), "paged");
+        vm.arch.jit = null;
+        assertEquals(0, allocated(vm));
+    }
+
+    @Test
+    void interpreterOffHeap() throws Exception {
+        PseudoVM vm = Guests.boot(assemble(LOOP), "offheap");
+        try {
+            vm.arch.jit = null;
+            assertEquals(0, allocated(vm));
+        } finally {
+            Guests.release(vm);
+        }
+    }
+
+    @Test
+    void paging() throws Exception {
+        int[] words = new int[SV39.length + LOOP.length];
+        System.arraycopy(SV39, 0, words, 0, SV39.length);
+        System.arraycopy(LOOP, 0, words, SV39.length, LOOP.length);
+        PseudoVM vm = Guests.boot(assemble(words), "paged");
+        assertEquals(0, allocated(vm));
+        assertTrue(vm.arch.paging, "The guest never turned paging on");
+    }
+
+    /* Compiling blocks allocates, running them must not */
+    @Test
+    void compiled() throws Exception {
+        PseudoVM vm = Guests.boot(assemble(LOOP), "paged");
+        assertEquals(0, allocated(vm));
+        if (!Jit.INTERPRET_ONLY)
+            assertTrue(vm.arch.jit.runs() > 0, "The loop was never compiled");
+    }
+
+    /* Bytes this thread allocated running the guest, after warming the decode cache and the host JIT up */
+    private long allocated(PseudoVM vm) {
+        for (int n = 0; n < WARMUP; n++)
+            vm.arch.run_cycles(CYCLES);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        vm.arch.run_cycles(CYCLES);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        assertTrue(!vm.arch.hard_halted, "The guest halted");
+        return allocated;
+    }
+}
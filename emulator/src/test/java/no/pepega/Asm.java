@@ -0,0 +1,48 @@
+package no.pepega;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Encodes the RV64 instructions the tests' guest programs are written in. */
+final class Asm {
+    private Asm() {
+    }
+
+    static byte[] assemble(int... words) {
+        ByteBuffer b = ByteBuffer.allocate(words.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int w : words)
+            b.putInt(w);
+        return b.array();
+    }
+
+    static int r(int opcode, int rd, int funct3, int rs1, int rs2, int funct7) {
+        return funct7 << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12 | rd << 7 | opcode;
+    }
+
+    static int i(int opcode, int rd, int funct3, int rs1, int imm) {
+        return (imm & 0xFFF) << 20 | rs1 << 15 | funct3 << 12 | rd << 7 | opcode;
+    }
+
+    static int s(int rs2, int funct3, int rs1, int imm) {
+        return (imm >> 5 & 0x7F) << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12 | (imm & 0x1F) << 7 | 0x23;
+    }
+
+    static int b(int funct3, int rs1, int rs2, int imm) {
+        return (imm >> 12 & 1) << 31 | (imm >> 5 & 0x3F) << 25 | rs2 << 20 | rs1 << 15 | funct3 << 12
+                | (imm >> 1 & 0xF) << 8 | (imm >> 11 & 1) << 7 | 0x63;
+    }
+
+    static int u(int opcode, int rd, int imm) {
+        return (imm & 0xFFFFF000) | rd << 7 | opcode;
+    }
+
+    static int j(int rd, int imm) {
+        return (imm >> 20 & 1) << 31 | (imm >> 1 & 0x3FF) << 21 | (imm >> 11 & 1) << 20 | (imm >> 12 & 0xFF) << 12
+                | rd << 7 | 0x6F;
+    }
+
+    /* Atomics on the word (funct3 2) or doubleword (funct3 3) at rs1, with aq and rl set */
+    static int amo(int funct5, int funct3, int rd, int rs1, int rs2) {
+        return r(0x2F, rd, funct3, rs1, rs2, funct5 << 2 | 3);
+    }
+}
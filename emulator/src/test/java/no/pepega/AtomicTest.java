@@ -0,0 +1,88 @@
+package no.pepega;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static no.pepega.Asm.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Harts hammering the same counters, one with amoadd.w and one with an LR/SC loop. A lost update on
+ * either shows up as a final count short of harts times iterations.
+ */
+class AtomicTest {
+    private static final long COUNTERS = 0x10000;
+    private static final int ITERATIONS = 20_000;
+
+    @ParameterizedTest
+    @CsvSource({"1, paged", "2, paged", "4, paged", "4, offheap", "8, paged"})
+    void contendedCounters(int harts, String memory) throws Exception {
+        PseudoVM vm = Guests.boot(counters(harts, ITERATIONS), Guests.memory(memory, PseudoVM.DEFAULT_MEMORY), harts);
+        try {
+            Guests.runToHalt(vm, 1000);
+            Memory m = vm.arch.memory;
+            assertEquals(harts * ITERATIONS, m.read32(COUNTERS), "amoadd.w count");
+            assertEquals((long)harts * ITERATIONS, m.read64(COUNTERS + 8), "LR/SC count");
+            assertEquals(harts, m.read64(COUNTERS + 16), "Harts done");
+        } finally {
+            Guests.release(vm);
+        }
+    }
+
+    /* LR traps as a misaligned load, SC and AMOs as a misaligned store, with the address in mtval */
+    @ParameterizedTest
+    @CsvSource({"2, 2, 4", "2, 3, 4", "3, 2, 6", "3, 3, 6", "0, 2, 6", "1, 3, 6", "28, 3, 6"})
+    void misalignedTraps(int funct5, int funct3, long cause) throws Exception {
+        long addr = COUNTERS + 2;
+        PseudoVM vm = Guests.boot(assemble(
+                u(0x37, 6, (int)COUNTERS),              // lui x6, counters
+                i(0x13, 6, 0, 6, 2),                     // addi x6, x6, 2
+                i(0x13, 7, 0, 0, 1),                     // addi x7, x0, 1
+                i(0x13, 5, 0, 0, 24),                    // addi x5, x0, handler
+                i(0x73, 0, 1, 5, 0x305),                 // csrw mtvec, x5
+                amo(funct5, funct3, 7, 6, 7),            // the atomic, x7 = (x6)
+                i(0x73, 0, 1, 0, 0x305),                 // handler: csrw mtvec, x0
+                i(0x73, 10, 2, 0, 0x342),                // csrr a0, mcause
+                i(0x73, 11, 2, 0, 0x343),                // csrr a1, mtval
+                i(0x73, 12, 2, 0, 0x341),                // csrr a2, mepc
+                0), "paged");                            // illegal, halts
+        try {
+            Guests.runToHalt(vm, 10);
+            assertEquals(cause, vm.arch.regs[10], "mcause");
+            assertEquals(addr, vm.arch.regs[11], "mtval");
+            assertEquals(20, vm.arch.regs[12], "mepc");
+            assertEquals(1, vm.arch.regs[7], "rd must not be written");
+            assertEquals(0, vm.arch.memory.read64(COUNTERS), "Memory must not be written");
+        } finally {
+            Guests.release(vm);
+        }
+    }
+
+    /*
+     * Every hart adds 1 to the word at COUNTERS and to the doubleword after it, iterations times each,
+     * then counts itself done at COUNTERS + 16. Hart 0 waits for all of them before halting the machine,
+     * the others halt only themselves.
+     */
+    private static byte[] counters(int harts, int iterations) {
+        return assemble(
+                u(0x37, 22, (int)COUNTERS),              // lui x22, counters
+                i(0x13, 26, 0, 22, 8),                   // addi x26, x22, 8
+                i(0x13, 29, 0, 22, 16),                  // addi x29, x22, 16
+                i(0x13, 24, 0, 0, 1),                    // addi x24, x0, 1
+                u(0x37, 5, iterations + 0x800),          // lui x5, %hi(iterations)
+                i(0x13, 5, 0, 5, iterations),            // addi x5, x5, %lo(iterations)
+                amo(0, 2, 0, 22, 24),                    // loop: amoadd.w x0, x24, (x22)
+                amo(2, 3, 27, 26, 0),                    // retry: lr.d x27, (x26)
+                i(0x13, 27, 0, 27, 1),                   // addi x27, x27, 1
+                amo(3, 3, 28, 26, 27),                   // sc.d x28, x27, (x26)
+                b(1, 28, 0, -12),                        // bne x28, x0, retry
+                i(0x13, 6, 0, 6, 1),                     // addi x6, x6, 1
+                b(4, 6, 5, -24),                         // blt x6, x5, loop
+                amo(0, 3, 0, 29, 24),                    // amoadd.d x0, x24, (x29)
+                b(1, 10, 0, 16),                         // bne a0, x0, end
+                i(0x13, 7, 0, 0, harts),                 // addi x7, x0, harts
+                i(0x03, 27, 3, 29, 0),                   // wait: ld x27, 0(x29)
+                b(4, 27, 7, -4),                         // blt x27, x7, wait
+                0);                                      // end: illegal, halts
+    }
+}
@@ -0,0 +1,84 @@
+package no.pepega;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/** What a forked VM gets of the devices the host attached. */
+class ForkTest {
+    private static final long BASE = Bus.MMIO_BASE + 0x200000;
+
+    /* One register, copied on fork */
+    static final class Register implements Device {
+        long value;
+
+        @Override
+        public long size() {
+            return 8;
+        }
+
+        @Override
+        public synchronized long read(long offset, int width) {
+            return value;
+        }
+
+        @Override
+        public synchronized void write(long offset, int width, long value) {
+            this.value = value;
+        }
+
+        @Override
+        public synchronized Device fork() {
+            Register r = new Register();
+            r.value = value;
+            return r;
+        }
+    }
+
+    /* A device that keeps the default, so can't be forked */
+    static final class Plain implements Device {
+        @Override
+        public long size() {
+            return 8;
+        }
+
+        @Override
+        public long read(long offset, int width) {
+            return 1;
+        }
+
+        @Override
+        public void write(long offset, int width, long value) {
+        }
+    }
+
+    @Test
+    void attachedDevicesAreForked() {
+        PseudoVM vm = new PseudoVM(new Machine(new byte[16]));
+        Register r = new Register();
+        vm.attach(BASE, r);
+        r.value = 5;
+
+        PseudoVM child = vm.fork();
+        assertEquals(5, read(child, BASE));
+        write(child, BASE, 6);
+        assertEquals(6, read(child, BASE));
+        assertEquals(5, read(vm, BASE));
+    }
+
+    @Test
+    void unforkableDeviceRefuses() {
+        PseudoVM vm = new PseudoVM(new Machine(new byte[16]));
+        vm.attach(BASE, new Plain());
+        assertThrows(UnsupportedOperationException.class, vm::fork);
+    }
+
+    private static long read(PseudoVM vm, long addr) {
+        return vm.bus.read(vm.bus.find(addr), addr, 8);
+    }
+
+    private static void write(PseudoVM vm, long addr, long value) {
+        vm.bus.write(vm.bus.find(addr), addr, 8, value);
+    }
+}
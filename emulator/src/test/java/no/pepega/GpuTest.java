@@ -0,0 +1,65 @@
+package no.pepega;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/** The GPU's fill register, whose rectangle the guest picks freely. */
+class GpuTest {
+    private final Screen screen = new Screen(8, 4);
+    private final Gpu gpu = new Gpu();
+
+    GpuTest() {
+        gpu.bind(screen);
+    }
+
+    @Test
+    void fill() {
+        gpu.write(Gpu.X, 8, 2);
+        gpu.write(Gpu.Y, 8, 2);
+        gpu.write(Gpu.FILL_WIDTH, 8, 3);
+        gpu.write(Gpu.FILL_HEIGHT, 8, 2);
+        gpu.write(Gpu.FILL, 8, '#');
+        assertEquals("        ", screen.line(1));
+        assertEquals(" ###    ", screen.line(2));
+        assertEquals(" ###    ", screen.line(3));
+        assertEquals("        ", screen.line(4));
+    }
+
+    /* Only the cells on the screen are visited, however large the rectangle or wherever it starts */
+    @Test
+    void oversizedFill() {
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            gpu.write(Gpu.FILL_WIDTH, 8, Integer.MAX_VALUE);
+            gpu.write(Gpu.FILL_HEIGHT, 8, Integer.MAX_VALUE);
+            gpu.write(Gpu.FILL, 8, '#');
+            for (int row = 1; row <= 4; row++)
+                assertEquals("########", screen.line(row));
+
+            /* Ends before the screen starts */
+            gpu.write(Gpu.X, 8, Integer.MIN_VALUE);
+            gpu.write(Gpu.Y, 8, Integer.MIN_VALUE);
+            gpu.write(Gpu.FILL, 8, '?');
+            for (int row = 1; row <= 4; row++)
+                assertEquals("########", screen.line(row));
+
+            gpu.write(Gpu.X, 8, -5);
+            gpu.write(Gpu.Y, 8, -5);
+            gpu.write(Gpu.FILL, 8, '.');
+            for (int row = 1; row <= 4; row++)
+                assertEquals("........", screen.line(row));
+
+            gpu.write(Gpu.X, 8, 7);
+            gpu.write(Gpu.Y, 8, Integer.MAX_VALUE - 1);
+            gpu.write(Gpu.FILL, 8, '!');
+            gpu.write(Gpu.Y, 8, 4);
+            gpu.write(Gpu.FILL, 8, '!');
+        });
+        for (int row = 1; row <= 3; row++)
+            assertEquals("........", screen.line(row));
+        assertEquals("......!!", screen.line(4));
+    }
+}
@@ -0,0 +1,58 @@
+package no.pepega;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static no.pepega.Asm.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Whole guests, run to the end on each memory backend. */
+class GuestTest {
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void count(String memory) throws Exception {
+        PseudoVM vm = Guests.boot(Guests.resource("count_2_10"), memory);
+        try {
+            Guests.runToHalt(vm, 100);
+            assertEquals(10, vm.arch.regs[10]);
+            assertEquals(9, vm.arch.regs[11]);
+        } finally {
+            Guests.release(vm);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void eeprom(String memory) throws Exception {
+        PseudoVM vm = Guests.boot(Guests.resource("eeprom.ch8"), memory);
+        try {
+            Guests.runToHalt(vm, 100);
+            assertEquals(55, vm.arch.regs[10]);
+        } finally {
+            Guests.release(vm);
+        }
+    }
+
+    /* Runs long enough for the loop to be compiled, so the JIT has to get the same sum */
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void hotLoop(String memory) throws Exception {
+        byte[] program = assemble(
+                u(0x37, 6, 0x18000),         // lui x6, 0x18
+                i(0x13, 6, 0, 6, 0x6A0),     // addi x6, x6, 0x6A0: 100000
+                i(0x13, 5, 0, 5, 1),         // loop: addi x5, x5, 1
+                r(0x33, 10, 0, 10, 5, 0),    // add x10, x10, x5
+                b(1, 5, 6, -8),              // bne x5, x6, loop
+                0);                          // illegal, halts
+        PseudoVM vm = Guests.boot(program, memory);
+        try {
+            Guests.runToHalt(vm, 100);
+            assertEquals(100000L * 100001 / 2, vm.arch.regs[10]);
+            if (!Jit.INTERPRET_ONLY)
+                assertTrue(vm.arch.jit.compiled() > 0, "The loop was never compiled");
+        } finally {
+            Guests.release(vm);
+        }
+    }
+}
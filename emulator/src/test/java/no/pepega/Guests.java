@@ -0,0 +1,57 @@
+package no.pepega;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Booting and running guests the way Main does, for the tests. */
+final class Guests {
+    private Guests() {
+    }
+
+    /** A program from res/, found from the repository root or from the emulator module. */
+    static byte[] resource(String name) {
+        Path p = Paths.get("res", name);
+        if (!Files.exists(p))
+            p = Paths.get("..", "res", name);
+        try {
+            return Files.readAllBytes(p);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Memory memory(String kind, long size) {
+        switch (kind) {
+            case "paged": return new PagedMemory(size);
+            case "offheap": return new OffHeapMemory(size);
+            default: throw new IllegalArgumentException("Unknown memory backend " + kind);
+        }
+    }
+
+    static PseudoVM boot(byte[] program, String memory) throws Exception {
+        return boot(program, memory(memory, PseudoVM.DEFAULT_MEMORY), 1);
+    }
+
+    static PseudoVM boot(byte[] program, Memory memory, int harts) throws Exception {
+        PseudoVM vm = new PseudoVM(new Machine(program), memory, harts);
+        vm.run(0);
+        return vm;
+    }
+
+    /** Runs a booted VM until it halts, or fails after the given number of slices. */
+    static void runToHalt(PseudoVM vm, int slices) throws Exception {
+        for (int n = 0; !vm.arch.hard_halted && vm.is_booted; n++) {
+            if (n == slices)
+                throw new AssertionError("Guest still running after " + slices + " slices, pc 0x" + Long.toHexString(vm.arch.pc));
+            vm.run(1);
+        }
+    }
+
+    static void release(PseudoVM vm) {
+        if (vm.arch.memory instanceof OffHeapMemory)
+            ((OffHeapMemory)vm.arch.memory).close();
+    }
+}
@@ -0,0 +1,37 @@
+package no.pepega;
+
+import org.junit.jupiter.api.Test;
+
+import static no.pepega.Asm.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Packed decoding of the formats whose rd field holds something other than a register. */
+class InstructionTest {
+    @Test
+    void storesHaveNoRd() {
+        long d = Instruction.decodePacked(s(7, 3, 5, -0x7F1));  // sd x7, -0x7F1(x5)
+        assertEquals(Instruction.Inst.Sd, Instruction.op(d));
+        assertEquals(0, Instruction.rd(d));
+        assertEquals(5, Instruction.rs1(d));
+        assertEquals(7, Instruction.rs2(d));
+        assertEquals(-0x7F1, Instruction.imm(d));
+    }
+
+    @Test
+    void branchesHaveNoRd() {
+        long d = Instruction.decodePacked(b(1, 11, 12, -0x7FE));  // bne x11, x12, -0x7FE
+        assertEquals(Instruction.Inst.Bne, Instruction.op(d));
+        assertEquals(0, Instruction.rd(d));
+        assertEquals(11, Instruction.rs1(d));
+        assertEquals(12, Instruction.rs2(d));
+        assertEquals(-0x7FE, Instruction.imm(d));
+    }
+
+    @Test
+    void fencesHaveNoRd() {
+        long d = Instruction.decodePacked(0x0FF0000F | 3 << 7);  // fence iorw, iorw with reserved rd bits set
+        assertEquals(Instruction.Inst.Fence, Instruction.op(d));
+        assertEquals(0, Instruction.rd(d));
+        assertEquals(0xFF, Instruction.fence(d));
+    }
+}
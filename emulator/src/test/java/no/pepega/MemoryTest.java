@@ -0,0 +1,271 @@
+package no.pepega;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+
+import static no.pepega.Memory.PAGE_SIZE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Loads and stores of every width at every alignment, checked byte by byte against a plain array. The
+ * window spans a page boundary, so it covers aligned, misaligned and page crossing accesses.
+ */
+class MemoryTest {
+    private static final long SIZE = 64 << 10;
+    /* Bytes around the boundary between pages 1 and 2 */
+    private static final long BASE = 2*PAGE_SIZE - 32;
+    private static final int WINDOW = 64;
+    private static final int[] WIDTHS = {1, 2, 4, 8};
+
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void everyWidthAndAlignment(String kind) {
+        Memory m = Guests.memory(kind, SIZE);
+        byte[] model = new byte[WINDOW];
+        long value = 0x0123456789ABCDEFL;
+        for (int width : WIDTHS) {
+            for (int off = 0; off + width <= WINDOW; off++) {
+                value = value * 0x9E3779B97F4A7C15L + 1;
+                write(m, BASE + off, width, value);
+                for (int i = 0; i < width; i++)
+                    model[off + i] = (byte)(value >>> 8*i);
+                assertEquals(value & mask(width), read(m, BASE + off, width) & mask(width),
+                        width + " bytes at +" + off);
+                check(m, BASE, model);
+            }
+        }
+        close(m);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void randomAccesses(String kind) {
+        Memory m = Guests.memory(kind, SIZE);
+        byte[] model = new byte[WINDOW];
+        Random r = new Random(5);
+        for (int n = 0; n < 10_000; n++) {
+            int width = WIDTHS[r.nextInt(WIDTHS.length)];
+            int off = r.nextInt(WINDOW - width + 1);
+            if (r.nextBoolean()) {
+                long value = r.nextLong();
+                write(m, BASE + off, width, value);
+                for (int i = 0; i < width; i++)
+                    model[off + i] = (byte)(value >>> 8*i);
+            } else {
+                assertEquals(expected(model, off, width), read(m, BASE + off, width) & mask(width),
+                        width + " bytes at +" + off);
+            }
+        }
+        check(m, BASE, model);
+        close(m);
+    }
+
+    /* Writes to either side of a fork, at every width and alignment, must not show on the other side */
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void forkedPages(String kind) {
+        Memory parent = Guests.memory(kind, SIZE);
+        byte[] before = new byte[WINDOW];
+        new Random(6).nextBytes(before);
+        for (int i = 0; i < WINDOW; i++)
+            parent.write8(BASE + i, before[i]);
+
+        for (int width : WIDTHS) {
+            for (int off = 0; off + width <= WINDOW; off++) {
+                Memory child = parent.fork();
+                byte[] model = before.clone();
+                write(child, BASE + off, width, -1L);
+                for (int i = 0; i < width; i++)
+                    model[off + i] = -1;
+                check(child, BASE, model);
+                check(parent, BASE, before);
+
+                write(parent, BASE + off, width, 0);
+                check(child, BASE, model);
+                write(parent, BASE + off, width, expected(before, off, width));
+                check(parent, BASE, before);
+                close(child);
+            }
+        }
+        close(parent);
+    }
+
+    /* Writes over a mapped image land in a private copy of its page, the image stays as it was */
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void mappedImage(String kind) {
+        Memory m = Guests.memory(kind, SIZE);
+        byte[] image = new byte[PAGE_SIZE + 100];
+        new Random(7).nextBytes(image);
+        m.map(PAGE_SIZE, ByteBuffer.wrap(image));
+        byte[] original = image.clone();
+
+        byte[] model = new byte[WINDOW];
+        System.arraycopy(image, PAGE_SIZE - 32, model, 0, 32);
+        System.arraycopy(image, PAGE_SIZE, model, 32, 32);
+        check(m, BASE, model);
+        for (int width : WIDTHS) {
+            for (int off = 0; off + width <= WINDOW; off += 3) {
+                write(m, BASE + off, width, ~(long)off);
+                for (int i = 0; i < width; i++)
+                    model[off + i] = (byte)(~(long)off >>> 8*i);
+                check(m, BASE, model);
+            }
+        }
+        assertArrayEquals(original, image);
+        close(m);
+    }
+
+    /*
+     * Harts writing to the same copy-on-write page at once: each must end up writing to the one private
+     * copy, never to the page shared with the parent or to an image, and no write may be lost.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void concurrentCopyOnWrite(String kind) throws Exception {
+        int harts = 4;
+        Memory parent = Guests.memory(kind, SIZE);
+        byte[] image = new byte[PAGE_SIZE];
+        new Random(11).nextBytes(image);
+        parent.map(0, ByteBuffer.wrap(image));
+        for (int i = 0; i < PAGE_SIZE; i += 8)
+            parent.write64(PAGE_SIZE + i, -1L);
+        byte[] original = image.clone();
+
+        for (int round = 0; round < 500; round++) {
+            Memory child = parent.fork();
+            CyclicBarrier start = new CyclicBarrier(harts);
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int h = 0; h < harts; h++) {
+                int hart = h;
+                Thread t = new Thread(() -> {
+                    try {
+                        start.await();
+                        /* Each hart owns every harts'th doubleword of both pages */
+                        for (int i = 8*hart; i < PAGE_SIZE; i += 8*harts) {
+                            child.write64(i, hart + 1);
+                            child.amo64(PAGE_SIZE + i, Memory.AMO_ADD, hart + 2);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+            for (Thread t : threads)
+                t.join();
+            if (!failures.isEmpty())
+                throw new AssertionError("A hart failed in round " + round, failures.get(0));
+
+            for (int i = 0; i < PAGE_SIZE; i += 8) {
+                int hart = i / 8 % harts;
+                assertEquals(hart + 1, child.read64(i), "Lost write at " + i + " in round " + round);
+                assertEquals(hart + 1, child.read64(PAGE_SIZE + i), "Lost atomic at " + i + " in round " + round);
+                assertEquals(-1L, parent.read64(PAGE_SIZE + i), "Parent changed at " + i + " in round " + round);
+            }
+            check(parent, 0, original);
+            close(child);
+        }
+        assertArrayEquals(original, image);
+        close(parent);
+    }
+
+    /*
+     * Reads of pages that were never written see zeroes without taking the lock page faults serialize on,
+     * so a hart polling untouched memory doesn't stall the others. The lock is held here while another
+     * thread reads.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void untouchedReadsDontLock(String kind) throws Exception {
+        Memory m = Guests.memory(kind, SIZE);
+        long[] read = {-1};
+        Thread reader = new Thread(() -> read[0] = m.read64(BASE) | m.read32(3*PAGE_SIZE));
+        synchronized (m) {
+            reader.start();
+            reader.join(10_000);
+            assertFalse(reader.isAlive(), "Reader blocked on the memory's lock");
+        }
+        reader.join();
+        assertEquals(0, read[0]);
+        assertEquals(0, m.privateBytes());
+        close(m);
+    }
+
+    /* Device copies cross pages in one call and must agree with the load and store methods */
+    @ParameterizedTest
+    @ValueSource(strings = {"paged", "offheap"})
+    void bufferCopies(String kind) {
+        Memory m = Guests.memory(kind, SIZE);
+        byte[] data = new byte[3*PAGE_SIZE];
+        new Random(8).nextBytes(data);
+        long at = PAGE_SIZE - 5;
+        m.store(at, ByteBuffer.wrap(data));
+        check(m, at, data);
+
+        Memory child = m.fork();
+        m.write64(at + PAGE_SIZE - 4, 0);
+        ByteBuffer copy = ByteBuffer.allocateDirect(data.length);
+        child.load(at, copy);
+        assertArrayEquals(data, bytes(copy.flip()));
+        close(child);
+        close(m);
+    }
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] a = new byte[b.remaining()];
+        b.get(a);
+        return a;
+    }
+
+    private static void check(Memory m, long addr, byte[] model) {
+        for (int i = 0; i < model.length; i++)
+            assertEquals(model[i], m.read8(addr + i), "Byte at +" + i);
+    }
+
+    private static long expected(byte[] model, int off, int width) {
+        long v = 0;
+        for (int i = 0; i < width; i++)
+            v |= Byte.toUnsignedLong(model[off + i]) << 8*i;
+        return v;
+    }
+
+    private static long mask(int width) {
+        return width == 8 ? -1L : (1L << 8*width) - 1;
+    }
+
+    private static long read(Memory m, long addr, int width) {
+        switch (width) {
+            case 1: return m.read8(addr);
+            case 2: return m.read16(addr);
+            case 4: return m.read32(addr);
+            default: return m.read64(addr);
+        }
+    }
+
+    private static void write(Memory m, long addr, int width, long value) {
+        switch (width) {
+            case 1: m.write8(addr, (byte)value); break;
+            case 2: m.write16(addr, (short)value); break;
+            case 4: m.write32(addr, (int)value); break;
+            default: m.write64(addr, value); break;
+        }
+    }
+
+    private static void close(Memory m) {
+        if (m instanceof OffHeapMemory)
+            ((OffHeapMemory)m).close();
+    }
+}
@@ -0,0 +1,70 @@
+package no.pepega;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+
+import static no.pepega.Memory.PAGE_SIZE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Direct memory the off-heap backend takes for the guest RAM it backs. */
+class OffHeapMemoryTest {
+    private static final BufferPoolMXBean DIRECT = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)
+            .stream().filter(b -> b.getName().equals("direct")).findFirst().orElseThrow();
+
+    static {
+        /* The class's own zero page is direct memory too, so it is allocated before anything is measured */
+        new OffHeapMemory(PAGE_SIZE).close();
+    }
+
+    /* Aligning chunks to huge pages costs at most one chunk per region, not a chunk per chunk */
+    @Test
+    void largeGuest() {
+        long size = 64 << 20;
+        long before = DIRECT.getMemoryUsed();
+        try (OffHeapMemory m = new OffHeapMemory(size)) {
+            for (long a = 0; a < size; a += PAGE_SIZE)
+                m.write64(a, a);
+            for (long a = 0; a < size; a += PAGE_SIZE)
+                assertEquals(a, m.read64(a));
+            long used = DIRECT.getMemoryUsed() - before;
+            assertEquals(size, m.residentBytes());
+            assertTrue(used <= size + size / OffHeapMemory.REGION_CHUNKS, "Took " + used + " bytes for " + size);
+        }
+    }
+
+    /* A guest smaller than a region only gets page aligned chunks, and no more of them than it can touch */
+    @Test
+    void smallGuest() {
+        long size = 4 << 20;
+        long before = DIRECT.getMemoryUsed();
+        try (OffHeapMemory m = new OffHeapMemory(size)) {
+            m.write8(0, (byte)1);
+            m.write8(size - 1, (byte)2);
+            long used = DIRECT.getMemoryUsed() - before;
+            assertTrue(used <= size + PAGE_SIZE, "Took " + used + " bytes for " + size);
+            assertEquals(1, m.read8(0));
+            assertEquals(2, m.read8(size - 1));
+        }
+    }
+
+    /* Writes to a fork's shared pages need chunks of their own beyond what the guest size accounts for */
+    @Test
+    void forkAfterFull() {
+        long size = 4 << 20;
+        try (OffHeapMemory m = new OffHeapMemory(size)) {
+            for (long a = 0; a < size; a += PAGE_SIZE)
+                m.write64(a, a);
+            OffHeapMemory child = (OffHeapMemory)m.fork();
+            for (long a = 0; a < size; a += PAGE_SIZE)
+                child.write64(a, ~a);
+            for (long a = 0; a < size; a += PAGE_SIZE) {
+                assertEquals(a, m.read64(a));
+                assertEquals(~a, child.read64(a));
+            }
+            child.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package no.pepega;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static no.pepega.Asm.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** The records a traced guest leaves, run by its own surefire execution with -Djerv.trace set. */
+class TraceTest {
+    /* A jump leaves its link address in x0 until the next instruction runs, neither record may show it */
+    @Test
+    void x0() throws Exception {
+        assertTrue(Trace.ENABLED, "Runs with -Djerv.trace only");
+        byte[] program = assemble(
+                j(0, 4),                     // j 4
+                i(0x03, 10, 3, 0, 16),       // ld a0, 16(x0)
+                0,                           // illegal, halts
+                0,
+                0x1234, 0);                  // 16: data
+        PseudoVM vm = Guests.boot(program, "paged");
+        Guests.runToHalt(vm, 10);
+        assertEquals(0x1234, vm.arch.regs[10]);
+        Trace.close();
+
+        ByteBuffer f = ByteBuffer.wrap(Files.readAllBytes(Paths.get(Trace.FILE))).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(Trace.MAGIC, f.getInt(0));
+        int jump = 16;
+        int load = jump + Trace.RECORD;
+        assertEquals(0, f.getLong(jump));
+        assertEquals(0, f.get(jump + 14), "rd of j");
+        assertEquals(0, f.getLong(jump + 16), "Value of j");
+        assertEquals(4, f.getLong(load));
+        assertEquals(10, f.get(load + 14), "rd of ld");
+        assertEquals(0x1234, f.getLong(load + 16), "Value of ld");
+        assertEquals(Trace.MEM_ADDR, f.get(load + 15));
+        assertEquals(16, f.getLong(load + 24), "Address of ld");
+    }
+}
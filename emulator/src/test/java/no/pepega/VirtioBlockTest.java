@@ -0,0 +1,184 @@
+package no.pepega;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static no.pepega.VirtioBlock.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** The block device driven through its registers and a virtqueue in guest RAM, as a guest driver would. */
+class VirtioBlockTest {
+    private static final int SECTORS = 64;
+
+    /* Guest RAM layout: the queue, the request header and status byte, then the data buffer */
+    private static final long DESC = 0x10000;
+    private static final long AVAIL = 0x11000;
+    private static final long USED = 0x12000;
+    private static final long HEADER = 0x13000;
+    private static final long STATUS_BYTE = 0x14000;
+    private static final long BUFFER = 0x20000;
+
+    @TempDir
+    Path dir;
+
+    Path image;
+    byte[] contents;
+    PseudoVM vm;
+    Memory mem;
+    VirtioBlock disk;
+    int avail_idx;
+
+    @BeforeEach
+    void setup() throws IOException {
+        image = dir.resolve("disk.img");
+        contents = new byte[SECTORS * SECTOR_SIZE];
+        new Random(9).nextBytes(contents);
+        Files.write(image, contents);
+        vm = new PseudoVM(new Machine(new byte[0]), new PagedMemory(PseudoVM.DEFAULT_MEMORY));
+        mem = vm.arch.memory;
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (disk != null)
+            disk.close();
+    }
+
+    @Test
+    void read() throws IOException {
+        open(false);
+        assertEquals(S_OK, request(T_IN, 3, 2*SECTOR_SIZE));
+        assertArrayEquals(Arrays.copyOfRange(contents, 3*SECTOR_SIZE, 5*SECTOR_SIZE), guest(BUFFER, 2*SECTOR_SIZE));
+        /* The used entry counts the data and the status byte written to guest memory */
+        assertEquals(0, mem.read32(USED + 4));
+        assertEquals(2*SECTOR_SIZE + 1, mem.read32(USED + 8));
+        assertEquals(1, disk.read(INTERRUPT_STATUS, 4));
+        assertTrue(vm.arch.irq_pending);
+        disk.write(INTERRUPT_ACK, 4, 1);
+        assertEquals(0, disk.read(INTERRUPT_STATUS, 4));
+        assertFalse(vm.arch.irq_pending);
+    }
+
+    @Test
+    void writeAndFlush() throws IOException {
+        open(false);
+        byte[] data = new byte[3*SECTOR_SIZE];
+        new Random(10).nextBytes(data);
+        for (int i = 0; i < data.length; i++)
+            mem.write8(BUFFER + i, data[i]);
+        assertEquals(S_OK, request(T_OUT, SECTORS - 3, data.length));
+        assertEquals(1, mem.read32(USED + 8));
+        assertEquals(S_OK, request(T_FLUSH, 0, 0));
+        disk.close();
+        disk = null;
+
+        System.arraycopy(data, 0, contents, (SECTORS - 3)*SECTOR_SIZE, data.length);
+        assertArrayEquals(contents, Files.readAllBytes(image));
+    }
+
+    @Test
+    void outOfRange() throws IOException {
+        open(false);
+        /* One sector past the end, and sector numbers whose byte offset wraps around to the start */
+        assertEquals(S_IOERR, request(T_OUT, SECTORS - 1, 2*SECTOR_SIZE));
+        assertEquals(S_IOERR, request(T_OUT, SECTORS + 1, 0));
+        assertEquals(S_IOERR, request(T_OUT, 1L << 55, SECTOR_SIZE));
+        assertEquals(S_IOERR, request(T_IN, -1L, SECTOR_SIZE));
+        assertEquals(S_IOERR, request(T_IN, (1L << 54) + 1, SECTOR_SIZE));
+        /* Up to the very end is fine */
+        assertEquals(S_OK, request(T_IN, SECTORS - 1, SECTOR_SIZE));
+        disk.close();
+        disk = null;
+        assertArrayEquals(contents, Files.readAllBytes(image));
+    }
+
+    @Test
+    void readOnly() throws IOException {
+        open(true);
+        assertEquals(S_IOERR, request(T_OUT, 0, SECTOR_SIZE));
+        assertEquals(S_OK, request(T_IN, 0, SECTOR_SIZE));
+        assertEquals(S_OK, request(T_FLUSH, 0, 0));
+        disk.close();
+        disk = null;
+        assertArrayEquals(contents, Files.readAllBytes(image));
+    }
+
+    @Test
+    void unsupported() throws IOException {
+        open(false);
+        assertEquals(S_UNSUPP, request(99, 0, 0));
+    }
+
+    private void open(boolean readOnly) throws IOException {
+        disk = new VirtioBlock(image, readOnly);
+        vm.attachDisk(disk);
+        assertEquals(MAGIC_VALUE, disk.read(MAGIC, 4));
+        assertEquals(BLOCK_DEVICE, disk.read(DEVICE_ID, 4));
+        assertEquals(SECTORS, disk.read(CONFIG, 4));
+
+        reg(VirtioBlock.STATUS, 1 | 2);
+        reg(DRIVER_FEATURES_SEL, 1);
+        reg(DRIVER_FEATURES, 1);
+        reg(VirtioBlock.STATUS, 1 | 2 | STATUS_FEATURES_OK);
+        reg(QUEUE_SEL, 0);
+        reg(QUEUE_NUM, QUEUE_SIZE);
+        reg(QUEUE_DESC_LOW, (int)DESC);
+        reg(QUEUE_DRIVER_LOW, (int)AVAIL);
+        reg(QUEUE_DEVICE_LOW, (int)USED);
+        reg(QUEUE_READY, 1);
+        reg(VirtioBlock.STATUS, 1 | 2 | STATUS_FEATURES_OK | 4);
+    }
+
+    /*
+     * Runs one request: the header, the data buffer unless len is 0, and the status byte, which is
+     * returned. The status byte starts out as 0xFF, so a request the device never answered shows.
+     */
+    private int request(int type, long sector, int len) {
+        mem.write32(HEADER, type);
+        mem.write64(HEADER + 8, sector);
+        mem.write8(STATUS_BYTE, (byte)0xFF);
+        if (len > 0) {
+            descriptor(0, HEADER, HEADER_SIZE, DESC_NEXT, 1);
+            descriptor(1, BUFFER, len, DESC_NEXT | (type == T_IN ? DESC_WRITE : 0), 2);
+            descriptor(2, STATUS_BYTE, 1, DESC_WRITE, 0);
+        } else {
+            descriptor(0, HEADER, HEADER_SIZE, DESC_NEXT, 2);
+            descriptor(2, STATUS_BYTE, 1, DESC_WRITE, 0);
+        }
+        mem.write16(AVAIL + 4 + 2*(avail_idx % QUEUE_SIZE), (short)0);
+        mem.write16(AVAIL + 2, (short)++avail_idx);
+        reg(QUEUE_NOTIFY, 0);
+        assertEquals((short)avail_idx, mem.read16(USED + 2), "Request not completed");
+        return mem.read8(STATUS_BYTE) & 0xFF;
+    }
+
+    private void descriptor(int i, long addr, int len, int flags, int next) {
+        long d = DESC + 16L*i;
+        mem.write64(d, addr);
+        mem.write32(d + 8, len);
+        mem.write16(d + 12, (short)flags);
+        mem.write16(d + 14, (short)next);
+    }
+
+    private void reg(int offset, int value) {
+        disk.write(offset, 4, value);
+    }
+
+    private byte[] guest(long addr, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++)
+            b[i] = mem.read8(addr + i);
+        return b;
+    }
+}
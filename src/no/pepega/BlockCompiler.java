@@ -0,0 +1,568 @@
+package no.pepega;
+
+import java.lang.invoke.MethodHandles;
+
+import no.pepega.ClassBuilder.Code;
+
+import static no.pepega.ClassBuilder.Code.*;
+
+/**
+ * Translates a guest basic block into a hidden class. Guest registers live in JVM locals for the
+ * duration of the block and are written back to {@code regs} on every exit, memory accesses go
+ * through the same RISCV helpers the interpreter uses. A fault in one of them is precise: a handler
+ * writes the registers back and tells the cpu which instruction faulted before rethrowing.
+ */
+class BlockCompiler {
+    static final int MAX_BLOCK = 64;
+
+    private static final String BLOCK = "no/pepega/CompiledBlock";
+    private static final String CPU = "no/pepega/RISCV";
+
+    /*
+     * Locals: 0 = this, 1 = cpu, 2 = regs, then two slots per guest register x1..x31, then a temporary
+     * and the index of the last memory access in the block
+     */
+    private static final int CPU_SLOT = 1;
+    private static final int REGS_SLOT = 2;
+    private static final int TMP_SLOT = 3 + 2*31;
+    private static final int FAULT_SLOT = TMP_SLOT + 2;
+    private static final int MAX_LOCALS = FAULT_SLOT + 1;
+    private static final int MAX_STACK = 8;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private ClassBuilder cb;
+    private Code code;
+    private int written;
+    /* The instruction being emitted, and whether the block accesses memory at all */
+    private int current;
+    private boolean accesses;
+
+    /** Returns true for ops the compiler can translate. Anything else ends the block before it. */
+    static boolean canCompile(Instruction.Inst op) {
+        switch (op) {
+            case Fence: case FenceI:
+            case Csrrw: case Csrrs: case Csrrc: case Csrrwi: case Csrrsi: case Csrrci:
+            case Ecall: case Ebreak: case Mret: case Sret: case Wfi: case SfenceVma:
+            /* Only the decode cache fuses, the JIT decodes on its own */
+            case LuiAddi: case AuipcAddi: case AuipcJalr: case SlliSrli:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /** Returns true for ops that transfer control, and so end a basic block. */
+    static boolean endsBlock(Instruction.Inst op) {
+        switch (op) {
+            case Beq: case Bne: case Blt: case Bge: case Bltu: case Bgeu: case Jal: case Jalr: case AuipcJalr:
+            case Ecall: case Ebreak: case Mret: case Sret:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Compiles the block starting at pc, using the decoded instructions in insts. Returns null if the
+     * first instruction can't be compiled.
+     */
+    CompiledBlock compile(long pc, long[] insts, int count) {
+        if (count == 0)
+            return null;
+
+        cb = new ClassBuilder(BLOCK + "$$Jit", BLOCK);
+        code = new Code(MAX_STACK, MAX_LOCALS);
+        written = 0;
+        accesses = false;
+
+        int used = 0;
+        for (int n = 0; n < count; n++) {
+            long d = insts[n];
+            used |= 1 << Instruction.rs1(d) | 1 << Instruction.rs2(d) | 1 << Instruction.rd(d);
+        }
+        for (int r = 1; r < 32; r++) {
+            if ((used & (1 << r)) != 0) {
+                code.op(ALOAD, REGS_SLOT);
+                code.op(BIPUSH, r);
+                code.op(LALOAD);
+                code.op(LSTORE, slot(r));
+            }
+        }
+        code.op(ICONST_0);
+        code.op(ISTORE, FAULT_SLOT);
+        int start = code.length();
+
+        boolean exited = false;
+        for (int n = 0; n < count; n++) {
+            current = n;
+            exited = emit(insts[n], pc + 4L*n, n);
+        }
+        if (!exited)
+            exit(pc + 4L*count);
+        if (accesses)
+            faultHandler(start);
+
+        Code init = new Code(1, 1);
+        init.op(ALOAD, 0);
+        init.op2(INVOKESPECIAL, cb.methodRef(BLOCK, "<init>", "()V"));
+        init.op(RETURN);
+        cb.method(0, "<init>", "()V", init);
+        cb.method(0, "run", "(L" + CPU + ";[J)J", code);
+
+        try {
+            Class<?> c = lookup.defineHiddenClass(cb.toByteArray(), true).lookupClass();
+            CompiledBlock b = (CompiledBlock) c.getDeclaredConstructor().newInstance();
+            b.pc = pc;
+            b.length = count;
+            b.ops = Profile.blockOps(insts, count);
+            setExits(b, insts[count - 1], pc + 4L*(count - 1));
+            return b;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to load compiled block at " + Long.toHexString(pc), e);
+        } finally {
+            cb = null;
+            code = null;
+        }
+    }
+
+    /** Records the direct exits of the block, so Jit can chain it to its successors. */
+    private static void setExits(CompiledBlock b, long last, long lastPc) {
+        switch (Instruction.op(last)) {
+            case Beq: case Bne: case Blt: case Bge: case Bltu: case Bgeu:
+                b.takenPc = lastPc + Instruction.imm(last);
+                b.fallthroughPc = lastPc + 4;
+                break;
+            case Jal:
+                b.takenPc = lastPc + Instruction.imm(last);
+                break;
+            case Jalr:
+                break;
+            default:
+                b.fallthroughPc = lastPc + 4;
+        }
+    }
+
+    private static int slot(int reg) {
+        return 3 + 2*(reg - 1);
+    }
+
+    private void load(int reg) {
+        if (reg == 0)
+            code.op(LCONST_0);
+        else
+            code.op(LLOAD, slot(reg));
+    }
+
+    private void store(int reg) {
+        if (reg == 0) {
+            code.op(POP2);
+        } else {
+            code.op(LSTORE, slot(reg));
+            written |= 1 << reg;
+        }
+    }
+
+    private void pushInt(int v) {
+        if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+            code.op(BIPUSH, v & 0xff);
+        else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+            code.op2(SIPUSH, v & 0xffff);
+        else
+            code.op2(LDC_W, cb.integer(v));
+    }
+
+    private void pushLong(long v) {
+        if (v == 0) {
+            code.op(LCONST_0);
+        } else if (v == 1) {
+            code.op(LCONST_1);
+        } else if (v == (int)v) {
+            pushInt((int)v);
+            code.op(I2L);
+        } else {
+            code.op2(LDC2_W, cb.longConst(v));
+        }
+    }
+
+    private void invokeStatic(String owner, String name, String desc) {
+        code.op2(INVOKESTATIC, cb.methodRef(owner, name, desc));
+    }
+
+    private void invokeCpu(String name, String desc) {
+        code.op2(INVOKEVIRTUAL, cb.methodRef(CPU, name, desc));
+    }
+
+    /** Writes back every register the block has modified and returns the value on the stack as the next pc. */
+    private void exitWithStack() {
+        for (int r = 1; r < 32; r++) {
+            if ((written & (1 << r)) != 0) {
+                code.op(ALOAD, REGS_SLOT);
+                code.op(BIPUSH, r);
+                code.op(LLOAD, slot(r));
+                code.op(LASTORE);
+            }
+        }
+        code.op(LRETURN);
+    }
+
+    private void exit(long nextPc) {
+        pushLong(nextPc);
+        exitWithStack();
+    }
+
+    /**
+     * Catches anything thrown from start on. The registers are written back as they were before the
+     * faulting instruction, which is the last memory access, so the cpu can trap at it as the
+     * interpreter would.
+     */
+    private void faultHandler(int start) {
+        code.handler(start, code.length());
+        code.op(ALOAD, CPU_SLOT);
+        code.op(ILOAD, FAULT_SLOT);
+        invokeCpu("blockFaulted", "(I)V");
+        for (int r = 1; r < 32; r++) {
+            if ((written & (1 << r)) != 0) {
+                code.op(ALOAD, REGS_SLOT);
+                code.op(BIPUSH, r);
+                code.op(LLOAD, slot(r));
+                code.op(LASTORE);
+            }
+        }
+        code.op(ATHROW);
+    }
+
+    /** Pushes the cpu and the guest address rs1 + imm, ready for a memory helper call. */
+    private void address(int rs1, int imm) {
+        pushInt(current);
+        code.op(ISTORE, FAULT_SLOT);
+        accesses = true;
+        code.op(ALOAD, CPU_SLOT);
+        load(rs1);
+        if (imm != 0) {
+            pushLong(imm);
+            code.op(LADD);
+        }
+    }
+
+    private void binary(int rd, int rs1, int rs2, int op) {
+        load(rs1);
+        load(rs2);
+        code.op(op);
+        store(rd);
+    }
+
+    private void binaryImm(int rd, int rs1, int imm, int op) {
+        load(rs1);
+        pushLong(imm);
+        code.op(op);
+        store(rd);
+    }
+
+    /** Calls a static (JJ)J helper with rs1 and rs2. */
+    private void binaryStatic(int rd, int rs1, int rs2, String owner, String name) {
+        load(rs1);
+        load(rs2);
+        invokeStatic(owner, name, "(JJ)J");
+        store(rd);
+    }
+
+    /** 32-bit op on the low words, sign-extended back to 64 bits. */
+    private void binaryWord(int rd, int rs1, int rs2, int op) {
+        load(rs1);
+        code.op(L2I);
+        load(rs2);
+        code.op(L2I);
+        code.op(op);
+        code.op(I2L);
+        store(rd);
+    }
+
+    private void shift(int rd, int rs1, int rs2, int op) {
+        load(rs1);
+        load(rs2);
+        code.op(L2I);
+        code.op(op);
+        store(rd);
+    }
+
+    private void shiftImm(int rd, int rs1, int shamt, int op) {
+        load(rs1);
+        code.op(BIPUSH, shamt & 0x3f);
+        code.op(op);
+        store(rd);
+    }
+
+    private void shiftImmWord(int rd, int rs1, int shamt, int op) {
+        load(rs1);
+        code.op(L2I);
+        code.op(BIPUSH, shamt & 0x1f);
+        code.op(op);
+        code.op(I2L);
+        store(rd);
+    }
+
+    /** Stores 1 to rd if the comparison result on the stack is negative, else 0. */
+    private void storeLessThan(int rd) {
+        code.op(BIPUSH, 31);
+        code.op(IUSHR);
+        code.op(I2L);
+        store(rd);
+    }
+
+    /** Calls an atomic helper on the cpu with the address in rs1 and, unless negative, amo and rs2. */
+    private void atomic(int rd, int rs1, int amo, int rs2, String name) {
+        address(rs1, 0);
+        if (amo >= 0)
+            pushInt(amo);
+        if (rs2 >= 0)
+            load(rs2);
+        invokeCpu(name, amo >= 0 ? "(JIJ)J" : rs2 >= 0 ? "(JJ)J" : "(J)J");
+        store(rd);
+    }
+
+    private void branch(int rs1, int rs2, int ifTaken, boolean unsigned, long pc, int imm) {
+        load(rs1);
+        load(rs2);
+        if (unsigned)
+            invokeStatic("java/lang/Long", "compareUnsigned", "(JJ)I");
+        else
+            code.op(LCMP);
+        int taken = code.branch(ifTaken);
+        exit(pc + 4);
+        code.patch(taken);
+        exit(pc + imm);
+    }
+
+    /** Emits one instruction, the n-th of the block. Returns true if it left the block. */
+    private boolean emit(long d, long pc, int n) {
+        int rd = Instruction.rd(d);
+        int rs1 = Instruction.rs1(d);
+        int rs2 = Instruction.rs2(d);
+        int imm = Instruction.imm(d);
+
+        switch (Instruction.op(d)) {
+            case Add: binary(rd, rs1, rs2, LADD); break;
+            case Sub: binary(rd, rs1, rs2, LSUB); break;
+            case And: binary(rd, rs1, rs2, LAND); break;
+            case Or: binary(rd, rs1, rs2, LOR); break;
+            case Xor: binary(rd, rs1, rs2, LXOR); break;
+            case Addi: binaryImm(rd, rs1, imm, LADD); break;
+            case Andi: binaryImm(rd, rs1, imm, LAND); break;
+            case Ori: binaryImm(rd, rs1, imm, LOR); break;
+            case Xori: binaryImm(rd, rs1, imm, LXOR); break;
+            case Addw: binaryWord(rd, rs1, rs2, IADD); break;
+            case Subw: binaryWord(rd, rs1, rs2, ISUB); break;
+            case Mul: binary(rd, rs1, rs2, LMUL); break;
+            case Mulw: binaryWord(rd, rs1, rs2, IMUL); break;
+            case Mulh: binaryStatic(rd, rs1, rs2, "java/lang/Math", "multiplyHigh"); break;
+            case Mulhsu: binaryStatic(rd, rs1, rs2, CPU, "mulhsu"); break;
+            case Mulhu: binaryStatic(rd, rs1, rs2, CPU, "mulhu"); break;
+            case Div: binaryStatic(rd, rs1, rs2, CPU, "div"); break;
+            case Divu: binaryStatic(rd, rs1, rs2, CPU, "divu"); break;
+            case Rem: binaryStatic(rd, rs1, rs2, CPU, "rem"); break;
+            case Remu: binaryStatic(rd, rs1, rs2, CPU, "remu"); break;
+            case Divw: binaryStatic(rd, rs1, rs2, CPU, "divw"); break;
+            case Divuw: binaryStatic(rd, rs1, rs2, CPU, "divuw"); break;
+            case Remw: binaryStatic(rd, rs1, rs2, CPU, "remw"); break;
+            case Remuw: binaryStatic(rd, rs1, rs2, CPU, "remuw"); break;
+            /* cycles only grows by the block length once the block is done, so counters add how far in they are */
+            case RdCycle: {
+                code.op(ALOAD, CPU_SLOT);
+                pushInt(n);
+                invokeCpu("cycle", "(I)J");
+                store(rd);
+                break;
+            }
+            case RdInstRet: {
+                code.op(ALOAD, CPU_SLOT);
+                pushInt(n);
+                invokeCpu("instret", "(I)J");
+                store(rd);
+                break;
+            }
+            case RdTime: {
+                code.op(ALOAD, CPU_SLOT);
+                invokeCpu("time", "()J");
+                store(rd);
+                break;
+            }
+            case Addiw: {
+                load(rs1);
+                pushLong(imm);
+                code.op(LADD);
+                code.op(L2I);
+                code.op(I2L);
+                store(rd);
+                break;
+            }
+            case Slt: {
+                load(rs1);
+                load(rs2);
+                code.op(LCMP);
+                storeLessThan(rd);
+                break;
+            }
+            case Sltu: {
+                load(rs1);
+                load(rs2);
+                invokeStatic("java/lang/Long", "compareUnsigned", "(JJ)I");
+                storeLessThan(rd);
+                break;
+            }
+            case Slti: {
+                load(rs1);
+                pushLong(imm);
+                code.op(LCMP);
+                storeLessThan(rd);
+                break;
+            }
+            case Sltiu: {
+                load(rs1);
+                pushLong(imm);
+                invokeStatic("java/lang/Long", "compareUnsigned", "(JJ)I");
+                storeLessThan(rd);
+                break;
+            }
+            case Sll: shift(rd, rs1, rs2, LSHL); break;
+            case Srl: shift(rd, rs1, rs2, LUSHR); break;
+            case Sra: shift(rd, rs1, rs2, LSHR); break;
+            case Slli: shiftImm(rd, rs1, imm, LSHL); break;
+            case Srli: shiftImm(rd, rs1, imm, LUSHR); break;
+            case Srai: shiftImm(rd, rs1, imm, LSHR); break;
+            case Sllw: binaryWord(rd, rs1, rs2, ISHL); break;
+            case Srlw: binaryWord(rd, rs1, rs2, IUSHR); break;
+            case Sraw: binaryWord(rd, rs1, rs2, ISHR); break;
+            case Slliw: shiftImmWord(rd, rs1, imm, ISHL); break;
+            case Srliw: shiftImmWord(rd, rs1, imm, IUSHR); break;
+            case Sraiw: shiftImmWord(rd, rs1, imm, ISHR); break;
+            case Lui: {
+                pushLong(imm);
+                store(rd);
+                break;
+            }
+            case Auipc: {
+                pushLong(pc + imm);
+                store(rd);
+                break;
+            }
+            case Lb: {
+                address(rs1, imm);
+                invokeCpu("read8", "(J)B");
+                code.op(I2L);
+                store(rd);
+                break;
+            }
+            case Lbu: {
+                address(rs1, imm);
+                invokeCpu("read8", "(J)B");
+                invokeStatic("java/lang/Byte", "toUnsignedLong", "(B)J");
+                store(rd);
+                break;
+            }
+            case Lh: {
+                address(rs1, imm);
+                invokeCpu("read16", "(J)S");
+                code.op(I2L);
+                store(rd);
+                break;
+            }
+            case Lhu: {
+                address(rs1, imm);
+                invokeCpu("read16", "(J)S");
+                invokeStatic("java/lang/Short", "toUnsignedLong", "(S)J");
+                store(rd);
+                break;
+            }
+            case Lw: {
+                address(rs1, imm);
+                invokeCpu("read32", "(J)I");
+                code.op(I2L);
+                store(rd);
+                break;
+            }
+            case Lwu: {
+                address(rs1, imm);
+                invokeCpu("read32", "(J)I");
+                invokeStatic("java/lang/Integer", "toUnsignedLong", "(I)J");
+                store(rd);
+                break;
+            }
+            case Ld: {
+                address(rs1, imm);
+                invokeCpu("read64", "(J)J");
+                store(rd);
+                break;
+            }
+            case Sb: {
+                address(rs1, imm);
+                load(rs2);
+                code.op(L2I);
+                code.op(I2B);
+                invokeCpu("write8", "(JB)V");
+                break;
+            }
+            case Sh: {
+                address(rs1, imm);
+                load(rs2);
+                code.op(L2I);
+                code.op(I2S);
+                invokeCpu("write16", "(JS)V");
+                break;
+            }
+            case Sw: {
+                address(rs1, imm);
+                load(rs2);
+                code.op(L2I);
+                invokeCpu("write32", "(JI)V");
+                break;
+            }
+            case Sd: {
+                address(rs1, imm);
+                load(rs2);
+                invokeCpu("write64", "(JJ)V");
+                break;
+            }
+            case LrW: atomic(rd, rs1, -1, -1, "lrW"); break;
+            case LrD: atomic(rd, rs1, -1, -1, "lrD"); break;
+            case ScW: atomic(rd, rs1, -1, rs2, "scW"); break;
+            case ScD: atomic(rd, rs1, -1, rs2, "scD"); break;
+            case AmoswapW: case AmoaddW: case AmoxorW: case AmoandW: case AmoorW:
+            case AmominW: case AmomaxW: case AmominuW: case AmomaxuW:
+                atomic(rd, rs1, RISCV.amoOp(Instruction.op(d)), rs2, "amoW");
+                break;
+            case AmoswapD: case AmoaddD: case AmoxorD: case AmoandD: case AmoorD:
+            case AmominD: case AmomaxD: case AmominuD: case AmomaxuD:
+                atomic(rd, rs1, RISCV.amoOp(Instruction.op(d)), rs2, "amoD");
+                break;
+            case Beq: branch(rs1, rs2, IFEQ, false, pc, imm); return true;
+            case Bne: branch(rs1, rs2, IFNE, false, pc, imm); return true;
+            case Blt: branch(rs1, rs2, IFLT, false, pc, imm); return true;
+            case Bge: branch(rs1, rs2, IFGE, false, pc, imm); return true;
+            case Bltu: branch(rs1, rs2, IFLT, true, pc, imm); return true;
+            case Bgeu: branch(rs1, rs2, IFGE, true, pc, imm); return true;
+            case Jal: {
+                pushLong(pc + 4);
+                store(rd);
+                exit(pc + imm);
+                return true;
+            }
+            case Jalr: {
+                load(rs1);
+                pushLong(imm);
+                code.op(LADD);
+                pushLong(~1L);
+                code.op(LAND);
+                code.op(LSTORE, TMP_SLOT);
+                pushLong(pc + 4);
+                store(rd);
+                code.op(LLOAD, TMP_SLOT);
+                exitWithStack();
+                return true;
+            }
+            default:
+                throw new IllegalArgumentException("Can't compile " + Instruction.op(d));
+        }
+        return false;
+    }
+}
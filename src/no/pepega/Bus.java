@@ -0,0 +1,87 @@
+package no.pepega;
+
+import java.util.Arrays;
+
+/**
+ * The physical address space past RAM, where devices are attached at address ranges. RAM never comes
+ * here, the hart's memory helpers check for it first, so only device accesses pay for the lookup. That
+ * is a binary search over the sorted range starts, with no boxing or allocation on the way.
+ *
+ * Devices of a machine are at fixed addresses from MMIO_BASE:
+ * <pre>
+ *   MMIO_BASE + 0x000000   GPU registers, see {@link Gpu}
+ *   MMIO_BASE + 0x001000   virtio block device, see {@link VirtioBlock}
+ *   MMIO_BASE + 0x010000   screen text, see {@link Screen}
+ *   MMIO_BASE + 0x100000   EEPROM contents, read-only
+ * </pre>
+ */
+public final class Bus {
+    /** Where device ranges start, guest RAM must end below it. */
+    public static final long MMIO_BASE = 1L << 32;
+    static final long GPU = MMIO_BASE;
+    static final long DISK = MMIO_BASE + 0x1000;
+    static final long SCREEN = MMIO_BASE + 0x10000;
+    static final long EEPROM = MMIO_BASE + 0x100000;
+
+    /* Sorted by start, ranges never overlap. Replaced as a whole when a device is attached */
+    private long[] starts = new long[0];
+    private long[] ends = new long[0];
+    private Device[] devices = new Device[0];
+
+    /** Attaches a device at base. Only while no hart is running. */
+    public void attach(long base, Device device) {
+        long end = base + device.size();
+        if (Long.compareUnsigned(base, MMIO_BASE) < 0 || Long.compareUnsigned(end, base) <= 0)
+            throw new IllegalArgumentException(String.format("Bad device range 0x%X-0x%X", base, end));
+        int at = 0;
+        while (at < starts.length && Long.compareUnsigned(starts[at], base) < 0)
+            at++;
+        if ((at > 0 && Long.compareUnsigned(ends[at - 1], base) > 0) || (at < starts.length && Long.compareUnsigned(starts[at], end) < 0))
+            throw new IllegalArgumentException(String.format("Device range 0x%X-0x%X overlaps another", base, end));
+
+        long[] s = new long[starts.length + 1];
+        long[] e = new long[s.length];
+        Device[] d = new Device[s.length];
+        System.arraycopy(starts, 0, s, 0, at);
+        System.arraycopy(ends, 0, e, 0, at);
+        System.arraycopy(devices, 0, d, 0, at);
+        s[at] = base;
+        e[at] = end;
+        d[at] = device;
+        System.arraycopy(starts, at, s, at + 1, starts.length - at);
+        System.arraycopy(ends, at, e, at + 1, starts.length - at);
+        System.arraycopy(devices, at, d, at + 1, starts.length - at);
+        starts = s;
+        ends = e;
+        devices = d;
+    }
+
+    /** Returns the index of the device whose range holds addr, or -1 if there is none. */
+    int find(long addr) {
+        long[] s = starts;
+        int lo = 0;
+        int hi = s.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(s[mid], addr) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return hi >= 0 && Long.compareUnsigned(addr, ends[hi]) < 0 ? hi : -1;
+    }
+
+    /** Reads from the device at index, as returned by {@link #find}. */
+    long read(int index, long addr, int width) {
+        return devices[index].read(addr - starts[index], width);
+    }
+
+    void write(int index, long addr, int width, long value) {
+        devices[index].write(addr - starts[index], width, value);
+    }
+
+    /** The attached devices, in address order. */
+    public Device[] devices() {
+        return Arrays.copyOf(devices, devices.length);
+    }
+}
@@ -0,0 +1,251 @@
+package no.pepega;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer for BlockCompiler: one class, a constant pool and methods with
+ * straight-line bytecode, forward branches and catch-all exception handlers. Classes are emitted as version 49 so the verifier
+ * infers types itself and we don't have to compute stack map frames.
+ */
+class ClassBuilder {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int methodCount = 0;
+
+    private final int thisClass;
+    private final int superClass;
+
+    ClassBuilder(String name, String superName) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+    }
+
+    private int entry(String key, int slots, Writer w) {
+        Integer idx = poolIndex.get(key);
+        if (idx != null)
+            return idx;
+        try {
+            w.write(poolOut);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        int i = poolCount;
+        poolCount += slots;
+        poolIndex.put(key, i);
+        return i;
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    int utf8(String s) {
+        return entry("U" + s, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(s);
+        });
+    }
+
+    int integer(int v) {
+        return entry("I" + v, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(v);
+        });
+    }
+
+    int longConst(long v) {
+        return entry("J" + v, 2, out -> {
+            out.writeByte(5);
+            out.writeLong(v);
+        });
+    }
+
+    int classRef(String name) {
+        int n = utf8(name);
+        return entry("C" + name, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(n);
+        });
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        int c = classRef(owner);
+        int n = utf8(name);
+        int d = utf8(desc);
+        int nt = entry("N" + name + ":" + desc, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(n);
+            out.writeShort(d);
+        });
+        return entry("M" + owner + "." + name + ":" + desc, 1, out -> {
+            out.writeByte(10);
+            out.writeShort(c);
+            out.writeShort(nt);
+        });
+    }
+
+    void method(int access, String name, String desc, Code code) {
+        try {
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(utf8(name));
+            methodsOut.writeShort(utf8(desc));
+            methodsOut.writeShort(1);
+            methodsOut.writeShort(utf8("Code"));
+            methodsOut.writeInt(12 + code.length() + 2*code.handlerCount);
+            methodsOut.writeShort(code.maxStack);
+            methodsOut.writeShort(code.maxLocals);
+            methodsOut.writeInt(code.length());
+            methodsOut.write(code.bytes, 0, code.length());
+            methodsOut.writeShort(code.handlerCount / 4);
+            for (int i = 0; i < code.handlerCount; i++)
+                methodsOut.writeShort(code.handlers[i]);
+            methodsOut.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** A method body. Only the opcodes BlockCompiler needs are named here. */
+    static class Code {
+        static final int ICONST_0 = 0x03;
+        static final int LCONST_0 = 0x09;
+        static final int LCONST_1 = 0x0a;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC_W = 0x13;
+        static final int LDC2_W = 0x14;
+        static final int ILOAD = 0x15;
+        static final int LLOAD = 0x16;
+        static final int ALOAD = 0x19;
+        static final int LALOAD = 0x2f;
+        static final int ISTORE = 0x36;
+        static final int LSTORE = 0x37;
+        static final int LASTORE = 0x50;
+        static final int POP2 = 0x58;
+        static final int IADD = 0x60;
+        static final int LADD = 0x61;
+        static final int ISUB = 0x64;
+        static final int LSUB = 0x65;
+        static final int IMUL = 0x68;
+        static final int LMUL = 0x69;
+        static final int ISHL = 0x78;
+        static final int LSHL = 0x79;
+        static final int ISHR = 0x7a;
+        static final int LSHR = 0x7b;
+        static final int IUSHR = 0x7c;
+        static final int LUSHR = 0x7d;
+        static final int LAND = 0x7f;
+        static final int LOR = 0x81;
+        static final int LXOR = 0x83;
+        static final int I2L = 0x85;
+        static final int L2I = 0x88;
+        static final int I2B = 0x91;
+        static final int I2S = 0x93;
+        static final int LCMP = 0x94;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IFLT = 0x9b;
+        static final int IFGE = 0x9c;
+        static final int LRETURN = 0xad;
+        static final int RETURN = 0xb1;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int ATHROW = 0xbf;
+
+        byte[] bytes = new byte[256];
+        /* Exception table entries: start, end, handler, and 0 for any exception */
+        int[] handlers = new int[4];
+        int handlerCount;
+        int pos = 0;
+        int maxStack;
+        int maxLocals;
+
+        Code(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        int length() {
+            return pos;
+        }
+
+        void op(int op) {
+            if (pos == bytes.length)
+                bytes = java.util.Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[pos++] = (byte)op;
+        }
+
+        void op(int op, int u1) {
+            op(op);
+            op(u1);
+        }
+
+        void op2(int op, int u2) {
+            op(op);
+            op(u2 >>> 8);
+            op(u2);
+        }
+
+        /** Emits a branch with a placeholder offset, returning the position to hand to {@link #patch}. */
+        int branch(int op) {
+            int at = pos;
+            op2(op, 0);
+            return at;
+        }
+
+        /** Makes the code from the current position on the handler for anything thrown between start and end. */
+        void handler(int start, int end) {
+            if (handlerCount == handlers.length)
+                handlers = java.util.Arrays.copyOf(handlers, handlers.length * 2);
+            handlers[handlerCount++] = start;
+            handlers[handlerCount++] = end;
+            handlers[handlerCount++] = pos;
+            handlers[handlerCount++] = 0;
+        }
+
+        /** Points the branch emitted at the given position to the current position. */
+        void patch(int at) {
+            int offset = pos - at;
+            bytes[at + 1] = (byte)(offset >>> 8);
+            bytes[at + 2] = (byte)offset;
+        }
+    }
+}
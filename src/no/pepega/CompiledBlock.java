@@ -0,0 +1,23 @@
+package no.pepega;
+
+/** A guest basic block translated to JVM bytecode by {@link BlockCompiler}. */
+abstract class CompiledBlock {
+    /** Guest pc of the first instruction. */
+    long pc;
+    /** Number of guest instructions in the block. */
+    int length;
+    /** Cleared when the page holding the block is invalidated, so links to it are dropped. */
+    boolean valid = true;
+    /** Op ordinals of the instructions, only kept when profiling. */
+    int[] ops;
+
+    /* Direct exits, known when the block is compiled. -1 if the block has no such exit. */
+    long takenPc = -1;
+    long fallthroughPc = -1;
+    /* Blocks linked to the direct exits, filled in lazily by Jit */
+    CompiledBlock taken;
+    CompiledBlock fallthrough;
+
+    /** Runs the whole block against the given hart and returns the pc to continue at. */
+    abstract long run(RISCV cpu, long[] regs);
+}
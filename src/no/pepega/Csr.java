@@ -0,0 +1,406 @@
+package no.pepega;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Control and status registers of one hart: the counters, and the machine and supervisor registers
+ * needed for traps and paging. Machine, supervisor and user mode exist.
+ *
+ * cycle and instret aren't counted here. The hart counts executed instructions in a plain int per
+ * block, and the 64-bit counters are derived from that when read, so keeping them costs nothing while
+ * running. Every instruction takes one cycle, so mcycle and minstret only differ if the guest writes
+ * one of them.
+ */
+class Csr {
+    /* CSR numbers */
+    static final int CYCLE = 0xC00;
+    static final int TIME = 0xC01;
+    static final int INSTRET = 0xC02;
+    static final int HPMCOUNTER3 = 0xC03;
+    static final int HPMCOUNTER31 = 0xC1F;
+    static final int SSTATUS = 0x100;
+    static final int SIE = 0x104;
+    static final int STVEC = 0x105;
+    static final int SCOUNTEREN = 0x106;
+    static final int SSCRATCH = 0x140;
+    static final int SEPC = 0x141;
+    static final int SCAUSE = 0x142;
+    static final int STVAL = 0x143;
+    static final int SIP = 0x144;
+    static final int SATP = 0x180;
+    static final int MSTATUS = 0x300;
+    static final int MISA = 0x301;
+    static final int MEDELEG = 0x302;
+    static final int MIDELEG = 0x303;
+    static final int MIE = 0x304;
+    static final int MTVEC = 0x305;
+    static final int MCOUNTEREN = 0x306;
+    static final int MCOUNTINHIBIT = 0x320;
+    static final int MHPMEVENT3 = 0x323;
+    static final int MHPMEVENT31 = 0x33F;
+    static final int MSCRATCH = 0x340;
+    static final int MEPC = 0x341;
+    static final int MCAUSE = 0x342;
+    static final int MTVAL = 0x343;
+    static final int MIP = 0x344;
+    static final int MCYCLE = 0xB00;
+    static final int MINSTRET = 0xB02;
+    static final int MHPMCOUNTER3 = 0xB03;
+    static final int MHPMCOUNTER31 = 0xB1F;
+    static final int MVENDORID = 0xF11;
+    static final int MARCHID = 0xF12;
+    static final int MIMPID = 0xF13;
+    static final int MHARTID = 0xF14;
+    static final int MCONFIGPTR = 0xF15;
+
+    /* mstatus fields. MPRV, TVM, TW and TSR aren't implemented and read as zero */
+    static final long MSTATUS_SIE = 1L << 1;
+    static final long MSTATUS_MIE = 1L << 3;
+    static final long MSTATUS_SPIE = 1L << 5;
+    static final long MSTATUS_MPIE = 1L << 7;
+    static final long MSTATUS_SPP = 1L << 8;
+    static final long MSTATUS_MPP = 3L << 11;
+    static final long MSTATUS_SUM = 1L << 18;
+    static final long MSTATUS_MXR = 1L << 19;
+    /* UXL and SXL, both fixed at 64 bits */
+    private static final long MSTATUS_UXL = 2L << 32;
+    private static final long MSTATUS_XL = MSTATUS_UXL | 2L << 34;
+    private static final long SSTATUS_WRITABLE = MSTATUS_SIE | MSTATUS_SPIE | MSTATUS_SPP | MSTATUS_SUM | MSTATUS_MXR;
+    private static final long MSTATUS_WRITABLE = SSTATUS_WRITABLE | MSTATUS_MIE | MSTATUS_MPIE | MSTATUS_MPP;
+    /* sstatus is a view of mstatus */
+    private static final long SSTATUS_MASK = SSTATUS_WRITABLE | MSTATUS_UXL;
+
+    /* Interrupt bits in mie/mip */
+    static final long SSI = 1L << 1;
+    static final long MSI = 1L << 3;
+    static final long STI = 1L << 5;
+    static final long MTI = 1L << 7;
+    static final long SEI = 1L << 9;
+    static final long MEI = 1L << 11;
+    private static final long S_INTERRUPTS = SSI | STI | SEI;
+    /* Interrupts by priority, highest first */
+    private static final int[] PRIORITY = {11, 3, 7, 9, 1, 5};
+
+    /* Exceptions that can be delegated to S mode: all but ecall from M mode and the reserved ones */
+    private static final long MEDELEG_WRITABLE = 0xB3FF;
+
+    /* mcause values */
+    static final long CAUSE_ILLEGAL_INSTRUCTION = 2;
+    static final long CAUSE_BREAKPOINT = 3;
+    /* Plus the privilege mode the ecall came from */
+    static final long CAUSE_ECALL_U = 8;
+    static final long CAUSE_INTERRUPT = 1L << 63;
+
+    /* RV64 with I, M and A, and S and U mode */
+    static final long MISA_VALUE = 2L << 62 | 1 << ('I' - 'A') | 1 << ('M' - 'A') | 1 << ('A' - 'A')
+            | 1 << ('S' - 'A') | 1 << ('U' - 'A');
+
+    static final int PRIV_U = 0;
+    static final int PRIV_S = 1;
+    static final int PRIV_M = 3;
+
+    private final RISCV hart;
+
+    int priv = PRIV_M;
+    long mstatus = MSTATUS_XL;
+    long mie;
+    long mtvec;
+    long mscratch;
+    long mepc;
+    long mcause;
+    long mtval;
+    long mcounteren;
+    long medeleg;
+    long mideleg;
+    /* mip bits other than MSIP and MEIP, which come from the hart's pending IPI and interrupt line */
+    long mip;
+    long stvec;
+    long sscratch;
+    long sepc;
+    long scause;
+    long stval;
+    long scounteren;
+    /* Mode and root page table only, there are no ASIDs */
+    long satp;
+    /* What the guest wrote to mcycle minus instret at the time */
+    long cycle_offset;
+
+    Csr(RISCV hart) {
+        this.hart = hart;
+    }
+
+    /** Thrown for an access to a CSR that doesn't exist or can't be written, the hart traps on it. */
+    static class IllegalAccess extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        IllegalAccess() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final IllegalAccess ILLEGAL = new IllegalAccess();
+
+    long read(int csr) throws IllegalAccess {
+        /* Bits 9 and 8 of the number are the lowest privilege mode allowed to access it */
+        if (((csr >>> 8) & 3) > priv)
+            throw ILLEGAL;
+        switch (csr) {
+            case CYCLE: case MCYCLE: return hart.cycle(0);
+            case INSTRET: case MINSTRET: return hart.instret(0);
+            case TIME: return hart.vm.time();
+            case MSTATUS: return mstatus;
+            case MISA: return MISA_VALUE;
+            case MEDELEG: return medeleg;
+            case MIDELEG: return mideleg;
+            case MIE: return mie;
+            case MTVEC: return mtvec;
+            case MCOUNTEREN: return mcounteren;
+            case MCOUNTINHIBIT: return 0;
+            case MSCRATCH: return mscratch;
+            case MEPC: return mepc;
+            case MCAUSE: return mcause;
+            case MTVAL: return mtval;
+            case MIP: return pending();
+            case MVENDORID: case MARCHID: case MIMPID: case MCONFIGPTR: return 0;
+            case MHARTID: return hart.hartid;
+            case SSTATUS: return mstatus & SSTATUS_MASK;
+            case SIE: return mie & mideleg;
+            case STVEC: return stvec;
+            case SCOUNTEREN: return scounteren;
+            case SSCRATCH: return sscratch;
+            case SEPC: return sepc;
+            case SCAUSE: return scause;
+            case STVAL: return stval;
+            case SIP: return pending() & mideleg;
+            case SATP: return satp;
+            default:
+                /* No performance counters beyond cycle and instret, they read as zero */
+                if ((csr >= HPMCOUNTER3 && csr <= HPMCOUNTER31) || (csr >= MHPMCOUNTER3 && csr <= MHPMCOUNTER31)
+                        || (csr >= MHPMEVENT3 && csr <= MHPMEVENT31))
+                    return 0;
+                throw ILLEGAL;
+        }
+    }
+
+    void write(int csr, long value) throws IllegalAccess {
+        /* The top two bits of the number set read-only CSRs apart */
+        if ((csr >>> 10) == 3 || ((csr >>> 8) & 3) > priv)
+            throw ILLEGAL;
+        switch (csr) {
+            case MCYCLE: cycle_offset = value - hart.instret(0); break;
+            case MINSTRET: {
+                long cycle = hart.instret(0) + cycle_offset;
+                hart.setInstret(value);
+                cycle_offset = cycle - value;
+                break;
+            }
+            case MSTATUS: {
+                /* MPP can't hold the reserved mode 2 */
+                if ((value & MSTATUS_MPP) == 2L << 11)
+                    value = (value & ~MSTATUS_MPP) | (mstatus & MSTATUS_MPP);
+                setStatus((mstatus & ~MSTATUS_WRITABLE) | (value & MSTATUS_WRITABLE));
+                break;
+            }
+            case MISA: case MCOUNTINHIBIT: break;
+            case MEDELEG: medeleg = value & MEDELEG_WRITABLE; break;
+            case MIDELEG: mideleg = value & S_INTERRUPTS; break;
+            case MIE: mie = value & (MSI | MTI | MEI | S_INTERRUPTS); break;
+            /* Direct mode only */
+            case MTVEC: mtvec = value & ~3L; break;
+            case MCOUNTEREN: mcounteren = value & 0xFFFFFFFFL; break;
+            case MSCRATCH: mscratch = value; break;
+            case MEPC: mepc = value & ~3L; break;
+            case MCAUSE: mcause = value; break;
+            case MTVAL: mtval = value; break;
+            case MIP: {
+                /* There is no CLINT yet, so clearing MSIP here is how a guest acknowledges an IPI */
+                if ((value & MSI) == 0)
+                    hart.ipi_pending = false;
+                mip = (mip & ~S_INTERRUPTS) | (value & S_INTERRUPTS);
+                break;
+            }
+            case SSTATUS: setStatus((mstatus & ~SSTATUS_WRITABLE) | (value & SSTATUS_WRITABLE)); break;
+            case SIE: mie = (mie & ~mideleg) | (value & mideleg); break;
+            case STVEC: stvec = value & ~3L; break;
+            case SCOUNTEREN: scounteren = value & 0xFFFFFFFFL; break;
+            case SSCRATCH: sscratch = value; break;
+            case SEPC: sepc = value & ~3L; break;
+            case SCAUSE: scause = value; break;
+            case STVAL: stval = value; break;
+            /* Only the software interrupt can be raised or cleared from S mode */
+            case SIP: mip = (mip & ~(mideleg & SSI)) | (value & mideleg & SSI); break;
+            case SATP: {
+                /* Writes of unsupported modes are ignored */
+                long mode = value >>> 60;
+                if (mode != Mmu.MODE_BARE && mode != Mmu.MODE_SV39)
+                    break;
+                satp = value & (0xFL << 60 | (1L << 44) - 1);
+                hart.mmu.update(true);
+                break;
+            }
+            default:
+                if ((csr >= MHPMCOUNTER3 && csr <= MHPMCOUNTER31) || (csr >= MHPMEVENT3 && csr <= MHPMEVENT31))
+                    break;
+                throw ILLEGAL;
+        }
+    }
+
+    /** Interrupts waiting, whether or not they are enabled. */
+    long pending() {
+        return mip | (hart.ipi_pending ? MSI : 0) | (hart.irq_pending ? MEI : 0);
+    }
+
+    /**
+     * Returns the cause of the interrupt that should be taken now, or 0 if there is none. Interrupts
+     * for M mode come first, delegated ones are only taken below M mode.
+     */
+    long interrupt() {
+        long ready = pending() & mie;
+        if (ready == 0)
+            return 0;
+        long m = ready & ~mideleg;
+        if (m == 0 || (priv == PRIV_M && (mstatus & MSTATUS_MIE) == 0)) {
+            m = 0;
+            if (priv < PRIV_S || (priv == PRIV_S && (mstatus & MSTATUS_SIE) != 0))
+                m = ready & mideleg;
+            if (m == 0)
+                return 0;
+        }
+        for (int bit : PRIORITY) {
+            if ((m & (1L << bit)) != 0)
+                return CAUSE_INTERRUPT | bit;
+        }
+        return 0;
+    }
+
+    /**
+     * Enters the trap handler, returns the pc to continue at. Traps below M mode go to S mode if
+     * medeleg or mideleg delegate them.
+     */
+    long trap(long cause, long pc, long tval) {
+        long deleg = cause < 0 ? mideleg : medeleg;
+        if (priv <= PRIV_S && (deleg & (1L << (cause & 63))) != 0) {
+            sepc = pc;
+            scause = cause;
+            stval = tval;
+            long spie = (mstatus & MSTATUS_SIE) != 0 ? MSTATUS_SPIE : 0;
+            mstatus = (mstatus & ~(MSTATUS_SIE | MSTATUS_SPIE | MSTATUS_SPP)) | spie | (long)priv << 8;
+            setPriv(PRIV_S);
+            return stvec;
+        }
+        mepc = pc;
+        mcause = cause;
+        mtval = tval;
+        long mpie = (mstatus & MSTATUS_MIE) != 0 ? MSTATUS_MPIE : 0;
+        mstatus = (mstatus & ~(MSTATUS_MIE | MSTATUS_MPIE | MSTATUS_MPP)) | mpie | (long)priv << 11;
+        setPriv(PRIV_M);
+        return mtvec;
+    }
+
+    /** Returns from the trap handler, returns the pc to continue at. */
+    long mret() {
+        int to = (int)((mstatus & MSTATUS_MPP) >>> 11);
+        long mie = (mstatus & MSTATUS_MPIE) != 0 ? MSTATUS_MIE : 0;
+        mstatus = (mstatus & ~(MSTATUS_MIE | MSTATUS_MPP)) | mie | MSTATUS_MPIE;
+        setPriv(to);
+        return mepc;
+    }
+
+    /** Returns from an S mode trap handler, returns the pc to continue at. */
+    long sret() {
+        int to = (mstatus & MSTATUS_SPP) != 0 ? PRIV_S : PRIV_U;
+        long sie = (mstatus & MSTATUS_SPIE) != 0 ? MSTATUS_SIE : 0;
+        mstatus = (mstatus & ~(MSTATUS_SIE | MSTATUS_SPP)) | sie | MSTATUS_SPIE;
+        setPriv(to);
+        return sepc;
+    }
+
+    private void setPriv(int to) {
+        if (to != priv) {
+            priv = to;
+            hart.mmu.update(false);
+        }
+    }
+
+    /* SUM and MXR change what pages allow, which the TLB entries were made for */
+    private void setStatus(long value) {
+        boolean flush = ((mstatus ^ value) & (MSTATUS_SUM | MSTATUS_MXR)) != 0;
+        mstatus = value;
+        if (flush)
+            hart.mmu.update(true);
+    }
+
+    void copyFrom(Csr from) {
+        priv = from.priv;
+        mstatus = from.mstatus;
+        mie = from.mie;
+        mtvec = from.mtvec;
+        mscratch = from.mscratch;
+        mepc = from.mepc;
+        mcause = from.mcause;
+        mtval = from.mtval;
+        mcounteren = from.mcounteren;
+        medeleg = from.medeleg;
+        mideleg = from.mideleg;
+        mip = from.mip;
+        stvec = from.stvec;
+        sscratch = from.sscratch;
+        sepc = from.sepc;
+        scause = from.scause;
+        stval = from.stval;
+        scounteren = from.scounteren;
+        satp = from.satp;
+        cycle_offset = from.cycle_offset;
+        hart.mmu.update(true);
+    }
+
+    /* Bytes saveState writes */
+    static final int STATE_SIZE = 4 + 19*8;
+
+    void saveState(ByteBuffer out) {
+        out.putInt(priv);
+        out.putLong(mstatus);
+        out.putLong(mie);
+        out.putLong(mtvec);
+        out.putLong(mscratch);
+        out.putLong(mepc);
+        out.putLong(mcause);
+        out.putLong(mtval);
+        out.putLong(mcounteren);
+        out.putLong(medeleg);
+        out.putLong(mideleg);
+        out.putLong(mip);
+        out.putLong(stvec);
+        out.putLong(sscratch);
+        out.putLong(sepc);
+        out.putLong(scause);
+        out.putLong(stval);
+        out.putLong(scounteren);
+        out.putLong(satp);
+        out.putLong(cycle_offset);
+    }
+
+    void loadState(ByteBuffer in) {
+        priv = in.getInt();
+        mstatus = in.getLong();
+        mie = in.getLong();
+        mtvec = in.getLong();
+        mscratch = in.getLong();
+        mepc = in.getLong();
+        mcause = in.getLong();
+        mtval = in.getLong();
+        mcounteren = in.getLong();
+        medeleg = in.getLong();
+        mideleg = in.getLong();
+        mip = in.getLong();
+        stvec = in.getLong();
+        sscratch = in.getLong();
+        sepc = in.getLong();
+        scause = in.getLong();
+        stval = in.getLong();
+        scounteren = in.getLong();
+        satp = in.getLong();
+        cycle_offset = in.getLong();
+        hart.mmu.update(true);
+    }
+}
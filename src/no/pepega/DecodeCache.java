@@ -0,0 +1,103 @@
+package no.pepega;
+
+/**
+ * Per-page cache of decoded instructions, indexed by pc and filled lazily on first execution.
+ * Entries are in the packed form from {@link Instruction#decodePacked}, zero meaning not decoded yet.
+ * An entry may be a pair fused by {@link Instruction#fuse}; the second instruction of the pair still gets
+ * its own entry, for branches and trap returns that land on it.
+ */
+public class DecodeCache {
+    /** Run with -Djerv.nofuse=true to decode one instruction per entry. Tracing needs every instruction. */
+    static final boolean FUSE = !Boolean.getBoolean("jerv.nofuse") && !Trace.ENABLED;
+
+    static final int PAGE_SHIFT = Memory.PAGE_SHIFT;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int SLOTS = PAGE_SIZE >> 2;
+
+    private final long[][] pages;
+    /* The raw words of the cached instructions, only kept for tracing */
+    private final int[][] words;
+
+    long hits;
+    long misses;
+    long invalidations;
+    long fused;
+
+    public DecodeCache(int pageCount) {
+        this.pages = new long[pageCount][];
+        this.words = Trace.ENABLED ? new int[pageCount][] : null;
+    }
+
+    /** Returns the cached instruction at pc, or 0 if it has not been decoded yet. */
+    long get(long pc) {
+        long[] page = pages[(int)(pc >>> PAGE_SHIFT)];
+        if (page != null) {
+            long d = page[(int)(pc & (PAGE_SIZE - 1)) >>> 2];
+            if (d != 0) {
+                hits++;
+                return d;
+            }
+        }
+        misses++;
+        return 0;
+    }
+
+    void put(long pc, long d, int word) {
+        int p = (int)(pc >>> PAGE_SHIFT);
+        long[] page = pages[p];
+        if (page == null) {
+            page = new long[SLOTS];
+            pages[p] = page;
+            if (Trace.ENABLED)
+                words[p] = new int[SLOTS];
+        }
+        page[(int)(pc & (PAGE_SIZE - 1)) >>> 2] = d;
+        if (Trace.ENABLED)
+            words[p][(int)(pc & (PAGE_SIZE - 1)) >>> 2] = word;
+    }
+
+    /** The raw word of the instruction at pc, which must be cached. Only for tracing. */
+    int word(long pc) {
+        return words[(int)(pc >>> PAGE_SHIFT)][(int)(pc & (PAGE_SIZE - 1)) >>> 2];
+    }
+
+    /** Drops the page containing addr if it holds decoded instructions. Called on every guest store. */
+    void invalidate(long addr) {
+        int p = (int)(addr >>> PAGE_SHIFT);
+        if (pages[p] != null) {
+            pages[p] = null;
+            if (Trace.ENABLED)
+                words[p] = null;
+            invalidations++;
+        }
+    }
+
+    /** Drops every page, used by FENCE.I. */
+    void flush() {
+        for (int p = 0; p < pages.length; p++) {
+            if (pages[p] != null) {
+                pages[p] = null;
+                if (Trace.ENABLED)
+                    words[p] = null;
+                invalidations++;
+            }
+        }
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long invalidations() {
+        return invalidations;
+    }
+
+    /** Fused pairs decoded, counted again when a page is decoded again. */
+    public long fused() {
+        return fused;
+    }
+}
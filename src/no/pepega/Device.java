@@ -0,0 +1,26 @@
+package no.pepega;
+
+/**
+ * A device on the {@link Bus}, which the guest reaches by loads and stores to its address range.
+ * Offsets are relative to the start of the range, and accesses are 1, 2, 4 or 8 bytes wide.
+ * Harts may access a device concurrently, so devices with state synchronize themselves.
+ */
+public interface Device {
+    /** Size of the address range in bytes. */
+    long size();
+
+    /** Reads width bytes at offset, zero-extended. */
+    long read(long offset, int width);
+
+    /** Writes the low width bytes of value at offset. Writes to read-only registers are ignored. */
+    void write(long offset, int width, long value);
+
+    /**
+     * The device a fork of the VM gets in its place, see {@link PseudoVM#fork}. Devices that keep no
+     * state of their own, or that forks should share, return this. By default a device can't be forked,
+     * and neither can a VM it is attached to.
+     */
+    default Device fork() {
+        throw new UnsupportedOperationException(getClass().getName() + " can't be forked");
+    }
+}
@@ -0,0 +1,316 @@
+package no.pepega;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Turns machine code into assembly, one line per word: address, the word, and the instruction.
+ *
+ * Whole images are split into chunks that are disassembled in parallel on the common fork/join pool.
+ * Each chunk is formatted into a reused per-thread StringBuilder and written to the output channel as a
+ * single buffer. Chunks are written in address order, and only a few are decoded ahead of the one being
+ * written, so output starts right away and memory use doesn't grow with the image.
+ */
+public class Disassembler {
+    /* Words per chunk */
+    private static final int CHUNK = 16 * 1024;
+    /* Chunks in flight ahead of the one being written */
+    private static final int AHEAD = 2 * ForkJoinPool.getCommonPoolParallelism() + 2;
+    /* Mappings are limited to 2 GiB, so files are mapped in pieces this size */
+    private static final long MAP_CHUNK = 1L << 30;
+
+    private static final String[] MNEMONICS = new String[Instruction.OPS.length];
+    private static final String[] REGS = new String[32];
+    private static final ThreadLocal<StringBuilder> TEXT = ThreadLocal.withInitial(() -> new StringBuilder(CHUNK * 48));
+
+    static {
+        for (Instruction.Inst op : Instruction.OPS)
+            MNEMONICS[op.ordinal()] = mnemonic(op);
+        for (int r = 0; r < 32; r++)
+            REGS[r] = Instruction.regName(r);
+    }
+
+    /** Disassembles a file of raw machine code loaded at base. */
+    public static void disassemble(Path file, long base, WritableByteChannel out) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            for (long off = 0; off < size; off += MAP_CHUNK)
+                disassemble(ch.map(FileChannel.MapMode.READ_ONLY, off, Math.min(MAP_CHUNK, size - off)), base + off, out);
+        }
+    }
+
+    /** Disassembles the remaining bytes of image, the first of them at address base. */
+    public static void disassemble(ByteBuffer image, long base, WritableByteChannel out) throws IOException {
+        ByteBuffer code = image.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int words = code.remaining() / 4;
+        ArrayDeque<ForkJoinTask<ByteBuffer>> pending = new ArrayDeque<>();
+        int next = 0;
+        while (next < words || !pending.isEmpty()) {
+            while (next < words && pending.size() < AHEAD) {
+                int from = next;
+                int to = Math.min(words, next + CHUNK);
+                pending.add(ForkJoinTask.adapt(() -> chunk(code, base, from, to)).fork());
+                next = to;
+            }
+            write(out, pending.poll().join());
+        }
+
+        /* Bytes after the last whole word */
+        StringBuilder sb = TEXT.get();
+        sb.setLength(0);
+        for (int i = words * 4; i < code.limit(); i++) {
+            appendHex(sb, base + i, 8);
+            sb.append(": ");
+            appendHex(sb, code.get(i) & 0xFF, 2);
+            sb.append("\t\t.byte\n");
+        }
+        if (sb.length() > 0)
+            write(out, encode(sb));
+    }
+
+    /** One instruction, without address and encoding. */
+    public static String format(long pc, int word) {
+        return format(new StringBuilder(), pc, word).toString();
+    }
+
+    /* Appends the instruction at pc, branch and jump targets are absolute */
+    static StringBuilder format(StringBuilder sb, long pc, int word) {
+        long d = Instruction.decodePacked(word, false);
+        if (d == Instruction.ILLEGAL) {
+            sb.append(".word   0x");
+            appendHex(sb, word & 0xFFFFFFFFL, 8);
+            return sb;
+        }
+        Instruction.Inst op = Instruction.op(d);
+        int rd = Instruction.rd(d);
+        int rs1 = Instruction.rs1(d);
+        int rs2 = Instruction.rs2(d);
+        int imm = Instruction.imm(d);
+
+        int start = sb.length();
+        sb.append(MNEMONICS[op.ordinal()]);
+        switch (op) {
+            case FenceI: case Ecall: case Ebreak: case Mret: case Sret: case Wfi:
+                return sb;
+            case LrW: case LrD: case ScW: case ScD:
+            case AmoswapW: case AmoswapD: case AmoaddW: case AmoaddD: case AmoxorW: case AmoxorD:
+            case AmoandW: case AmoandD: case AmoorW: case AmoorD: case AmominW: case AmominD:
+            case AmomaxW: case AmomaxD: case AmominuW: case AmominuD: case AmomaxuW: case AmomaxuD:
+                if ((word & (1 << 26)) != 0)
+                    sb.append(".aq");
+                if ((word & (1 << 25)) != 0)
+                    sb.append(".rl");
+                break;
+        }
+        if (sb.length() - start < 8)
+            sb.append("        ", 0, 8 - (sb.length() - start));
+        else
+            sb.append(' ');
+
+        switch (op) {
+            case Lui: case Auipc: {
+                sb.append(REGS[rd]).append(", 0x");
+                appendHex(sb, (imm >>> 12) & 0xFFFFF, 1);
+                if (op == Instruction.Inst.Auipc) {
+                    sb.append("\t# ");
+                    appendAddress(sb, pc + imm);
+                }
+                break;
+            }
+            case Jal: {
+                sb.append(REGS[rd]).append(", ");
+                appendAddress(sb, pc + imm);
+                break;
+            }
+            case Beq: case Bne: case Blt: case Bge: case Bltu: case Bgeu: {
+                sb.append(REGS[rs1]).append(", ").append(REGS[rs2]).append(", ");
+                appendAddress(sb, pc + imm);
+                break;
+            }
+            case Jalr: case Lb: case Lh: case Lw: case Ld: case Lbu: case Lhu: case Lwu: case Ldu: {
+                sb.append(REGS[rd]).append(", ").append(imm).append('(').append(REGS[rs1]).append(')');
+                break;
+            }
+            case Sb: case Sh: case Sw: case Sd: {
+                sb.append(REGS[rs2]).append(", ").append(imm).append('(').append(REGS[rs1]).append(')');
+                break;
+            }
+            case Addi: case Addiw: case Slti: case Sltiu: case Xori: case Ori: case Andi: {
+                sb.append(REGS[rd]).append(", ").append(REGS[rs1]).append(", ").append(imm);
+                break;
+            }
+            case Slli: case Srli: case Srai: case Slliw: case Srliw: case Sraiw: {
+                sb.append(REGS[rd]).append(", ").append(REGS[rs1]).append(", ").append(imm & 0x3F);
+                break;
+            }
+            case Fence: {
+                appendFenceSet(sb, Instruction.fence(d) >>> 4);
+                sb.append(", ");
+                appendFenceSet(sb, Instruction.fence(d) & 0xF);
+                break;
+            }
+            case Csrrw: case Csrrs: case Csrrc: {
+                sb.append(REGS[rd]).append(", ");
+                appendCsr(sb, imm & 0xFFF);
+                sb.append(", ").append(REGS[rs1]);
+                break;
+            }
+            case Csrrwi: case Csrrsi: case Csrrci: {
+                sb.append(REGS[rd]).append(", ");
+                appendCsr(sb, imm & 0xFFF);
+                sb.append(", ").append(rs1);
+                break;
+            }
+            case RdCycle: case RdCycleH: case RdTime: case RdTimeH: case RdInstRet: case RdInstRetH: {
+                sb.append(REGS[rd]);
+                break;
+            }
+            case SfenceVma: {
+                sb.append(REGS[rs1]).append(", ").append(REGS[rs2]);
+                break;
+            }
+            case LrW: case LrD: {
+                sb.append(REGS[rd]).append(", (").append(REGS[rs1]).append(')');
+                break;
+            }
+            case ScW: case ScD:
+            case AmoswapW: case AmoswapD: case AmoaddW: case AmoaddD: case AmoxorW: case AmoxorD:
+            case AmoandW: case AmoandD: case AmoorW: case AmoorD: case AmominW: case AmominD:
+            case AmomaxW: case AmomaxD: case AmominuW: case AmominuD: case AmomaxuW: case AmomaxuD: {
+                sb.append(REGS[rd]).append(", ").append(REGS[rs2]).append(", (").append(REGS[rs1]).append(')');
+                break;
+            }
+            default: {
+                /* Register-register ops */
+                sb.append(REGS[rd]).append(", ").append(REGS[rs1]).append(", ").append(REGS[rs2]);
+            }
+        }
+        return sb;
+    }
+
+    private static ByteBuffer chunk(ByteBuffer code, long base, int from, int to) {
+        StringBuilder sb = TEXT.get();
+        sb.setLength(0);
+        for (int i = from; i < to; i++) {
+            long pc = base + 4L*i;
+            int word = code.getInt(4*i);
+            appendHex(sb, pc, 8);
+            sb.append(": ");
+            appendHex(sb, word & 0xFFFFFFFFL, 8);
+            sb.append('\t');
+            format(sb, pc, word);
+            sb.append('\n');
+        }
+        return encode(sb);
+    }
+
+    /* The text is all ASCII, which Latin-1 encodes as a plain copy */
+    private static ByteBuffer encode(StringBuilder sb) {
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer text) throws IOException {
+        while (text.hasRemaining())
+            out.write(text);
+    }
+
+    /* Op names as the assembler spells them: FenceI is fence.i, AmoaddW amoadd.w, but Addw stays addw */
+    private static String mnemonic(Instruction.Inst op) {
+        String name = op.name();
+        if (name.startsWith("Rd"))
+            return name.toLowerCase();
+        StringBuilder m = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (i > 0 && Character.isUpperCase(c))
+                m.append('.');
+            m.append(Character.toLowerCase(c));
+        }
+        return m.toString();
+    }
+
+    private static void appendFenceSet(StringBuilder sb, int set) {
+        if (set == 0)
+            sb.append('0');
+        if ((set & 8) != 0)
+            sb.append('i');
+        if ((set & 4) != 0)
+            sb.append('o');
+        if ((set & 2) != 0)
+            sb.append('r');
+        if ((set & 1) != 0)
+            sb.append('w');
+    }
+
+    private static void appendCsr(StringBuilder sb, int csr) {
+        String name = csrName(csr);
+        if (name != null) {
+            sb.append(name);
+        } else {
+            sb.append("0x");
+            appendHex(sb, csr, 3);
+        }
+    }
+
+    private static String csrName(int csr) {
+        switch (csr) {
+            case Csr.CYCLE: return "cycle";
+            case Csr.TIME: return "time";
+            case Csr.INSTRET: return "instret";
+            case Csr.SSTATUS: return "sstatus";
+            case Csr.SIE: return "sie";
+            case Csr.STVEC: return "stvec";
+            case Csr.SCOUNTEREN: return "scounteren";
+            case Csr.SSCRATCH: return "sscratch";
+            case Csr.SEPC: return "sepc";
+            case Csr.SCAUSE: return "scause";
+            case Csr.STVAL: return "stval";
+            case Csr.SIP: return "sip";
+            case Csr.SATP: return "satp";
+            case Csr.MSTATUS: return "mstatus";
+            case Csr.MISA: return "misa";
+            case Csr.MEDELEG: return "medeleg";
+            case Csr.MIDELEG: return "mideleg";
+            case Csr.MIE: return "mie";
+            case Csr.MTVEC: return "mtvec";
+            case Csr.MCOUNTEREN: return "mcounteren";
+            case Csr.MCOUNTINHIBIT: return "mcountinhibit";
+            case Csr.MSCRATCH: return "mscratch";
+            case Csr.MEPC: return "mepc";
+            case Csr.MCAUSE: return "mcause";
+            case Csr.MTVAL: return "mtval";
+            case Csr.MIP: return "mip";
+            case Csr.MCYCLE: return "mcycle";
+            case Csr.MINSTRET: return "minstret";
+            case Csr.MVENDORID: return "mvendorid";
+            case Csr.MARCHID: return "marchid";
+            case Csr.MIMPID: return "mimpid";
+            case Csr.MHARTID: return "mhartid";
+            case Csr.MCONFIGPTR: return "mconfigptr";
+            default: return null;
+        }
+    }
+
+    private static void appendAddress(StringBuilder sb, long addr) {
+        sb.append("0x");
+        appendHex(sb, addr, 1);
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /* Lower case hex, zero padded to at least digits */
+    private static void appendHex(StringBuilder sb, long v, int digits) {
+        int n = Math.max(digits, (64 - Long.numberOfLeadingZeros(v) + 3) / 4);
+        for (int shift = 4*(n - 1); shift >= 0; shift -= 4)
+            sb.append(HEX[(int)(v >>> shift) & 0xF]);
+    }
+}
@@ -0,0 +1,46 @@
+package no.pepega;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** The boot image, which is also readable by the guest on the bus. Writes are ignored. */
+public final class Eeprom implements Device {
+    private final ByteBuffer contents;
+
+    Eeprom(ByteBuffer contents) {
+        this.contents = contents.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** The contents, without copying. */
+    ByteBuffer contents() {
+        return contents.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /* At least a page, so an empty image still has a range */
+    @Override
+    public long size() {
+        return Math.max(Memory.PAGE_SIZE, (contents.remaining() + Memory.PAGE_SIZE - 1L) & -Memory.PAGE_SIZE);
+    }
+
+    /* Past the end of the image reads as zeroes */
+    @Override
+    public long read(long offset, int width) {
+        int at = contents.position() + (int)offset;
+        if (offset + width <= contents.remaining()) {
+            switch (width) {
+                case 1: return contents.get(at) & 0xFFL;
+                case 2: return contents.getShort(at) & 0xFFFFL;
+                case 4: return contents.getInt(at) & 0xFFFFFFFFL;
+                default: return contents.getLong(at);
+            }
+        }
+        long value = 0;
+        for (int i = 0; i < width && offset + i < contents.remaining(); i++)
+            value |= (contents.get(at + i) & 0xFFL) << (8*i);
+        return value;
+    }
+
+    @Override
+    public void write(long offset, int width, long value) {
+    }
+}
@@ -0,0 +1,234 @@
+package no.pepega;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A statically linked little-endian RISC-V ELF64 executable, read straight from its (usually mapped)
+ * file without copying.
+ *
+ * Loading maps each PT_LOAD segment into guest memory with {@link Memory#map}, so file pages are only
+ * read when the guest touches them and the .bss part needs no work at all. Segments have to be linked
+ * inside guest RAM, which starts at address 0.
+ *
+ * The symbol table is kept as a sorted index of addresses, sizes and name offsets into the file's
+ * string table, so looking up the symbol for an address is a binary search and names are only decoded
+ * when asked for.
+ */
+public class Elf {
+    static final int EM_RISCV = 243;
+    private static final int PT_LOAD = 1;
+    private static final int SHT_SYMTAB = 2;
+    private static final int STT_NOTYPE = 0;
+    private static final int STT_OBJECT = 1;
+    private static final int STT_FUNC = 2;
+    private static final int SHN_UNDEF = 0;
+    private static final int SHN_LORESERVE = 0xFF00;
+
+    private final ByteBuffer file;
+    private final long entry;
+
+    /* PT_LOAD segments, sorted by address as the format requires */
+    private final long[] segAddr;
+    private final long[] segOffset;
+    private final long[] segFileSize;
+    private final long[] segMemSize;
+
+    /* Symbols sorted by address, names as offsets into the string table at strtab */
+    private final long[] symAddr;
+    private final long[] symSize;
+    private final int[] symName;
+    private final int strtab;
+
+    /** Returns true if the remaining bytes of image start like an ELF file. */
+    public static boolean isElf(ByteBuffer image) {
+        return image.remaining() >= 4 && image.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(image.position()) == 0x464C457F;
+    }
+
+    /** Parses the remaining bytes of file, which must not change while the image is in use. */
+    public Elf(ByteBuffer file) {
+        this.file = file.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (!isElf(this.file) || this.file.remaining() < 64)
+            throw new IllegalArgumentException("Not an ELF file");
+        if (this.file.get(4) != 2 || this.file.get(5) != 1)
+            throw new IllegalArgumentException("Only little-endian ELF64 is supported");
+        if (u16(18) != EM_RISCV)
+            throw new IllegalArgumentException(String.format("ELF file is for machine %d, not RISC-V", u16(18)));
+
+        entry = this.file.getLong(24);
+        long phoff = this.file.getLong(32);
+        long shoff = this.file.getLong(40);
+        int phentsize = u16(54);
+        int phnum = u16(56);
+        int shentsize = u16(58);
+        int shnum = u16(60);
+
+        int loads = 0;
+        for (int i = 0; i < phnum; i++) {
+            if (this.file.getInt(offset(phoff + (long)i * phentsize, 56)) == PT_LOAD)
+                loads++;
+        }
+        segAddr = new long[loads];
+        segOffset = new long[loads];
+        segFileSize = new long[loads];
+        segMemSize = new long[loads];
+        for (int i = 0, n = 0; i < phnum; i++) {
+            int ph = offset(phoff + (long)i * phentsize, 56);
+            if (this.file.getInt(ph) != PT_LOAD)
+                continue;
+            segOffset[n] = this.file.getLong(ph + 8);
+            segAddr[n] = this.file.getLong(ph + 16);
+            segFileSize[n] = this.file.getLong(ph + 32);
+            segMemSize[n] = this.file.getLong(ph + 40);
+            if (segFileSize[n] > segMemSize[n])
+                throw new IllegalArgumentException(String.format("Segment at 0x%X is larger in the file than in memory", segAddr[n]));
+            offset(segOffset[n], segFileSize[n]);
+            if (n > 0 && segAddr[n] < segAddr[n - 1] + segMemSize[n - 1])
+                throw new IllegalArgumentException(String.format("Segment at 0x%X overlaps the one before it", segAddr[n]));
+            n++;
+        }
+
+        /* Defined functions, objects and labels, without the assembler's mapping and local symbols */
+        int symtab = -1;
+        int symCount = 0;
+        int strtab = 0;
+        for (int i = 0; i < shnum && symtab < 0; i++) {
+            int sh = offset(shoff + (long)i * shentsize, 64);
+            if (this.file.getInt(sh + 4) != SHT_SYMTAB)
+                continue;
+            long size = this.file.getLong(sh + 32);
+            symtab = offset(this.file.getLong(sh + 24), size);
+            symCount = (int)(size / 24);
+            int link = offset(shoff + (long)this.file.getInt(sh + 40) * shentsize, 64);
+            strtab = offset(this.file.getLong(link + 24), this.file.getLong(link + 32));
+        }
+        this.strtab = strtab;
+        long[] addr = new long[symCount];
+        long[] size = new long[symCount];
+        int[] name = new int[symCount];
+        int count = 0;
+        for (int i = 0; i < symCount; i++) {
+            int sym = symtab + i * 24;
+            int type = this.file.get(sym + 4) & 0xF;
+            int shndx = u16(sym + 6);
+            int nameOff = this.file.getInt(sym);
+            if (type != STT_FUNC && type != STT_OBJECT && type != STT_NOTYPE)
+                continue;
+            if (shndx == SHN_UNDEF || shndx >= SHN_LORESERVE || nameOff == 0)
+                continue;
+            byte first = this.file.get(strtab + nameOff);
+            if (first == '$' || (first == '.' && this.file.get(strtab + nameOff + 1) == 'L'))
+                continue;
+            addr[count] = this.file.getLong(sym + 8);
+            size[count] = this.file.getLong(sym + 16);
+            name[count] = nameOff;
+            count++;
+        }
+
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(addr[a], addr[b]));
+        symAddr = new long[count];
+        symSize = new long[count];
+        symName = new int[count];
+        for (int i = 0; i < count; i++) {
+            symAddr[i] = addr[order[i]];
+            symSize[i] = size[order[i]];
+            symName[i] = name[order[i]];
+        }
+    }
+
+    public long entry() {
+        return entry;
+    }
+
+    /**
+     * Loads the segments into the hart's memory and points every hart of vm at the entry point. A segment
+     * is mapped from the file when its first page holds nothing of the segment before it, which is the
+     * case when the linker aligned segments to pages. Otherwise it is copied, which only costs its own
+     * bytes.
+     */
+    void load(PseudoVM vm) {
+        RISCV hart = vm.arch;
+        long end = 0;
+        for (int i = 0; i < segAddr.length; i++) {
+            long addr = segAddr[i];
+            if (addr < 0 || addr + segMemSize[i] > hart.memory.size())
+                throw new IllegalArgumentException(String.format("Segment at 0x%X-0x%X is outside the %d KiB of guest memory",
+                        addr, addr + segMemSize[i], hart.memory.size() / 1024));
+            long head = addr & Memory.PAGE_MASK;
+            if (segFileSize[i] == 0) {
+                /* Nothing but .bss, which reads as zeroes already */
+            } else if ((segOffset[i] & Memory.PAGE_MASK) == head && addr - head >= end) {
+                /* The head of the first page comes from the file too, as from any ELF loader */
+                hart.mapImage(addr - head, file.slice((int)(segOffset[i] - head), (int)(segFileSize[i] + head)));
+            } else {
+                for (long b = 0; b < segFileSize[i]; b++)
+                    hart.mem_write_8(addr + b, file.get((int)(segOffset[i] + b)));
+            }
+            end = addr + segMemSize[i];
+        }
+        for (RISCV h : vm.harts)
+            h.pc = entry;
+    }
+
+    public int symbolCount() {
+        return symAddr.length;
+    }
+
+    /**
+     * Returns the index of the symbol covering addr: the last one at or below it, as long as addr is
+     * inside its size or it has none. Returns -1 if there is no such symbol.
+     */
+    public int symbolIndex(long addr) {
+        int lo = 0;
+        int hi = symAddr.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(symAddr[mid], addr) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        if (hi < 0 || (symSize[hi] != 0 && addr - symAddr[hi] >= symSize[hi]))
+            return -1;
+        return hi;
+    }
+
+    public long symbolAddress(int index) {
+        return symAddr[index];
+    }
+
+    public String symbolName(int index) {
+        int start = strtab + symName[index];
+        int end = start;
+        while (file.get(end) != 0)
+            end++;
+        byte[] b = new byte[end - start];
+        file.get(start, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** The address as symbol+offset, or null if no symbol covers it. */
+    public String symbolize(long addr) {
+        int i = symbolIndex(addr);
+        if (i < 0)
+            return null;
+        long off = addr - symAddr[i];
+        return off == 0 ? symbolName(i) : symbolName(i) + "+0x" + Long.toHexString(off);
+    }
+
+    private int u16(int at) {
+        return file.getShort(at) & 0xFFFF;
+    }
+
+    /* Checks that length bytes at off are inside the file */
+    private int offset(long off, long length) {
+        if (off < 0 || length < 0 || off + length > file.limit())
+            throw new IllegalArgumentException(String.format("ELF file is truncated, 0x%X bytes at 0x%X are missing", length, off));
+        return (int)off;
+    }
+}
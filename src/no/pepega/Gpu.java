@@ -0,0 +1,138 @@
+package no.pepega;
+
+/**
+ * Draws text on a bound {@link Screen}. The host calls the methods directly, the guest goes through
+ * the registers on the bus, 8 bytes apart:
+ * <pre>
+ *   0x00 foreground      rw, 0xRRGGBB
+ *   0x08 background      rw
+ *   0x10 width           r, of the bound screen, 0 without one
+ *   0x18 height          r
+ *   0x20 depth           r, color depth in bits
+ *   0x28 x               rw, column counting from 1
+ *   0x30 y               rw, row counting from 1
+ *   0x38 fill width      rw
+ *   0x40 fill height     rw
+ *   0x48 set             w, puts the character written at x, y and moves x on
+ *   0x50 fill            w, fills fill width by fill height cells from x, y with the character written
+ * </pre>
+ * Coordinates count from 1, as the host methods have always done.
+ */
+public final class Gpu implements Device {
+    static final int FOREGROUND = 0x00;
+    static final int BACKGROUND = 0x08;
+    static final int WIDTH = 0x10;
+    static final int HEIGHT = 0x18;
+    static final int DEPTH = 0x20;
+    static final int X = 0x28;
+    static final int Y = 0x30;
+    static final int FILL_WIDTH = 0x38;
+    static final int FILL_HEIGHT = 0x40;
+    static final int SET = 0x48;
+    static final int FILL = 0x50;
+
+    static final int COLOR_DEPTH = 24;
+
+    private Screen screen;
+    private int foreground = 0xFFFFFF;
+    private int background;
+    private int x = 1;
+    private int y = 1;
+    private int fill_width;
+    private int fill_height;
+
+    public synchronized void bind(Screen screen) {
+        this.screen = screen;
+    }
+
+    public synchronized void setForeground(int rgb) {
+        foreground = rgb & 0xFFFFFF;
+    }
+
+    public synchronized void setBackground(int rgb) {
+        background = rgb & 0xFFFFFF;
+    }
+
+    public int getDepth() {
+        return COLOR_DEPTH;
+    }
+
+    public synchronized int width() {
+        return screen == null ? 0 : screen.width();
+    }
+
+    public synchronized int height() {
+        return screen == null ? 0 : screen.height();
+    }
+
+    /** Fills w by h cells from x, y with ch. Cells off the screen are skipped. */
+    public synchronized void fill(int x, int y, int w, int h, int ch) {
+        if (screen == null)
+            return;
+        /* The guest picks all four, so only the part on the screen is looped over, in longs so nothing wraps */
+        int first_row = Math.max(y, 1);
+        int last_row = (int)Math.min((long)y + h - 1, screen.height());
+        int first_col = Math.max(x, 1);
+        int last_col = (int)Math.min((long)x + w - 1, screen.width());
+        for (int row = first_row; row <= last_row; row++)
+            for (int col = first_col; col <= last_col; col++)
+                screen.set(col, row, ch, foreground, background);
+    }
+
+    /** Writes text from x, y to the right. */
+    public synchronized void set(int x, int y, String text) {
+        if (screen == null)
+            return;
+        for (int i = 0; i < text.length(); i++)
+            screen.set(x + i, y, text.charAt(i), foreground, background);
+    }
+
+    synchronized void copyFrom(Gpu from) {
+        foreground = from.foreground;
+        background = from.background;
+        x = from.x;
+        y = from.y;
+        fill_width = from.fill_width;
+        fill_height = from.fill_height;
+    }
+
+    @Override
+    public long size() {
+        return Memory.PAGE_SIZE;
+    }
+
+    @Override
+    public synchronized long read(long offset, int width) {
+        switch ((int)offset) {
+            case FOREGROUND: return foreground;
+            case BACKGROUND: return background;
+            case WIDTH: return width();
+            case HEIGHT: return height();
+            case DEPTH: return COLOR_DEPTH;
+            case X: return x;
+            case Y: return y;
+            case FILL_WIDTH: return fill_width;
+            case FILL_HEIGHT: return fill_height;
+            default: return 0;
+        }
+    }
+
+    @Override
+    public synchronized void write(long offset, int width, long value) {
+        switch ((int)offset) {
+            case FOREGROUND: setForeground((int)value); break;
+            case BACKGROUND: setBackground((int)value); break;
+            case X: x = (int)value; break;
+            case Y: y = (int)value; break;
+            case FILL_WIDTH: fill_width = (int)value; break;
+            case FILL_HEIGHT: fill_height = (int)value; break;
+            case SET: {
+                if (screen != null)
+                    screen.set(x, y, (int)value, foreground, background);
+                x++;
+                break;
+            }
+            case FILL: fill(x, y, fill_width, fill_height, (int)value); break;
+        }
+    }
+}
@@ -6,9 +6,29 @@ public class Instruction {
         Addw,
         Addi,
         Addiw,
+        AmoaddW,
+        AmoaddD,
+        AmoandW,
+        AmoandD,
+        AmomaxW,
+        AmomaxD,
+        AmomaxuW,
+        AmomaxuD,
+        AmominW,
+        AmominD,
+        AmominuW,
+        AmominuD,
+        AmoorW,
+        AmoorD,
+        AmoswapW,
+        AmoswapD,
+        AmoxorW,
+        AmoxorD,
         And,
         Andi,
         Auipc,
+        AuipcAddi,
+        AuipcJalr,
         Beq,
         Bge,
         Bgeu,
@@ -35,15 +55,24 @@ public class Instruction {
         Lwu,
         Ld,
         Ldu,
+        LrW,
+        LrD,
         Lui,
+        LuiAddi,
+        Mret,
         Mul,
         Mulh,
         Mulhsu,
         Mulhu,
+        Mulw,
         Div,
         Divu,
+        Divw,
+        Divuw,
         Rem,
         Remu,
+        Remw,
+        Remuw,
         Or,
         Ori,
         RdCycle,
@@ -53,12 +82,16 @@ public class Instruction {
         RdInstRet,
         RdInstRetH,
         Sb,
+        ScW,
+        ScD,
         Sh,
         Sw,
         Sd,
+        SfenceVma,
         Sll,
         Sllw,
         Slli,
+        SlliSrli,
         Slliw,
         Slt,
         Slti,
@@ -72,8 +105,10 @@ public class Instruction {
         Srlw,
         Srli,
         Srliw,
+        Sret,
         Sub,
         Subw,
+        Wfi,
         Xor,
         Xori,
     }
@@ -90,6 +125,109 @@ public class Instruction {
     public int immediate;
     public byte fence;
 
+    static final Inst[] OPS = Inst.values();
+    static final Inst[] FUSED_OPS = { Inst.LuiAddi, Inst.AuipcAddi, Inst.AuipcJalr, Inst.SlliSrli };
+
+    /* M extension ops by funct3, for opcodes 0x33 and 0x3B with funct7 = 1 */
+    private static final Inst[] M_OPS = {
+            Inst.Mul, Inst.Mulh, Inst.Mulhsu, Inst.Mulhu, Inst.Div, Inst.Divu, Inst.Rem, Inst.Remu };
+    private static final Inst[] M_WORD_OPS = {
+            Inst.Mulw, null, null, null, Inst.Divw, Inst.Divuw, Inst.Remw, Inst.Remuw };
+
+    /** Packed encoding of an instruction that could not be decoded. */
+    static final long ILLEGAL = 0xFF;
+
+    static long pack(Inst op, int rd, int rs1, int rs2, int immediate, int fence) {
+        return (op.ordinal() + 1)
+                | (long)rd << 8
+                | (long)rs1 << 13
+                | (long)rs2 << 18
+                | (long)fence << 23
+                | (long)immediate << 32;
+    }
+
+    /**
+     * Set in the packed form of a fused pair, which does the work of two instructions and retires both.
+     * Bit 31 is left free by {@link #pack}.
+     */
+    static final long FUSED = 1L << 31;
+
+    /** Instructions the packed instruction d retires, 2 for a fused pair. */
+    static int retires(long d) {
+        return 1 + ((int)(d >>> 31) & 1);
+    }
+
+    /** Returns true if d can start a fused pair, so the instruction after it is worth decoding. */
+    static boolean fusable(long d) {
+        if (d == ILLEGAL || rd(d) == 0)
+            return false;
+        Inst op = op(d);
+        return op == Inst.Lui || op == Inst.Auipc || op == Inst.Slli;
+    }
+
+    /**
+     * Fuses first with the instruction after it, second, if the two are one of the idioms compilers emit
+     * all the time, and returns first unchanged otherwise:
+     * <pre>
+     *   lui rd, hi;   addi rd, rd, lo      LuiAddi, rd = hi + lo
+     *   auipc rd, hi; addi rd, rd, lo      AuipcAddi, rd = pc + hi + lo
+     *   auipc rs, hi; jalr rd, lo(rs)      AuipcJalr, rs = pc + hi, rd = pc + 8, jumps to pc + hi + lo
+     *   slli rd, rs, a; srli rd, rd, b     SlliSrli, rd = rs << a >>> b, imm holds a | b << 8
+     * </pre>
+     * The immediate of the first three is hi + lo, only fused when it fits an int. Since hi is a multiple
+     * of 4096 and lo a 12-bit signed value, hi is that sum rounded to the nearest multiple of 4096.
+     */
+    static long fuse(long first, long second) {
+        if (!fusable(first) || second == ILLEGAL)
+            return first;
+        Inst a = op(first);
+        Inst b = op(second);
+        int rd = rd(first);
+        if (rs1(second) != rd)
+            return first;
+        long sum = (long)imm(first) + imm(second);
+        switch (a) {
+            case Lui:
+            case Auipc:
+                if (sum != (int)sum)
+                    return first;
+                if (b == Inst.Addi && rd(second) == rd)
+                    return pack(a == Inst.Lui ? Inst.LuiAddi : Inst.AuipcAddi, rd, 0, 0, (int)sum, 0) | FUSED;
+                if (a == Inst.Auipc && b == Inst.Jalr)
+                    return pack(Inst.AuipcJalr, rd(second), rd, 0, (int)sum, 0) | FUSED;
+                break;
+            case Slli:
+                if (b == Inst.Srli && rd(second) == rd)
+                    return pack(Inst.SlliSrli, rd, rs1(first), 0, (imm(first) & 0x3f) | (imm(second) & 0x3f) << 8, 0) | FUSED;
+                break;
+        }
+        return first;
+    }
+
+    static Inst op(long d) {
+        return OPS[(int)(d & 0xff) - 1];
+    }
+
+    static int rd(long d) {
+        return (int)(d >>> 8) & 0x1f;
+    }
+
+    static int rs1(long d) {
+        return (int)(d >>> 13) & 0x1f;
+    }
+
+    static int rs2(long d) {
+        return (int)(d >>> 18) & 0x1f;
+    }
+
+    static int fence(long d) {
+        return (int)(d >>> 23) & 0xff;
+    }
+
+    static int imm(long d) {
+        return (int)(d >> 32);
+    }
+
     public static String regName(int reg) {
         switch (reg) {
             case 0: return "zero";
@@ -128,244 +266,347 @@ public class Instruction {
         }
     }
 
-    public static void printInfo(Instruction inst, long i, int opcode) {
-        if (inst == null) {
-            System.out.printf("0x%02X: Unknown instruction\n", i);
-            return;
-        }
-        System.out.printf("0x%02X: %08x\t", i, opcode);
-        System.out.print(inst.op+"  \t\t\t\t");
-        String rs1 = Instruction.regName(inst.rs1);
-        String rs2 = Instruction.regName(inst.rs2);
-        String rd = Instruction.regName(inst.rd);
-        switch (inst.op) {
-            case Add: case And: case Addw: {
-                System.out.printf("%s, %s, %s", rd, rs1, rs2);
-                break;
-            }
-            case Addi: case Addiw: case Andi: {
-                System.out.printf("%s, %s, %d", rd, rs1, inst.immediate);
-                break;
-            }
-            case Beq: case Bne: case Blt: case Bge: case Bltu: case Bgeu: {
-                System.out.printf("%s, %s, %d\t\t# 0x%02X", rd, rs1, inst.immediate, i+inst.immediate);
-                break;
-            }
-            case Jal: {
-                System.out.printf("%s, %d\t\t# 0x%02X", rd, inst.immediate, i+inst.immediate);
-                break;
-            }
-            case Lb: case Lh: case Lw: case Ld: {
-                System.out.printf("%s, %d(%s)", rd, inst.immediate, rs1);
-                break;
-            }
-            case Sb: case Sh: case Sw: case Sd: {
-                System.out.printf("%s, %d(%s)", rs2, inst.immediate, rs1);
-                break;
-            }
-        }
+    /** Decodes into a heap object, for disassembly and debugging. The emulator itself runs on {@link #decodePacked}. */
+    public static Instruction decode(int inst) {
+        long d = decodePacked(inst);
+        if (d == ILLEGAL)
+            return null;
+
+        Instruction DecodedInst = new Instruction();
+        DecodedInst.opcode = inst&0x7F;
+        DecodedInst.rd = rd(d);
+        DecodedInst.rs1 = rs1(d);
+        DecodedInst.rs2 = rs2(d);
+        DecodedInst.funct3 = (inst>>>12)&0x7;
+        DecodedInst.funct7 = (inst>>>25)&0x7f;
+        DecodedInst.op = op(d);
+        DecodedInst.immediate = imm(d);
+        DecodedInst.shamt = imm(d) & 0x3f;
+        DecodedInst.csr = imm(d) & 0xfff;
+        DecodedInst.fence = (byte)fence(d);
+        return DecodedInst;
     }
 
-    public static Instruction decode(int inst) {
+    /**
+     * Decodes into a single long so the hot path never allocates. Layout, from the low bits:
+     * op ordinal + 1 (8), rd (5), rs1 (5), rs2 (5), fence bits (8), unused (1), immediate (32).
+     * rd is 0 for ops that don't write a register, stores and branches keep only immediate bits there.
+     * Zero is never a valid encoding, so a zeroed slot in the decode cache means "not decoded yet".
+     */
+    public static long decodePacked(int inst) {
+        return decodePacked(inst, true);
+    }
+
+    /** Like {@link #decodePacked(int)}, but only logs why a word is illegal if verbose, e.g. not for data words being disassembled. */
+    static long decodePacked(int inst, boolean verbose) {
         int opcode = inst&0x7F;
         int rd = (inst>>>7)&0x1f;
         int rs1 = (inst>>>15)&0x1f;
         int rs2 = (inst>>>20)&0x1f;
 
         int funct3 = (inst>>>12)&0x7;
-        int funct7 = (inst>>>25)&0x7f;
 
-        Instruction DecodedInst = new Instruction();
-        DecodedInst.opcode = opcode;
-        DecodedInst.rd = rd;
-        DecodedInst.rs1 = rs1;
-        DecodedInst.rs2 = rs2;
-        DecodedInst.funct3 = funct3;
-        DecodedInst.funct7 = funct7;
+        Inst op = null;
+        int immediate = 0;
+        int fence = 0;
 
         switch (opcode) {
             case 0x03: /* Loads */ {
-                DecodedInst.immediate = inst >> 20;
+                immediate = inst >> 20;
                 if (funct3 == 0b000) { /* LB */
-                    DecodedInst.op = Instruction.Inst.Lb;
+                    op = Instruction.Inst.Lb;
                 } else if (funct3 == 0b001) { /* LH */
-                    DecodedInst.op = Instruction.Inst.Lh;
+                    op = Instruction.Inst.Lh;
                 } else if (funct3 == 0b010) { /* LW */
-                    DecodedInst.op = Instruction.Inst.Lw;
+                    op = Instruction.Inst.Lw;
                 } else if (funct3 == 0b011) { /* LD */
-                    DecodedInst.op = Instruction.Inst.Ld;
+                    op = Instruction.Inst.Ld;
+                } else if (funct3 == 0b100) { /* LBU */
+                    op = Instruction.Inst.Lbu;
+                } else if (funct3 == 0b101) { /* LHU */
+                    op = Instruction.Inst.Lhu;
                 } else if (funct3 == 0b110) { /* LWU */
-                    DecodedInst.op = Instruction.Inst.Lwu;
+                    op = Instruction.Inst.Lwu;
                 } else {
-                    System.err.println("Illegal instruction");
-                    return null;
+                    if (verbose)
+                        System.err.println("Illegal instruction");
+                    return ILLEGAL;
                 }
                 break;
             }
             case 0x33: /* reg math */ {
-                if (funct3 == 0x0) { /* ADD */
+                if ((inst >>> 25) == 0x01) { /* MUL/DIV */
+                    op = M_OPS[funct3];
+                } else if (funct3 == 0x0) { /* ADD */
                     if (((inst >> 30) & 0x1) == 1)
-                        DecodedInst.op = Instruction.Inst.Sub;
+                        op = Instruction.Inst.Sub;
                     else
-                        DecodedInst.op = Instruction.Inst.Add;
+                        op = Instruction.Inst.Add;
                 } else if (funct3 == 0x2) { /* SLT */
-                    DecodedInst.op = Instruction.Inst.Slt;
+                    op = Instruction.Inst.Slt;
                 } else if (funct3 == 0x3) { /* SLTU */
-                    DecodedInst.op = Instruction.Inst.Sltu;
+                    op = Instruction.Inst.Sltu;
                 } else if (funct3 == 0x4) { /* XOR */
-                    DecodedInst.op = Instruction.Inst.Xor;
+                    op = Instruction.Inst.Xor;
                 } else if (funct3 == 0x6) { /* OR */
-                    DecodedInst.op = Instruction.Inst.Or;
+                    op = Instruction.Inst.Or;
                 } else if (funct3 == 0x7) { /* AND */
-                    DecodedInst.op = Instruction.Inst.And;
+                    op = Instruction.Inst.And;
                 } else if (funct3 == 0x1) { /* SLL */
-                    DecodedInst.op = Instruction.Inst.Sll;
-                    DecodedInst.shamt = DecodedInst.immediate & 0x3f;
+                    op = Instruction.Inst.Sll;
                 } else { /* SRL/SRA */
-                    DecodedInst.shamt = DecodedInst.immediate & 0x3f;
                     if (((inst >>> 30) & 0x1) == 0)
-                        DecodedInst.op = Instruction.Inst.Srl;
+                        op = Instruction.Inst.Srl;
                     else
-                        DecodedInst.op = Instruction.Inst.Sra;
+                        op = Instruction.Inst.Sra;
                 }
                 break;
             }
             case 0x13: /* immediate math */ {
-                DecodedInst.immediate = (inst&0xfff00000)>>20;
+                immediate = (inst&0xfff00000)>>20;
 
                 if (funct3 == 0x0) { /* ADDI */
-                    DecodedInst.op = Instruction.Inst.Addi;
+                    op = Instruction.Inst.Addi;
                 } else if (funct3 == 0x2) { /* SLTI */
-                    DecodedInst.op = Instruction.Inst.Slti;
+                    op = Instruction.Inst.Slti;
                 } else if (funct3 == 0x3) { /* SLTIU */
-                    DecodedInst.op = Instruction.Inst.Sltiu;
+                    op = Instruction.Inst.Sltiu;
                 } else if (funct3 == 0x4) { /* XORI */
-                    DecodedInst.op = Instruction.Inst.Xori;
+                    op = Instruction.Inst.Xori;
                 } else if (funct3 == 0x6) { /* ORI */
-                    DecodedInst.op = Instruction.Inst.Ori;
+                    op = Instruction.Inst.Ori;
                 } else if (funct3 == 0x7) { /* ANDI */
-                    DecodedInst.op = Instruction.Inst.Andi;
+                    op = Instruction.Inst.Andi;
                 } else if (funct3 == 0x1) { /* SLLI */
-                    DecodedInst.op = Instruction.Inst.Slli;
-                    DecodedInst.shamt = DecodedInst.immediate & 0x3f;
+                    op = Instruction.Inst.Slli;
                 } else { /* SRLI/SRAI */
-                    DecodedInst.shamt = DecodedInst.immediate & 0x3f;
                     if (((inst >>> 30) & 0x1) == 0)
-                        DecodedInst.op = Instruction.Inst.Srli;
+                        op = Instruction.Inst.Srli;
                     else
-                        DecodedInst.op = Instruction.Inst.Srai;
+                        op = Instruction.Inst.Srai;
+                }
+                break;
+            }
+            case 0x0F: /* Fences */ {
+                fence = (inst >>> 20) & 0xff;
+                rd = 0;
+                if (funct3 == 0b000) { /* FENCE */
+                    op = Instruction.Inst.Fence;
+                } else if (funct3 == 0b001) { /* FENCE.I */
+                    op = Instruction.Inst.FenceI;
+                } else {
+                    if (verbose)
+                        System.err.printf("Unknown fence funct3: 0x%02X%n", funct3);
+                    return ILLEGAL;
+                }
+                break;
+            }
+            case 0x73: /* System */ {
+                /* The CSR number is kept unsigned in the immediate, the I forms take their value from the rs1 field */
+                immediate = inst >>> 20;
+                if (funct3 == 0b000) {
+                    if (rd != 0)
+                        return ILLEGAL;
+                    if ((inst >>> 25) == 0x09) { /* SFENCE.VMA, the address and ASID are in registers */
+                        op = Instruction.Inst.SfenceVma;
+                        immediate = 0;
+                        break;
+                    }
+                    if (inst == 0x00000073) { /* ECALL */
+                        op = Instruction.Inst.Ecall;
+                    } else if (inst == 0x00100073) { /* EBREAK */
+                        op = Instruction.Inst.Ebreak;
+                    } else if (inst == 0x30200073) { /* MRET */
+                        op = Instruction.Inst.Mret;
+                    } else if (inst == 0x10200073) { /* SRET */
+                        op = Instruction.Inst.Sret;
+                    } else if (inst == 0x10500073) { /* WFI */
+                        op = Instruction.Inst.Wfi;
+                    } else {
+                        if (verbose)
+                            System.err.printf("Unknown system instruction: 0x%08X%n", inst);
+                        return ILLEGAL;
+                    }
+                    immediate = 0;
+                } else if (funct3 == 0b001) { /* CSRRW */
+                    op = Instruction.Inst.Csrrw;
+                } else if (funct3 == 0b010) { /* CSRRS */
+                    op = Instruction.Inst.Csrrs;
+                    /* Reading a counter without side effects is common enough to get its own ops, which the JIT compiles */
+                    if (rs1 == 0) {
+                        if (immediate == Csr.CYCLE)
+                            op = Instruction.Inst.RdCycle;
+                        else if (immediate == Csr.TIME)
+                            op = Instruction.Inst.RdTime;
+                        else if (immediate == Csr.INSTRET)
+                            op = Instruction.Inst.RdInstRet;
+                    }
+                } else if (funct3 == 0b011) { /* CSRRC */
+                    op = Instruction.Inst.Csrrc;
+                } else if (funct3 == 0b101) { /* CSRRWI */
+                    op = Instruction.Inst.Csrrwi;
+                } else if (funct3 == 0b110) { /* CSRRSI */
+                    op = Instruction.Inst.Csrrsi;
+                } else if (funct3 == 0b111) { /* CSRRCI */
+                    op = Instruction.Inst.Csrrci;
                 }
                 break;
             }
             case 0x17: /* AUIPC */ {
-                DecodedInst.op = Instruction.Inst.Auipc;
+                immediate = inst&0xfffff000;
+                op = Instruction.Inst.Auipc;
                 break;
             }
             case 0x3B: /* 32-Bit register math */ {
-                if (funct3 == 0x0) { /* ADD */
+                if ((inst >>> 25) == 0x01) { /* MULW/DIVW */
+                    op = M_WORD_OPS[funct3];
+                    if (op == null) {
+                        if (verbose)
+                            System.err.printf("Unknown 32-Bit register math op funct3: 0x%02X%n", funct3);
+                        return ILLEGAL;
+                    }
+                } else if (funct3 == 0x0) { /* ADD */
                     if (((inst >> 30) & 0x1) == 1)
-                        DecodedInst.op = Instruction.Inst.Subw;
+                        op = Instruction.Inst.Subw;
                     else
-                        DecodedInst.op = Instruction.Inst.Addw;
+                        op = Instruction.Inst.Addw;
                 } else if (funct3 == 0x1) { /* SLLW */
-                    DecodedInst.op = Instruction.Inst.Sllw;
-                    DecodedInst.shamt = DecodedInst.immediate & 0x3f;
+                    op = Instruction.Inst.Sllw;
                 } else if (funct3 == 0x5) { /* SRLW/SRAW */
-                    DecodedInst.shamt = DecodedInst.immediate & 0x3f;
                     if (((inst >>> 30) & 0x1) == 0)
-                        DecodedInst.op = Instruction.Inst.Srlw;
+                        op = Instruction.Inst.Srlw;
                     else
-                        DecodedInst.op = Instruction.Inst.Sraw;
+                        op = Instruction.Inst.Sraw;
                 } else {
-                    System.err.printf("Unknown 32-Bit register math op funct3: 0x%02X%n", funct3);
-                    return null;
+                    if (verbose)
+                        System.err.printf("Unknown 32-Bit register math op funct3: 0x%02X%n", funct3);
+                    return ILLEGAL;
                 }
                 break;
             }
             case 0x1B: /* 32-Bit immediate math */ {
-                DecodedInst.immediate = (inst&0xfff00000)>>20;
+                immediate = (inst&0xfff00000)>>20;
                 if (funct3 == 0b000) { /* ADDIW */
-                    DecodedInst.op = Instruction.Inst.Addiw;
+                    op = Instruction.Inst.Addiw;
                 } else if (funct3 == 0b001) { /* SLLIW */
-                    DecodedInst.op = Instruction.Inst.Slliw;
+                    op = Instruction.Inst.Slliw;
                 } else if (funct3 == 0b101) { /* SRLIW/SRAIW */
                     if (((inst >>> 30) & 1) == 0)
-                        DecodedInst.op = Instruction.Inst.Srliw;
+                        op = Instruction.Inst.Srliw;
                     else
-                        DecodedInst.op = Instruction.Inst.Sraiw;
+                        op = Instruction.Inst.Sraiw;
                 } else {
-                    System.err.printf("Unknown 32-Bit immediate math op funct3: 0x%02X%n", funct3);
-                    return null;
+                    if (verbose)
+                        System.err.printf("Unknown 32-Bit immediate math op funct3: 0x%02X%n", funct3);
+                    return ILLEGAL;
                 }
                 break;
             }
             case 0x23: /* Saves */ {
-                DecodedInst.immediate = (inst&0xfe000000)>>20 | ((inst >>> 7) & 0x1f);
+                immediate = (inst&0xfe000000)>>20 | ((inst >>> 7) & 0x1f);
+                rd = 0;
                 if (funct3 == 0b000) { /* SB */
-                    DecodedInst.op = Instruction.Inst.Sb;
+                    op = Instruction.Inst.Sb;
                 } else if (funct3 == 0b001) { /* SH */
-                    DecodedInst.op = Instruction.Inst.Sh;
+                    op = Instruction.Inst.Sh;
                 } else if (funct3 == 0b010) { /* SW */
-                    DecodedInst.op = Instruction.Inst.Sw;
+                    op = Instruction.Inst.Sw;
                 } else if (funct3 == 0b011) { /* SD */
-                    DecodedInst.op = Instruction.Inst.Sd;
+                    op = Instruction.Inst.Sd;
                 } else {
-                    System.err.printf("Unknown save funct3: 0x%02X", funct3);
-                    return null;
+                    if (verbose)
+                        System.err.printf("Unknown save funct3: 0x%02X", funct3);
+                    return ILLEGAL;
+                }
+                break;
+            }
+            case 0x2F: /* Atomics */ {
+                boolean word = funct3 == 0b010;
+                if (!word && funct3 != 0b011) {
+                    if (verbose)
+                        System.err.println("Illegal instruction");
+                    return ILLEGAL;
                 }
+                switch (inst >>> 27) {
+                    case 0b00010: op = word ? Instruction.Inst.LrW : Instruction.Inst.LrD; break;
+                    case 0b00011: op = word ? Instruction.Inst.ScW : Instruction.Inst.ScD; break;
+                    case 0b00001: op = word ? Instruction.Inst.AmoswapW : Instruction.Inst.AmoswapD; break;
+                    case 0b00000: op = word ? Instruction.Inst.AmoaddW : Instruction.Inst.AmoaddD; break;
+                    case 0b00100: op = word ? Instruction.Inst.AmoxorW : Instruction.Inst.AmoxorD; break;
+                    case 0b01100: op = word ? Instruction.Inst.AmoandW : Instruction.Inst.AmoandD; break;
+                    case 0b01000: op = word ? Instruction.Inst.AmoorW : Instruction.Inst.AmoorD; break;
+                    case 0b10000: op = word ? Instruction.Inst.AmominW : Instruction.Inst.AmominD; break;
+                    case 0b10100: op = word ? Instruction.Inst.AmomaxW : Instruction.Inst.AmomaxD; break;
+                    case 0b11000: op = word ? Instruction.Inst.AmominuW : Instruction.Inst.AmominuD; break;
+                    case 0b11100: op = word ? Instruction.Inst.AmomaxuW : Instruction.Inst.AmomaxuD; break;
+                    default: {
+                        if (verbose)
+                            System.err.println("Illegal instruction");
+                        return ILLEGAL;
+                    }
+                }
+                /* aq/rl are ignored, every atomic is sequentially consistent */
                 break;
             }
             case 0x37: /* LUI */ {
-                DecodedInst.op = Instruction.Inst.Lui;
+                immediate = inst&0xfffff000;
+                op = Instruction.Inst.Lui;
                 break;
             }
             case 0x63: /* Conditional jumps */ {
-                DecodedInst.immediate = (inst&0x80000000)>>19 | (inst<<4)&0x800 | (inst>>>20)&0x7e0 | (inst>>>7)&0x1e;
+                immediate = (inst&0x80000000)>>19 | (inst<<4)&0x800 | (inst>>>20)&0x7e0 | (inst>>>7)&0x1e;
+                rd = 0;
 
                 switch (funct3) {
                     case 0x0: {
-                        DecodedInst.op = Instruction.Inst.Beq;
+                        op = Instruction.Inst.Beq;
                         break;
                     }
                     case 0x1: {
-                        DecodedInst.op = Instruction.Inst.Bne;
+                        op = Instruction.Inst.Bne;
                         break;
                     }
                     case 0x4: {
-                        DecodedInst.op = Instruction.Inst.Blt;
+                        op = Instruction.Inst.Blt;
                         break;
                     }
                     case 0x5: {
-                        DecodedInst.op = Instruction.Inst.Bge;
+                        op = Instruction.Inst.Bge;
                         break;
                     }
                     case 0x6: {
-                        DecodedInst.op = Instruction.Inst.Bltu;
+                        op = Instruction.Inst.Bltu;
                         break;
                     }
                     case 0x7: {
-                        DecodedInst.op = Instruction.Inst.Bgeu;
+                        op = Instruction.Inst.Bgeu;
                         break;
                     }
                 }
                 break;
             }
             case 0x6f: /* JAL */ {
-                DecodedInst.immediate = ((inst&0x80000000)>>11) + (inst&0xFF000) + ((inst>>>9)&0x800) + ((inst>>>20)&0x7FE);
-                DecodedInst.op = Instruction.Inst.Jal;
+                immediate = ((inst&0x80000000)>>11) + (inst&0xFF000) + ((inst>>>9)&0x800) + ((inst>>>20)&0x7FE);
+                op = Instruction.Inst.Jal;
                 break;
             }
             case 0x67: /* JALR */ {
-                DecodedInst.immediate = (inst&0xFFF00000)>>20;
-                DecodedInst.op = Instruction.Inst.Jalr;
+                immediate = (inst&0xFFF00000)>>20;
+                op = Instruction.Inst.Jalr;
                 break;
             }
             default: {
-                System.err.printf("Unknown opcode: 0x%02X\n", opcode);
-                return null;
+                if (verbose)
+                    System.err.printf("Unknown opcode: 0x%02X\n", opcode);
+                return ILLEGAL;
             }
         }
-        return DecodedInst;
+        if (op == null) {
+            if (verbose)
+                System.err.printf("Unknown funct3 0x%02X for opcode 0x%02X%n", funct3, opcode);
+            return ILLEGAL;
+        }
+        return pack(op, rd, rs1, rs2, immediate, fence);
     }
 
 }
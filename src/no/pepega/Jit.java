@@ -0,0 +1,204 @@
+package no.pepega;
+
+/**
+ * Tiered execution for one hart. The interpreter reports every basic block it enters, and once a
+ * block has been entered {@link #THRESHOLD} times it is compiled by {@link BlockCompiler}. Compiled
+ * blocks are kept per page like the decode cache and dropped together with it.
+ *
+ * Blocks are chained: a block ending in a direct branch or JAL remembers the block at each of its
+ * targets, and blocks ending in JALR go through a small indirect branch target cache, so going from
+ * one block to the next usually skips the page table and hotness counters entirely.
+ */
+public class Jit {
+    /** Run with -Djerv.interpret=true to disable the JIT, e.g. to compare against the interpreter. */
+    public static final boolean INTERPRET_ONLY = Boolean.getBoolean("jerv.interpret");
+    static final int THRESHOLD = Integer.getInteger("jerv.jit.threshold", 50);
+    /** Run with -Djerv.jit.nochain=true to always look up the next block, e.g. to measure what chaining buys. */
+    static final boolean NO_CHAIN = Boolean.getBoolean("jerv.jit.nochain");
+
+    private static final int IBTC_SIZE = 64;
+
+    private static final int PAGE_SHIFT = DecodeCache.PAGE_SHIFT;
+    private static final int PAGE_SIZE = DecodeCache.PAGE_SIZE;
+
+    private final RISCV cpu;
+    private final BlockCompiler compiler = new BlockCompiler();
+    private final CompiledBlock[][] blocks;
+    private final int[][] counters;
+    private final long[] insts = new long[BlockCompiler.MAX_BLOCK];
+
+    /* Indirect branch target cache, direct-mapped on the target pc */
+    private final long[] ibtcPc = new long[IBTC_SIZE];
+    private final CompiledBlock[] ibtcBlock = new CompiledBlock[IBTC_SIZE];
+
+    long compiled;
+    long compiledInsts;
+    long failed;
+    long runs;
+    long invalidations;
+    long chained;
+    long ibtcHits;
+
+    public Jit(RISCV cpu, int pages) {
+        this.cpu = cpu;
+        this.blocks = new CompiledBlock[pages][];
+        this.counters = new int[pages][];
+    }
+
+    /**
+     * Returns the block the previous block is linked to for pc, or null if it isn't linked yet. Links to
+     * blocks that have been invalidated since are dropped here.
+     */
+    CompiledBlock next(CompiledBlock from, long pc) {
+        if (from == null || NO_CHAIN)
+            return null;
+
+        CompiledBlock b;
+        if (pc == from.takenPc) {
+            b = from.taken;
+            if (b != null && !b.valid)
+                b = from.taken = null;
+        } else if (pc == from.fallthroughPc) {
+            b = from.fallthrough;
+            if (b != null && !b.valid)
+                b = from.fallthrough = null;
+        } else {
+            int i = (int)(pc >>> 2) & (IBTC_SIZE - 1);
+            b = ibtcBlock[i];
+            if (b == null || ibtcPc[i] != pc)
+                return null;
+            if (!b.valid) {
+                ibtcBlock[i] = null;
+                return null;
+            }
+            ibtcHits++;
+            return b;
+        }
+        if (b != null)
+            chained++;
+        return b;
+    }
+
+    /**
+     * Called when the interpreter, or the previous block, is at the start of a basic block. Returns the
+     * compiled block if there is one, linking the previous block to it.
+     */
+    CompiledBlock enter(long pc, CompiledBlock from) {
+        CompiledBlock b = lookup(pc);
+        if (b != null && from != null && !NO_CHAIN)
+            link(from, pc, b);
+        return b;
+    }
+
+    private void link(CompiledBlock from, long pc, CompiledBlock to) {
+        if (pc == from.takenPc) {
+            from.taken = to;
+        } else if (pc == from.fallthroughPc) {
+            from.fallthrough = to;
+        } else {
+            int i = (int)(pc >>> 2) & (IBTC_SIZE - 1);
+            ibtcPc[i] = pc;
+            ibtcBlock[i] = to;
+        }
+    }
+
+    private CompiledBlock lookup(long pc) {
+        int p = (int)(pc >>> PAGE_SHIFT);
+        int slot = (int)(pc & (PAGE_SIZE - 1)) >>> 2;
+        CompiledBlock[] page = blocks[p];
+        if (page != null && page[slot] != null)
+            return page[slot];
+
+        int[] count = counters[p];
+        if (count == null) {
+            count = new int[DecodeCache.SLOTS];
+            counters[p] = count;
+        }
+        if (++count[slot] != THRESHOLD)
+            return null;
+
+        Profile.CompileEvent event = null;
+        if (Profile.ENABLED) {
+            event = new Profile.CompileEvent();
+            event.begin();
+        }
+        CompiledBlock b = compile(pc);
+        if (Profile.ENABLED && event.shouldCommit()) {
+            event.pc = pc;
+            event.length = b == null ? 0 : b.length;
+            event.succeeded = b != null;
+            event.commit();
+        }
+        if (b == null) {
+            failed++;
+            return null;
+        }
+        if (page == null) {
+            page = new CompiledBlock[DecodeCache.SLOTS];
+            blocks[p] = page;
+        }
+        page[slot] = b;
+        compiled++;
+        compiledInsts += b.length;
+        return b;
+    }
+
+    private CompiledBlock compile(long pc) {
+        long pageEnd = (pc | (PAGE_SIZE - 1)) + 1;
+        int count = 0;
+        for (long addr = pc; addr < pageEnd && count < insts.length; addr += 4) {
+            long d = Instruction.decodePacked(cpu.read32(addr));
+            if (d == Instruction.ILLEGAL || !BlockCompiler.canCompile(Instruction.op(d)))
+                break;
+            insts[count++] = d;
+            if (BlockCompiler.endsBlock(Instruction.op(d)))
+                break;
+        }
+        return compiler.compile(pc, insts, count);
+    }
+
+    /** Drops compiled code and counters for the page containing addr. Called on every guest store. */
+    void invalidate(long addr) {
+        dropPage((int)(addr >>> PAGE_SHIFT));
+    }
+
+    /** Drops all compiled code, used by FENCE.I. */
+    void flush() {
+        for (int p = 0; p < blocks.length; p++)
+            dropPage(p);
+    }
+
+    private void dropPage(int p) {
+        CompiledBlock[] page = blocks[p];
+        counters[p] = null;
+        if (page == null)
+            return;
+        /* Blocks on other pages may still link here, they unlink when they see the block is gone */
+        for (CompiledBlock b : page) {
+            if (b != null)
+                b.valid = false;
+        }
+        blocks[p] = null;
+        invalidations++;
+    }
+
+    public long compiled() {
+        return compiled;
+    }
+
+    public long runs() {
+        return runs;
+    }
+
+    public long invalidations() {
+        return invalidations;
+    }
+
+    public long chained() {
+        return chained;
+    }
+
+    public long ibtcHits() {
+        return ibtcHits;
+    }
+}
@@ -1,15 +1,24 @@
 package no.pepega;
 
-import java.util.Collection;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 
+/**
+ * What a VM is built from: the boot image and the components by address. Each VM attaches its own
+ * devices for the components to its {@link Bus}, so the machine itself is never written to and can be
+ * shared between VMs.
+ */
 public class Machine {
     Map<String, String> comps;
-    byte[] eeprom;
+    ByteBuffer eeprom;
 
     public Machine(byte[] eeprom) {
+        this(ByteBuffer.wrap(eeprom));
+    }
+
+    /** The EEPROM image is never written to, so a mapped file can be shared between machines. */
+    public Machine(ByteBuffer eeprom) {
         comps = new HashMap<>();
         comps.put("0", "computer");
         //comps.put("1", "gpu");
@@ -19,10 +28,22 @@ public class Machine {
         this.eeprom = eeprom;
     }
 
-    public Object[] invoke(String addr, String action, Object[] attr) {
-        if (addr.equals("3") && action.equals("get"))
-            return new Object[]{eeprom};
-        return null;
+    /** Recreates a machine from a snapshot. */
+    Machine(ByteBuffer eeprom, Map<String, String> comps) {
+        this.comps = new HashMap<>(comps);
+        this.eeprom = eeprom;
+    }
+
+    /** The EEPROM contents, without copying. */
+    ByteBuffer eeprom() {
+        return eeprom.duplicate();
+    }
+
+    /** Adds a GPU and a screen for it. */
+    public Machine withDisplay() {
+        comps.put("1", "gpu");
+        comps.put("2", "screen");
+        return this;
     }
 
     public void beep(short hz, short len) {
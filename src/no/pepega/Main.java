@@ -1,63 +1,113 @@
 package no.pepega;
 
+import com.sun.management.ThreadMXBean;
+
 import java.io.File;
-import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 
 public class Main {
 
     public static void main(String[] args) throws Exception {
-        File file = new File("./res/eeprom.ch8");
-
-        byte[] eeprom = Files.readAllBytes(file.toPath());
-
-        for (int i = 0; i < eeprom.length; i += 4) {
-            int opcode = Byte.toUnsignedInt(eeprom[i])|Byte.toUnsignedInt(eeprom[i+1])<<8|Byte.toUnsignedInt(eeprom[i+2])<<16|Byte.toUnsignedInt(eeprom[i+3])<<24;
-            Instruction inst = Instruction.decode(opcode);
-            if (inst == null) {
-                System.out.printf("0x%02X: Unknown instruction\n", i);
-                continue;
-            }
-            System.out.printf("0x%02X: %08x\t", i, opcode);
-            System.out.print(inst.op+" ");
-            String rs1 = Instruction.regName(inst.rs1);
-            String rs2 = Instruction.regName(inst.rs2);
-            String rd = Instruction.regName(inst.rd);
-            switch (inst.op) {
-                case Add: case And: case Addw: {
-                    System.out.printf("%s, %s, %s", rd, rs1, rs2);
-                    break;
-                }
-                case Addi: case Addiw: case Andi: case Jalr: {
-                    System.out.printf("%s, %s, %d", rd, rs1, inst.immediate);
-                    break;
-                }
-                case Beq: case Bne: case Blt: case Bge: case Bltu: case Bgeu: {
-                    System.out.printf("%s, %s, %d\t\t# 0x%02X", rs1, rs2, inst.immediate, i+inst.immediate);
-                    break;
-                }
-                case Jal: case Auipc: {
-                    System.out.printf("%s, %d\t\t# 0x%02X", rd, inst.immediate, i+inst.immediate);
-                    break;
-                }
-                case Lb: case Lh: case Lw: case Ld: {
-                    System.out.printf("%s, %d(%s)", rd, inst.immediate, rs1);
-                    break;
-                }
-                case Sb: case Sh: case Sw: case Sd: {
-                    System.out.printf("%s, %d(%s)", rs2, inst.immediate, rs1);
-                    break;
-                }
-            }
-            System.out.println();
+        File file = new File(args.length > 0 ? args[0] : "./res/eeprom.ch8");
+
+        ByteBuffer eeprom;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            eeprom = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
         }
 
+        Disassembler.disassemble(eeprom, 0, Channels.newChannel(System.out));
+
         Machine machine = new Machine(eeprom);
-        PseudoVM vm = new PseudoVM(machine);
+        if (Boolean.getBoolean("jerv.display"))
+            machine.withDisplay();
+        long mem_size = Long.getLong("jerv.memory", PseudoVM.DEFAULT_MEMORY);
+        Memory memory = Boolean.getBoolean("jerv.offheap") ? new OffHeapMemory(mem_size) : new PagedMemory(mem_size);
+        PseudoVM vm = new PseudoVM(machine, memory, Integer.getInteger("jerv.harts", 1));
+        String image = System.getProperty("jerv.disk");
+        VirtioBlock disk = image != null ? new VirtioBlock(new File(image).toPath(), Boolean.getBoolean("jerv.disk.ro")) : null;
+        if (disk != null)
+            vm.attachDisk(disk);
+
+        int guests = Integer.getInteger("jerv.guests", 1);
+        if (guests > 1) {
+            runGuests(vm, guests, Integer.getInteger("jerv.threads", Runtime.getRuntime().availableProcessors()));
+            return;
+        }
+
+        // The interpreter should not allocate once booted, so this should stay flat as run time grows
+        if (Profile.ENABLED)
+            Profile.register(vm, "main");
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
         vm.run(0);
         vm.arch.step = true;
         while (!vm.arch.hard_halted && vm.is_booted) {
             vm.run(1);
+        }
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        System.out.printf("Allocated %d bytes while running\n", allocated);
+        System.out.printf("Memory: %d KiB resident of %d KiB\n", vm.residentMemory() / 1024, vm.nominalMemory() / 1024);
+        System.out.printf("Decode cache: %d hits, %d misses, %d invalidations, %d pairs fused\n",
+                vm.arch.icache.hits(), vm.arch.icache.misses(), vm.arch.icache.invalidations(), vm.arch.icache.fused());
+        Mmu mmu = vm.arch.mmu;
+        if (mmu.misses() > 0) {
+            // Hits are only counted when profiling
+            if (Profile.ENABLED)
+                System.out.printf("TLB: %d hits, %d misses, %.4f%% hit rate, %d page faults, %d flushes\n",
+                        mmu.hits(), mmu.misses(), 100.0 * mmu.hits() / (mmu.hits() + mmu.misses()), mmu.faults(), mmu.flushes());
+            else
+                System.out.printf("TLB: %d misses, %d page faults, %d flushes\n", mmu.misses(), mmu.faults(), mmu.flushes());
+        }
+        if (vm.arch.jit != null)
+            System.out.printf("JIT: %d blocks compiled, %d compiled block runs (%d chained, %d via JALR cache), %d invalidations\n",
+                    vm.arch.jit.compiled(), vm.arch.jit.runs(), vm.arch.jit.chained(), vm.arch.jit.ibtcHits(),
+                    vm.arch.jit.invalidations());
+        System.out.printf("Ran %.1f MIPS, %.1f ms in %d slices\n",
+                vm.instructionsPerSecond() / 1e6, vm.runNanos() / 1e6, vm.runCalls());
+        if (disk != null) {
+            System.out.printf("Disk: %d requests in %d batches, %d interrupts, %d KiB read, %d KiB written\n",
+                    disk.requests(), disk.batches(), disk.interrupts(), disk.bytesRead() / 1024, disk.bytesWritten() / 1024);
+            disk.close();
+        }
+        Screen screen = vm.screen();
+        if (screen != null) {
+            System.out.println("Screen:");
+            for (int y = 1; y <= screen.height(); y++)
+                System.out.println(screen.line(y).stripTrailing());
+        }
+        if (Profile.ENABLED) {
+            System.out.println("Most executed ops:");
+            Profile.opCounts(vm).entrySet().stream().limit(10)
+                    .forEach(e -> System.out.printf("  %-10s %d\n", e.getKey(), e.getValue()));
+            // Fused pairs only run in the interpreter, compiled blocks count their ops one by one
+            Map<String, Long> counts = Profile.opCounts(vm);
+            System.out.println("Fused pairs executed:");
+            for (Instruction.Inst op : Instruction.FUSED_OPS)
+                System.out.printf("  %-10s %d\n", op, counts.getOrDefault(op.name(), 0L));
         }
 	    System.out.println("Hello, World!");
     }
+
+    /* Boots the VM once, then runs it and forks of it side by side on the scheduler */
+    private static void runGuests(PseudoVM vm, int guests, int threads) throws Exception {
+        vm.run(0);
+        try (Scheduler scheduler = new Scheduler(threads)) {
+            long start = System.nanoTime();
+            for (int i = 1; i < guests; i++)
+                scheduler.submit(vm.fork());
+            scheduler.submit(vm);
+            scheduler.awaitAll();
+            long wall = System.nanoTime() - start;
+
+            for (Scheduler.Guest g : scheduler.guests())
+                System.out.println(g);
+            System.out.printf("%d guests on %d threads in %.1f ms\n", guests, threads, wall / 1e6);
+        }
+    }
 }
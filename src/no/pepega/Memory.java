@@ -0,0 +1,306 @@
+package no.pepega;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Guest physical memory. RAM is split into 4 KiB pages that backends allocate lazily, so only
+ * pages the guest has written cost host memory. The interpreter and compiled blocks only use the
+ * load/store methods here, so backends are interchangeable.
+ *
+ * Read-only images, typically memory-mapped files, can be mapped into guest memory without copying.
+ * Their pages are only materialized when the guest touches them, and a guest write never reaches
+ * the image itself.
+ *
+ * A memory can be forked: the copy shares every page with the original, and whichever side writes
+ * to a shared page first gets a private copy of it.
+ */
+public abstract class Memory {
+    static final int PAGE_SHIFT = 12;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /* Read-modify-write operations for amo32/amo64 */
+    static final int AMO_SWAP = 0;
+    static final int AMO_ADD = 1;
+    static final int AMO_XOR = 2;
+    static final int AMO_AND = 3;
+    static final int AMO_OR = 4;
+    static final int AMO_MIN = 5;
+    static final int AMO_MAX = 6;
+    static final int AMO_MINU = 7;
+    static final int AMO_MAXU = 8;
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    final long size;
+    /* Pages owned by this memory, and pages it reads from memory owned by a fork or an image */
+    int resident;
+    int sharedPages;
+
+    /* Mapped images, sorted by base address and never overlapping */
+    private long[] imageBase = new long[4];
+    private ByteBuffer[] images = new ByteBuffer[4];
+    private int imageCount = 0;
+
+    Memory(long size) {
+        this.size = size;
+    }
+
+    /** Configured size in bytes. */
+    public long size() {
+        return size;
+    }
+
+    /** Bytes actually backed by pages, private or shared. */
+    public long residentBytes() {
+        return (long)(resident + sharedPages) << PAGE_SHIFT;
+    }
+
+    /** Bytes in pages only this memory uses, i.e. what it has written since it was created or forked. */
+    public long privateBytes() {
+        return (long)resident << PAGE_SHIFT;
+    }
+
+    /** Bytes in pages still shared with a fork or read in place from an image. */
+    public long sharedBytes() {
+        return (long)sharedPages << PAGE_SHIFT;
+    }
+
+    public int pageCount() {
+        return Math.toIntExact((size + PAGE_MASK) >>> PAGE_SHIFT);
+    }
+
+    /** Drops every page and mapped image, leaving the memory zeroed. */
+    public void clear() {
+        Arrays.fill(images, null);
+        imageCount = 0;
+        discardAll();
+    }
+
+    abstract void discardAll();
+
+    /**
+     * Returns a memory of the same kind with the same contents, sharing every page with this one
+     * until either side writes to it. Costs one pass over the page table, no page is copied.
+     */
+    public Memory fork() {
+        Memory child = forkPages();
+        child.imageBase = imageBase.clone();
+        child.images = images.clone();
+        child.imageCount = imageCount;
+        return child;
+    }
+
+    /** Creates the forked memory and marks every page shared on both sides. */
+    abstract Memory forkPages();
+
+    /** Drops one page, so the next access sees the image under it or zeroes. */
+    abstract void discard(int page);
+
+    /**
+     * Maps an image at a page-aligned guest address, replacing any pages written there. Images can't
+     * overlap each other, clear the memory first to remap. The bytes between the image's position and
+     * limit are used, and the buffer is never written to, so one mapped file can back any number of
+     * guests.
+     */
+    public void map(long addr, ByteBuffer image) {
+        if ((addr & PAGE_MASK) != 0)
+            throw new IllegalArgumentException(String.format("Image at 0x%X is not page aligned", addr));
+        if (!image.hasRemaining())
+            return;
+        ByteBuffer ro = image.slice().asReadOnlyBuffer();
+        int first = index(addr);
+        int last = index(addr + ro.capacity() - 1);
+
+        int at = findImage(addr) + 1;
+        if ((at > 0 && addr < imageBase[at - 1] + images[at - 1].capacity())
+                || (at < imageCount && imageBase[at] <= addr + ro.capacity() - 1))
+            throw new IllegalArgumentException(String.format("Image at 0x%X overlaps a mapped image", addr));
+
+        for (int p = first; p <= last; p++)
+            discard(p);
+
+        if (imageCount == images.length) {
+            imageBase = Arrays.copyOf(imageBase, 2*imageCount);
+            images = Arrays.copyOf(images, 2*imageCount);
+        }
+        System.arraycopy(imageBase, at, imageBase, at + 1, imageCount - at);
+        System.arraycopy(images, at, images, at + 1, imageCount - at);
+        imageBase[at] = addr;
+        images[at] = ro;
+        imageCount++;
+    }
+
+    /** Returns the index of the last image based at or below addr, or -1. */
+    private int findImage(long addr) {
+        int lo = 0;
+        int hi = imageCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (imageBase[mid] <= addr)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return hi;
+    }
+
+    /**
+     * Returns the part of a mapped image that covers the given page, or null if there is none. The
+     * slice is shorter than a page at the end of an image.
+     */
+    ByteBuffer imagePage(int page) {
+        if (imageCount == 0)
+            return null;
+        long addr = (long)page << PAGE_SHIFT;
+        int r = findImage(addr);
+        if (r < 0)
+            return null;
+        long off = addr - imageBase[r];
+        if (off >= images[r].capacity())
+            return null;
+        int len = (int)Math.min(PAGE_SIZE, images[r].capacity() - off);
+        return images[r].slice((int)off, len);
+    }
+
+    /**
+     * Copies a page into dst, which must hold a whole page. Returns false, leaving dst untouched, for a
+     * page that was never written or mapped and so reads as zeroes.
+     */
+    abstract boolean copyPage(int page, byte[] dst);
+
+    /** Overwrites a whole page, e.g. when restoring a snapshot. */
+    void writePage(int page, byte[] src) {
+        long addr = (long)page << PAGE_SHIFT;
+        for (int i = 0; i < PAGE_SIZE; i += 8)
+            write64(addr + i, (long) LONG.get(src, i));
+    }
+
+    /** Copies out the part of a mapped image covering page, zero-filling the rest. Returns false if there is none. */
+    boolean copyImagePage(int page, byte[] dst) {
+        ByteBuffer image = imagePage(page);
+        if (image == null)
+            return false;
+        image.get(0, dst, 0, image.capacity());
+        Arrays.fill(dst, image.capacity(), PAGE_SIZE, (byte)0);
+        return true;
+    }
+
+    int index(long addr) {
+        if (Long.compareUnsigned(addr, size) >= 0)
+            throw new IndexOutOfBoundsException(String.format("Guest address 0x%X out of range", addr));
+        return (int)(addr >>> PAGE_SHIFT);
+    }
+
+    /*
+     * Atomics need natural alignment, so they never straddle pages. Only an assertion, the harts trap on
+     * misaligned ones before getting here
+     */
+    static void checkAligned(long addr, int len) {
+        if ((addr & (len - 1)) != 0)
+            throw new IllegalArgumentException(String.format("Misaligned atomic access at 0x%X", addr));
+    }
+
+    /* The operations the VarHandles have no getAndX for, done in a compare-and-exchange loop */
+    static int minMax32(int op, int old, int operand) {
+        switch (op) {
+            case AMO_MIN: return Math.min(old, operand);
+            case AMO_MAX: return Math.max(old, operand);
+            case AMO_MINU: return Integer.compareUnsigned(old, operand) <= 0 ? old : operand;
+            case AMO_MAXU: return Integer.compareUnsigned(old, operand) >= 0 ? old : operand;
+            default: throw new IllegalArgumentException("Unknown atomic operation " + op);
+        }
+    }
+
+    static long minMax64(int op, long old, long operand) {
+        switch (op) {
+            case AMO_MIN: return Math.min(old, operand);
+            case AMO_MAX: return Math.max(old, operand);
+            case AMO_MINU: return Long.compareUnsigned(old, operand) <= 0 ? old : operand;
+            case AMO_MAXU: return Long.compareUnsigned(old, operand) >= 0 ? old : operand;
+            default: throw new IllegalArgumentException("Unknown atomic operation " + op);
+        }
+    }
+
+    /* Accesses that straddle two pages are rare enough to go byte by byte */
+    long readSlow(long addr, int len) {
+        long v = 0;
+        for (int i = 0; i < len; i++)
+            v |= Byte.toUnsignedLong(read8(addr + i)) << (8*i);
+        return v;
+    }
+
+    void writeSlow(long addr, long data, int len) {
+        for (int i = 0; i < len; i++)
+            write8(addr + i, (byte)(data >>> (8*i)));
+    }
+
+    /**
+     * Copies guest memory from addr into dst, as much as dst has room for. This is for devices moving
+     * whole buffers: each page is copied straight into dst, without going through the load methods.
+     */
+    public void load(long addr, ByteBuffer dst) {
+        checkRange(addr, dst.remaining());
+        while (dst.hasRemaining()) {
+            int off = (int)addr & PAGE_MASK;
+            int len = Math.min(PAGE_SIZE - off, dst.remaining());
+            loadPage(index(addr), off, dst, len);
+            addr += len;
+        }
+    }
+
+    /** Copies the remaining bytes of src into guest memory at addr. Code there is not invalidated. */
+    public void store(long addr, ByteBuffer src) {
+        checkRange(addr, src.remaining());
+        while (src.hasRemaining()) {
+            int off = (int)addr & PAGE_MASK;
+            int len = Math.min(PAGE_SIZE - off, src.remaining());
+            storePage(index(addr), off, src, len);
+            addr += len;
+        }
+    }
+
+    /* Fails before anything is copied, rather than halfway */
+    private void checkRange(long addr, int len) {
+        if (len > 0 && (Long.compareUnsigned(addr, size) >= 0 || Long.compareUnsigned(len, size - addr) > 0))
+            throw new IndexOutOfBoundsException(String.format("Guest range 0x%X+0x%X out of range", addr, len));
+    }
+
+    /** Copies len bytes at off in page into dst, advancing it. The range never leaves the page. */
+    abstract void loadPage(int page, int off, ByteBuffer dst, int len);
+
+    abstract void storePage(int page, int off, ByteBuffer src, int len);
+
+    public abstract byte read8(long addr);
+
+    public abstract short read16(long addr);
+
+    public abstract int read32(long addr);
+
+    public abstract long read64(long addr);
+
+    public abstract void write8(long addr, byte data);
+
+    public abstract void write16(long addr, short data);
+
+    public abstract void write32(long addr, int data);
+
+    public abstract void write64(long addr, long data);
+
+    /**
+     * Atomically applies one of the AMO_ operations to the naturally aligned word at addr and returns
+     * the old value. Lock-free, and sequentially consistent with other atomics on any thread.
+     */
+    public abstract int amo32(long addr, int op, int operand);
+
+    public abstract long amo64(long addr, int op, long operand);
+
+    /** Atomically stores value at the aligned addr if it holds expected. Returns the value found. */
+    public abstract int cas32(long addr, int expected, int value);
+
+    public abstract long cas64(long addr, long expected, long value);
+}
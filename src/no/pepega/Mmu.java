@@ -0,0 +1,273 @@
+package no.pepega;
+
+import java.util.Arrays;
+
+/**
+ * Sv39 address translation for one hart, with a software TLB.
+ *
+ * The TLB is direct-mapped and split by access type. Loads, stores and instruction fetches each have an
+ * array of virtual page numbers and an array of what to add to an address in that page to get the
+ * physical one, so a hit is one compare and one add. Entries are only made for accesses the page
+ * allows, e.g. store entries only for pages that are writable and already dirty, so hits need no
+ * permission checks. What is allowed depends on the privilege mode, so S and U mode have a TLB each and
+ * switching modes just switches arrays. Machine mode doesn't translate.
+ *
+ * ASIDs aren't implemented, so writing satp flushes the TLBs, as does sfence.vma. The walk sets the A
+ * and D bits itself instead of faulting.
+ */
+final class Mmu {
+    static final int MODE_BARE = 0;
+    static final int MODE_SV39 = 8;
+
+    /* Access types, the page fault causes for each */
+    static final int FETCH = 12;
+    static final int LOAD = 13;
+    static final int STORE = 15;
+
+    private static final long PTE_V = 1;
+    private static final long PTE_R = 2;
+    private static final long PTE_W = 4;
+    private static final long PTE_X = 8;
+    private static final long PTE_U = 16;
+    private static final long PTE_A = 64;
+    private static final long PTE_D = 128;
+    private static final long PPN_MASK = (1L << 44) - 1;
+
+    private static final int TLB_BITS = 8;
+    private static final int TLB_SIZE = 1 << TLB_BITS;
+
+    /** The TLB of one privilege mode. Tags are virtual page numbers, -1 never matches one. */
+    static final class Tlb {
+        final long[] load_tag = new long[TLB_SIZE];
+        final long[] load_delta = new long[TLB_SIZE];
+        final long[] store_tag = new long[TLB_SIZE];
+        final long[] store_delta = new long[TLB_SIZE];
+        final long[] fetch_tag = new long[TLB_SIZE];
+        final long[] fetch_delta = new long[TLB_SIZE];
+
+        Tlb() {
+            flush();
+        }
+
+        void flush() {
+            Arrays.fill(load_tag, -1);
+            Arrays.fill(store_tag, -1);
+            Arrays.fill(fetch_tag, -1);
+        }
+
+        void flush(long vpn) {
+            int i = (int)vpn & (TLB_SIZE - 1);
+            if (load_tag[i] == vpn)
+                load_tag[i] = -1;
+            if (store_tag[i] == vpn)
+                store_tag[i] = -1;
+            if (fetch_tag[i] == vpn)
+                fetch_tag[i] = -1;
+        }
+    }
+
+    /**
+     * A page or access fault, thrown out of the instruction that caused it and turned into a trap by
+     * the hart. Each hart has one, made up front, so faulting allocates nothing.
+     */
+    static final class PageFault extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        long cause;
+        long tval;
+
+        PageFault() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final RISCV hart;
+    private final Memory memory;
+    private final Tlb supervisor = new Tlb();
+    private final Tlb user = new Tlb();
+    private final PageFault fault = new PageFault();
+
+    /* The TLB of the current mode, and the root page table */
+    private Tlb tlb = supervisor;
+    private long root;
+
+    /* Hits are only counted when profiling, misses are page table walks */
+    long hits;
+    long misses;
+    long faults;
+    long flushes;
+
+    Mmu(RISCV hart, Memory memory) {
+        this.hart = hart;
+        this.memory = memory;
+    }
+
+    long load(long va) {
+        long vpn = va >>> 12;
+        int i = (int)vpn & (TLB_SIZE - 1);
+        Tlb t = tlb;
+        if (t.load_tag[i] == vpn) {
+            if (Profile.ENABLED)
+                hits++;
+            return va + t.load_delta[i];
+        }
+        return walk(va, LOAD);
+    }
+
+    long store(long va) {
+        long vpn = va >>> 12;
+        int i = (int)vpn & (TLB_SIZE - 1);
+        Tlb t = tlb;
+        if (t.store_tag[i] == vpn) {
+            if (Profile.ENABLED)
+                hits++;
+            return va + t.store_delta[i];
+        }
+        return walk(va, STORE);
+    }
+
+    long fetch(long va) {
+        long vpn = va >>> 12;
+        int i = (int)vpn & (TLB_SIZE - 1);
+        Tlb t = tlb;
+        if (t.fetch_tag[i] == vpn) {
+            if (Profile.ENABLED)
+                hits++;
+            return va + t.fetch_delta[i];
+        }
+        return walk(va, FETCH);
+    }
+
+    /**
+     * Called when satp, the privilege mode or mstatus changed. Picks the TLB for the mode and tells the
+     * hart whether to translate at all.
+     */
+    void update(boolean flush) {
+        Csr csr = hart.csr;
+        if (flush) {
+            supervisor.flush();
+            user.flush();
+            flushes++;
+        }
+        root = (csr.satp & PPN_MASK) << 12;
+        tlb = csr.priv == Csr.PRIV_U ? user : supervisor;
+        hart.paging = (csr.satp >>> 60) == MODE_SV39 && csr.priv != Csr.PRIV_M;
+    }
+
+    /** sfence.vma: flushes the page of va, or everything if all is set. */
+    void fence(long va, boolean all) {
+        if (all) {
+            supervisor.flush();
+            user.flush();
+            flushes++;
+        } else {
+            supervisor.flush(va >>> 12);
+            user.flush(va >>> 12);
+        }
+    }
+
+    private long walk(long va, int access) {
+        misses++;
+        /* Bits 63 to 39 must all equal bit 38 */
+        if ((va >> 38) != 0 && (va >> 38) != -1)
+            throw fault(access, va);
+
+        Csr csr = hart.csr;
+        long table = root;
+        for (int level = 2; level >= 0; level--) {
+            long pte_addr = table + ((va >>> (12 + 9*level)) & 0x1FF) * 8;
+            if (Long.compareUnsigned(pte_addr, memory.size()) >= 0)
+                throw accessFault(access, va);
+            long pte = memory.read64(pte_addr);
+            if ((pte & PTE_V) == 0 || (pte & (PTE_R | PTE_W)) == PTE_W)
+                throw fault(access, va);
+            if ((pte & (PTE_R | PTE_X)) == 0) {
+                table = ((pte >>> 10) & PPN_MASK) << 12;
+                continue;
+            }
+
+            if (!allowed(pte, access, csr.priv, csr.mstatus))
+                throw fault(access, va);
+            long ppn = (pte >>> 10) & PPN_MASK;
+            long span = (1L << (9*level)) - 1;
+            if ((ppn & span) != 0)
+                throw fault(access, va);
+            long ad = PTE_A | (access == STORE ? PTE_D : 0);
+            if ((pte & ad) != ad) {
+                /* Another hart may be changing the entry too, walk again if it did */
+                if (memory.cas64(pte_addr, pte, pte | ad) != pte)
+                    return walk(va, access);
+                hart.codeWritten(pte_addr);
+            }
+
+            /* Only RAM holds code, device registers can be mapped for loads and stores */
+            long page = (ppn << 12) | (va & (span << 12));
+            if (Long.compareUnsigned(page, memory.size()) >= 0 && (access == FETCH || hart.bus.find(page) < 0))
+                throw accessFault(access, va);
+            long vpn = va >>> 12;
+            int i = (int)vpn & (TLB_SIZE - 1);
+            long delta = page - (vpn << 12);
+            Tlb t = tlb;
+            switch (access) {
+                case LOAD: t.load_tag[i] = vpn; t.load_delta[i] = delta; break;
+                case STORE: t.store_tag[i] = vpn; t.store_delta[i] = delta; break;
+                default: t.fetch_tag[i] = vpn; t.fetch_delta[i] = delta; break;
+            }
+            return page | (va & 0xFFF);
+        }
+        throw fault(access, va);
+    }
+
+    private static boolean allowed(long pte, int access, int priv, long mstatus) {
+        boolean user_page = (pte & PTE_U) != 0;
+        if (priv == Csr.PRIV_U ? !user_page : user_page && (access == FETCH || (mstatus & Csr.MSTATUS_SUM) == 0))
+            return false;
+        switch (access) {
+            case FETCH: return (pte & PTE_X) != 0;
+            case LOAD: return (pte & PTE_R) != 0 || ((mstatus & Csr.MSTATUS_MXR) != 0 && (pte & PTE_X) != 0);
+            default: return (pte & PTE_W) != 0;
+        }
+    }
+
+    private PageFault fault(int access, long va) {
+        faults++;
+        fault.cause = access;
+        fault.tval = va;
+        return fault;
+    }
+
+    /*
+     * Page tables outside of guest RAM, or accesses where there is neither RAM nor a device: instruction,
+     * load and store access faults are 1, 5 and 7
+     */
+    PageFault accessFault(int access, long va) {
+        faults++;
+        fault.cause = access == FETCH ? 1 : access == LOAD ? 5 : 7;
+        fault.tval = va;
+        return fault;
+    }
+
+    /* Misaligned LR, and misaligned SC and AMOs: load and store/AMO address misaligned are 4 and 6 */
+    PageFault misaligned(int access, long va) {
+        faults++;
+        fault.cause = access == LOAD ? 4 : 6;
+        fault.tval = va;
+        return fault;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    public long faults() {
+        return faults;
+    }
+
+    public long flushes() {
+        return flushes;
+    }
+}
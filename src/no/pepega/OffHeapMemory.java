@@ -0,0 +1,321 @@
+package no.pepega;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Guest RAM outside the Java heap, so large guests don't bloat the old generation or slow down
+ * full GCs. Pages are carved on first write out of 2 MiB chunks. Chunks come from direct buffers of up
+ * to 8 chunks, with one chunk of slack so that every chunk can be aligned to 2 MiB, which lets the OS
+ * back them with transparent huge pages. Buffers holding fewer than 4 chunks would waste too much on
+ * the slack, so their chunks are only page aligned.
+ *
+ * Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the maximum heap size. A
+ * JVM running guests with more RAM in total than its heap, as off-heap guests typically do, needs it
+ * raised to cover their RAM plus an eighth.
+ *
+ * Pages of a mapped image are read straight from the image, which for a mapped file means straight
+ * from the page cache, and only copied into a chunk when the guest writes to them. Pages shared with
+ * a fork are handled the same way.
+ *
+ * Harts on other threads may access the memory at the same time. Each page is its own slice, so it
+ * is published with a single store once it is fully initialized, and faults are serialized.
+ *
+ * The memory belongs to this object: close() drops every chunk, and the native memory is released
+ * when the buffers are collected.
+ */
+public class OffHeapMemory extends Memory implements AutoCloseable {
+    static final int CHUNK_SIZE = 2 << 20;
+    /* Most chunks in one direct buffer, and fewest worth aligning to a huge page */
+    static final int REGION_CHUNKS = 8;
+    static final int ALIGNED_CHUNKS = 4;
+
+    private static final VarHandle SHORT = MethodHandles.byteBufferViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle PAGE = MethodHandles.arrayElementVarHandle(ByteBuffer[].class);
+    private static final ByteBuffer ZERO_PAGE = ByteBuffer.allocateDirect(PAGE_SIZE).asReadOnlyBuffer();
+
+    /*
+     * Each page is a page-sized slice of a chunk or an image. Pages of an image or shared with a fork are
+     * read-only views and must be copied before a write. Keeping that in the reference a hart reads,
+     * rather than beside it, means no hart can pair a shared page with a stale "private" flag.
+     */
+    private final ByteBuffer[] pages;
+
+    /* The direct buffer pages are carved from, and the bytes handed out of it so far */
+    private ByteBuffer region;
+    private int regionUsed;
+    /* Bytes of regions allocated since the memory was created or cleared */
+    private long allocated;
+
+    public OffHeapMemory(long size) {
+        super(size);
+        this.pages = new ByteBuffer[pageCount()];
+    }
+
+    private OffHeapMemory(long size, ByteBuffer[] pages) {
+        super(size);
+        this.pages = pages;
+    }
+
+    @Override
+    void discardAll() {
+        Arrays.fill(pages, null);
+        region = null;
+        allocated = 0;
+        resident = 0;
+        sharedPages = 0;
+    }
+
+    @Override
+    void discard(int page) {
+        if (pages[page] != null) {
+            if (pages[page].isReadOnly())
+                sharedPages--;
+            else
+                resident--;
+        }
+        pages[page] = null;
+    }
+
+    @Override
+    Memory forkPages() {
+        for (int i = 0; i < pages.length; i++)
+            if (pages[i] != null && !pages[i].isReadOnly())
+                pages[i] = pages[i].asReadOnlyBuffer();
+        OffHeapMemory child = new OffHeapMemory(size, pages.clone());
+        sharedPages += resident;
+        resident = 0;
+        child.sharedPages = sharedPages;
+        return child;
+    }
+
+    @Override
+    boolean copyPage(int page, byte[] dst) {
+        ByteBuffer b = pages[page];
+        if (b == null)
+            return copyImagePage(page, dst);
+        b.get(0, dst, 0, PAGE_SIZE);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    private ByteBuffer writablePage(long addr) {
+        int i = index(addr);
+        ByteBuffer b = pages[i];
+        if (b == null || b.isReadOnly())
+            b = materialize(i);
+        return b;
+    }
+
+    /** Gives the page a private copy in a chunk, initialized from the shared or image page it pointed at, if any. */
+    private synchronized ByteBuffer materialize(int i) {
+        if (pages[i] != null && !pages[i].isReadOnly())
+            return pages[i];
+        if (region == null || regionUsed == region.capacity())
+            allocateRegion();
+        ByteBuffer p = region.slice(regionUsed, PAGE_SIZE);
+        regionUsed += PAGE_SIZE;
+        if (pages[i] != null) {
+            p.put(0, pages[i], 0, PAGE_SIZE);
+            sharedPages--;
+        } else {
+            ByteBuffer image = imagePage(i);
+            if (image != null)
+                p.put(0, image, 0, image.capacity());
+        }
+        PAGE.setRelease(pages, i, p);
+        resident++;
+        return p;
+    }
+
+    /* Sized to what the guest can still touch, so a small guest doesn't pay for a whole region */
+    private void allocateRegion() {
+        long left = Math.max(size - allocated, PAGE_SIZE);
+        int chunks = (int)Math.min(REGION_CHUNKS, (left + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (chunks >= ALIGNED_CHUNKS)
+            region = ByteBuffer.allocateDirect((chunks + 1)*CHUNK_SIZE).alignedSlice(CHUNK_SIZE);
+        else
+            region = ByteBuffer.allocateDirect(chunks*CHUNK_SIZE + PAGE_SIZE).alignedSlice(PAGE_SIZE);
+        regionUsed = 0;
+        allocated += region.capacity();
+    }
+
+    /**
+     * Reads from a page that was never written return zero without allocating it. Image pages are
+     * read in place, except a partial page at the end of an image, which gets a private copy so reads
+     * past the end of the image see zeroes. Only image pages take the lock.
+     */
+    private ByteBuffer readFault(int i) {
+        ByteBuffer image = imagePage(i);
+        return image != null ? imageFault(i, image) : null;
+    }
+
+    private synchronized ByteBuffer imageFault(int i, ByteBuffer image) {
+        if (pages[i] != null)
+            return pages[i];
+        if (image.capacity() < PAGE_SIZE)
+            return materialize(i);
+        /* Slices of a mapped image are read-only, so it is shared as it is */
+        sharedPages++;
+        PAGE.setRelease(pages, i, image);
+        return image;
+    }
+
+    @Override
+    void loadPage(int page, int off, ByteBuffer dst, int len) {
+        ByteBuffer b = pages[page];
+        if (b == null && (b = readFault(page)) == null)
+            b = ZERO_PAGE;
+        dst.put(dst.position(), b, off, len);
+        dst.position(dst.position() + len);
+    }
+
+    @Override
+    void storePage(int page, int off, ByteBuffer src, int len) {
+        ByteBuffer b = pages[page];
+        if (b == null || b.isReadOnly())
+            b = materialize(page);
+        b.put(off, src, src.position(), len);
+        src.position(src.position() + len);
+    }
+
+    @Override
+    public byte read8(long addr) {
+        int i = index(addr);
+        ByteBuffer b = pages[i];
+        if (b == null && (b = readFault(i)) == null)
+            return 0;
+        return b.get((int)addr & PAGE_MASK);
+    }
+
+    @Override
+    public short read16(long addr) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 2)
+            return (short)readSlow(addr, 2);
+        int i = index(addr);
+        ByteBuffer b = pages[i];
+        if (b == null && (b = readFault(i)) == null)
+            return 0;
+        return (short) SHORT.get(b, off);
+    }
+
+    @Override
+    public int read32(long addr) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 4)
+            return (int)readSlow(addr, 4);
+        int i = index(addr);
+        ByteBuffer b = pages[i];
+        if (b == null && (b = readFault(i)) == null)
+            return 0;
+        return (int) INT.get(b, off);
+    }
+
+    @Override
+    public long read64(long addr) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 8)
+            return readSlow(addr, 8);
+        int i = index(addr);
+        ByteBuffer b = pages[i];
+        if (b == null && (b = readFault(i)) == null)
+            return 0;
+        return (long) LONG.get(b, off);
+    }
+
+    @Override
+    public void write8(long addr, byte data) {
+        writablePage(addr).put((int)addr & PAGE_MASK, data);
+    }
+
+    @Override
+    public void write16(long addr, short data) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 2)
+            writeSlow(addr, data, 2);
+        else
+            SHORT.set(writablePage(addr), off, data);
+    }
+
+    @Override
+    public void write32(long addr, int data) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 4)
+            writeSlow(addr, data, 4);
+        else
+            INT.set(writablePage(addr), off, data);
+    }
+
+    @Override
+    public void write64(long addr, long data) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 8)
+            writeSlow(addr, data, 8);
+        else
+            LONG.set(writablePage(addr), off, data);
+    }
+
+    @Override
+    public int amo32(long addr, int op, int operand) {
+        checkAligned(addr, 4);
+        ByteBuffer p = writablePage(addr);
+        int off = (int)addr & PAGE_MASK;
+        switch (op) {
+            case AMO_SWAP: return (int) INT.getAndSet(p, off, operand);
+            case AMO_ADD: return (int) INT.getAndAdd(p, off, operand);
+            case AMO_XOR: return (int) INT.getAndBitwiseXor(p, off, operand);
+            case AMO_AND: return (int) INT.getAndBitwiseAnd(p, off, operand);
+            case AMO_OR: return (int) INT.getAndBitwiseOr(p, off, operand);
+            default: {
+                int old = (int) INT.getVolatile(p, off);
+                int witness;
+                while ((witness = (int) INT.compareAndExchange(p, off, old, minMax32(op, old, operand))) != old)
+                    old = witness;
+                return old;
+            }
+        }
+    }
+
+    @Override
+    public long amo64(long addr, int op, long operand) {
+        checkAligned(addr, 8);
+        ByteBuffer p = writablePage(addr);
+        int off = (int)addr & PAGE_MASK;
+        switch (op) {
+            case AMO_SWAP: return (long) LONG.getAndSet(p, off, operand);
+            case AMO_ADD: return (long) LONG.getAndAdd(p, off, operand);
+            case AMO_XOR: return (long) LONG.getAndBitwiseXor(p, off, operand);
+            case AMO_AND: return (long) LONG.getAndBitwiseAnd(p, off, operand);
+            case AMO_OR: return (long) LONG.getAndBitwiseOr(p, off, operand);
+            default: {
+                long old = (long) LONG.getVolatile(p, off);
+                long witness;
+                while ((witness = (long) LONG.compareAndExchange(p, off, old, minMax64(op, old, operand))) != old)
+                    old = witness;
+                return old;
+            }
+        }
+    }
+
+    @Override
+    public int cas32(long addr, int expected, int value) {
+        checkAligned(addr, 4);
+        return (int) INT.compareAndExchange(writablePage(addr), (int)addr & PAGE_MASK, expected, value);
+    }
+
+    @Override
+    public long cas64(long addr, long expected, long value) {
+        checkAligned(addr, 8);
+        return (long) LONG.compareAndExchange(writablePage(addr), (int)addr & PAGE_MASK, expected, value);
+    }
+}
@@ -0,0 +1,269 @@
+package no.pepega;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * On-heap guest RAM, with each page a byte array allocated when first written. Reads from a page
+ * that was never written see a shared zero page, so a fresh guest costs nothing but the page table
+ * no matter how much RAM it is configured with.
+ *
+ * Reads go through one page table and writes through another. A page shared with a fork is only in
+ * the first, so the write path finds null and copies the page before writing.
+ *
+ * Harts on other threads may access the memory at the same time. Faults are serialized, and a new
+ * page is fully initialized before it is published to the page tables.
+ */
+public class PagedMemory extends Memory {
+    /* Little-endian views of a page, each access compiles to a single load or store */
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final VarHandle PAGE = MethodHandles.arrayElementVarHandle(byte[][].class);
+
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    private final byte[][] pages;
+    private final byte[][] writable;
+
+    public PagedMemory(long size) {
+        super(size);
+        this.pages = new byte[pageCount()][];
+        this.writable = new byte[pageCount()][];
+    }
+
+    private PagedMemory(long size, byte[][] pages) {
+        super(size);
+        this.pages = pages;
+        this.writable = new byte[pages.length][];
+    }
+
+    @Override
+    void discardAll() {
+        if (resident == 0 && sharedPages == 0)
+            return;
+        Arrays.fill(pages, null);
+        Arrays.fill(writable, null);
+        resident = 0;
+        sharedPages = 0;
+    }
+
+    @Override
+    void discard(int page) {
+        if (pages[page] != null) {
+            if (writable[page] != null)
+                resident--;
+            else
+                sharedPages--;
+            pages[page] = null;
+            writable[page] = null;
+        }
+    }
+
+    @Override
+    Memory forkPages() {
+        PagedMemory child = new PagedMemory(size, pages.clone());
+        Arrays.fill(writable, null);
+        sharedPages += resident;
+        resident = 0;
+        child.sharedPages = sharedPages;
+        return child;
+    }
+
+    @Override
+    boolean copyPage(int page, byte[] dst) {
+        byte[] p = pages[page];
+        if (p == null)
+            return copyImagePage(page, dst);
+        System.arraycopy(p, 0, dst, 0, PAGE_SIZE);
+        return true;
+    }
+
+    private byte[] page(long addr) {
+        int i = index(addr);
+        byte[] p = pages[i];
+        return p != null ? p : readFault(i);
+    }
+
+    private byte[] writablePage(long addr) {
+        int i = index(addr);
+        byte[] p = writable[i];
+        return p != null ? p : writeFault(i);
+    }
+
+    private synchronized byte[] writeFault(int i) {
+        if (writable[i] != null)
+            return writable[i];
+        byte[] from = pages[i];
+        if (from == null)
+            return materialize(i);
+        byte[] p = from.clone();
+        PAGE.setRelease(pages, i, p);
+        PAGE.setRelease(writable, i, p);
+        sharedPages--;
+        resident++;
+        return p;
+    }
+
+    /*
+     * Pages of a mapped image are copied in on first touch, anything else reads as zeroes until written.
+     * The zero page is never published, so reads of untouched pages keep landing here and must not lock
+     */
+    private byte[] readFault(int i) {
+        if (imagePage(i) == null)
+            return ZERO_PAGE;
+        return imageFault(i);
+    }
+
+    private synchronized byte[] imageFault(int i) {
+        if (pages[i] != null)
+            return pages[i];
+        return materialize(i);
+    }
+
+    private byte[] materialize(int i) {
+        byte[] p = new byte[PAGE_SIZE];
+        ByteBuffer image = imagePage(i);
+        if (image != null)
+            image.get(0, p, 0, image.capacity());
+        PAGE.setRelease(pages, i, p);
+        PAGE.setRelease(writable, i, p);
+        resident++;
+        return p;
+    }
+
+    @Override
+    void loadPage(int page, int off, ByteBuffer dst, int len) {
+        byte[] p = pages[page];
+        if (p == null)
+            p = readFault(page);
+        dst.put(p, off, len);
+    }
+
+    @Override
+    void storePage(int page, int off, ByteBuffer src, int len) {
+        byte[] p = writable[page];
+        if (p == null)
+            p = writeFault(page);
+        src.get(p, off, len);
+    }
+
+    @Override
+    public byte read8(long addr) {
+        return page(addr)[(int)addr & PAGE_MASK];
+    }
+
+    @Override
+    public short read16(long addr) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 2)
+            return (short)readSlow(addr, 2);
+        return (short) SHORT.get(page(addr), off);
+    }
+
+    @Override
+    public int read32(long addr) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 4)
+            return (int)readSlow(addr, 4);
+        return (int) INT.get(page(addr), off);
+    }
+
+    @Override
+    public long read64(long addr) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 8)
+            return readSlow(addr, 8);
+        return (long) LONG.get(page(addr), off);
+    }
+
+    @Override
+    public void write8(long addr, byte data) {
+        writablePage(addr)[(int)addr & PAGE_MASK] = data;
+    }
+
+    @Override
+    public void write16(long addr, short data) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 2)
+            writeSlow(addr, data, 2);
+        else
+            SHORT.set(writablePage(addr), off, data);
+    }
+
+    @Override
+    public void write32(long addr, int data) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 4)
+            writeSlow(addr, data, 4);
+        else
+            INT.set(writablePage(addr), off, data);
+    }
+
+    @Override
+    public void write64(long addr, long data) {
+        int off = (int)addr & PAGE_MASK;
+        if (off > PAGE_SIZE - 8)
+            writeSlow(addr, data, 8);
+        else
+            LONG.set(writablePage(addr), off, data);
+    }
+
+    @Override
+    public int amo32(long addr, int op, int operand) {
+        checkAligned(addr, 4);
+        byte[] p = writablePage(addr);
+        int off = (int)addr & PAGE_MASK;
+        switch (op) {
+            case AMO_SWAP: return (int) INT.getAndSet(p, off, operand);
+            case AMO_ADD: return (int) INT.getAndAdd(p, off, operand);
+            case AMO_XOR: return (int) INT.getAndBitwiseXor(p, off, operand);
+            case AMO_AND: return (int) INT.getAndBitwiseAnd(p, off, operand);
+            case AMO_OR: return (int) INT.getAndBitwiseOr(p, off, operand);
+            default: {
+                int old = (int) INT.getVolatile(p, off);
+                int witness;
+                while ((witness = (int) INT.compareAndExchange(p, off, old, minMax32(op, old, operand))) != old)
+                    old = witness;
+                return old;
+            }
+        }
+    }
+
+    @Override
+    public long amo64(long addr, int op, long operand) {
+        checkAligned(addr, 8);
+        byte[] p = writablePage(addr);
+        int off = (int)addr & PAGE_MASK;
+        switch (op) {
+            case AMO_SWAP: return (long) LONG.getAndSet(p, off, operand);
+            case AMO_ADD: return (long) LONG.getAndAdd(p, off, operand);
+            case AMO_XOR: return (long) LONG.getAndBitwiseXor(p, off, operand);
+            case AMO_AND: return (long) LONG.getAndBitwiseAnd(p, off, operand);
+            case AMO_OR: return (long) LONG.getAndBitwiseOr(p, off, operand);
+            default: {
+                long old = (long) LONG.getVolatile(p, off);
+                long witness;
+                while ((witness = (long) LONG.compareAndExchange(p, off, old, minMax64(op, old, operand))) != old)
+                    old = witness;
+                return old;
+            }
+        }
+    }
+
+    @Override
+    public int cas32(long addr, int expected, int value) {
+        checkAligned(addr, 4);
+        return (int) INT.compareAndExchange(writablePage(addr), (int)addr & PAGE_MASK, expected, value);
+    }
+
+    @Override
+    public long cas64(long addr, long expected, long value) {
+        checkAligned(addr, 8);
+        return (long) LONG.compareAndExchange(writablePage(addr), (int)addr & PAGE_MASK, expected, value);
+    }
+}
@@ -0,0 +1,159 @@
+package no.pepega;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional instrumentation, turned on with -Djerv.profile=true: per-op execution counts, JMX beans and
+ * JFR events. ENABLED is a constant, so with it off every check of it in the hot paths is folded away
+ * by the JVM's JIT and the emulator runs exactly as without this class.
+ *
+ * The counters are plain longs, each only written by the thread running its hart. Readers on other
+ * threads may see slightly stale values, which is fine for statistics.
+ */
+final class Profile {
+    static final boolean ENABLED = Boolean.getBoolean("jerv.profile");
+
+    /* VMs registered over JMX, also the ones the periodic JFR event reports on */
+    private static final Map<ObjectName, PseudoVM> registered = new ConcurrentHashMap<>();
+
+    static {
+        if (ENABLED)
+            FlightRecorder.addPeriodicEvent(OpCountEvent.class, Profile::emitOpCounts);
+    }
+
+    private Profile() {
+    }
+
+    /** Per-op counters for a hart, indexed by op ordinal, or null when profiling is off. */
+    static long[] newOpCounts() {
+        return ENABLED ? new long[Instruction.OPS.length] : null;
+    }
+
+    /** Op ordinals of a compiled block, added to the hart's counters each time it runs. */
+    static int[] blockOps(long[] insts, int count) {
+        if (!ENABLED)
+            return null;
+        int[] ops = new int[count];
+        for (int i = 0; i < count; i++)
+            ops[i] = Instruction.op(insts[i]).ordinal();
+        return ops;
+    }
+
+    /** Executed instructions by op name, summed over the harts of vm, most frequent first. */
+    static Map<String, Long> opCounts(PseudoVM vm) {
+        long[] sum = new long[Instruction.OPS.length];
+        for (RISCV h : vm.harts) {
+            if (h.op_counts == null)
+                continue;
+            for (int i = 0; i < sum.length; i++)
+                sum[i] += h.op_counts[i];
+        }
+        Map<String, Long> counts = new LinkedHashMap<>();
+        Integer[] order = new Integer[sum.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(sum[b], sum[a]));
+        for (int i : order) {
+            if (sum[i] != 0)
+                counts.put(Instruction.OPS[i].name(), sum[i]);
+        }
+        return counts;
+    }
+
+    /**
+     * Registers the VM's statistics as an MXBean named no.pepega:type=VM,name=<name>. Returns the name,
+     * to unregister it again once the VM is done.
+     */
+    static ObjectName register(PseudoVM vm, String name) {
+        try {
+            ObjectName on = new ObjectName("no.pepega:type=VM,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new VMStats(vm), on);
+            registered.put(on, vm);
+            return on;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register VM " + name, e);
+        }
+    }
+
+    static void unregister(ObjectName on) {
+        if (registered.remove(on) == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+        } catch (JMException e) {
+            // Already gone
+        }
+    }
+
+    private static void emitOpCounts() {
+        for (Map.Entry<ObjectName, PseudoVM> e : registered.entrySet()) {
+            String vm = e.getKey().getKeyProperty("name");
+            for (Map.Entry<String, Long> op : opCounts(e.getValue()).entrySet()) {
+                OpCountEvent ev = new OpCountEvent();
+                ev.vm = vm;
+                ev.op = op.getKey();
+                ev.count = op.getValue();
+                ev.commit();
+            }
+        }
+    }
+
+    @Name("no.pepega.Slice")
+    @Label("Guest Slice")
+    @Category("JERV")
+    @Description("One PseudoVM.run call running guest code")
+    @StackTrace(false)
+    static class SliceEvent extends Event {
+        @Label("Harts")
+        int harts;
+        @Label("Cycle Budget")
+        int budget;
+        @Label("Instructions")
+        long instructions;
+        @Label("Instructions per Second")
+        double ips;
+    }
+
+    @Name("no.pepega.JitCompile")
+    @Label("Block Compilation")
+    @Category("JERV")
+    @StackTrace(false)
+    static class CompileEvent extends Event {
+        @Label("Guest PC")
+        long pc;
+        @Label("Instructions")
+        int length;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("no.pepega.OpCount")
+    @Label("Op Count")
+    @Category("JERV")
+    @Description("Instructions executed so far of one op, per registered VM")
+    @Period("1 s")
+    @StackTrace(false)
+    static class OpCountEvent extends Event {
+        @Label("VM")
+        String vm;
+        @Label("Op")
+        String op;
+        @Label("Count")
+        long count;
+    }
+}
@@ -1,24 +1,240 @@
 package no.pepega;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 /** The VM itself. This is just an example, it's not a "real" interface. */
 public class PseudoVM {
+    public static final long DEFAULT_MEMORY = 4096*1024;
+    /** Wall time one run() call should take, in microseconds. Defaults to a game tick. */
+    static final long SLICE_MICROS = Long.getLong("jerv.slice.us", 50_000);
+
+    /* Bounds on the cycle budget of a slice, the upper one from run_cycles */
+    static final int MIN_BUDGET = 1000;
+    static final int MAX_BUDGET = 0x3FFFFFFF;
+    /* Weight of the newest measurement in the smoothed rate */
+    private static final double SMOOTHING = 0.25;
+    /* Slices shorter than this are too noisy to learn from */
+    private static final long MIN_SAMPLE_NANOS = 100_000;
+    /** Frequency of the time CSR, in Hz. */
+    static final long TIMEBASE_HZ = Long.getLong("jerv.timebase", 10_000_000);
+
     public boolean allowDynamicResize = false;
     Machine machine;
 
-    String addr_comp = null;
-    String addr_gpu = null;
-    String addr_screen = null;
-    String addr_eeprom = null;
+    /* Devices past RAM, and the ones the machine's components became, null if it has none */
+    final Bus bus = new Bus();
+    /* Devices the host attached, by base, which forks get from Device.fork() */
+    private final Map<Long, Device> attached = new LinkedHashMap<>();
+    private Eeprom eeprom;
+    private Gpu gpu;
+    private Screen screen;
 
     boolean is_booted = false;
+    /* The boot image when it is an ELF file, for its symbols */
+    private Elf elf;
+    /* The boot hart, harts[0] */
     RISCV arch;
+    final RISCV[] harts;
+    /* One thread per secondary hart, which dies off while the VM isn't running */
+    private final ThreadPoolExecutor[] hartThreads;
+
+    private long sliceNanos = SLICE_MICROS * 1000;
+    /* Smoothed guest instructions per second, starting from the old fixed guess of 40 MIPS */
+    private double ips = 40*1000*1000;
+    /* Calls to run() that ran guest code, and the time they took */
+    private long run_calls;
+    private long run_nanos;
+
+    /* The time CSR counts timebase ticks of this clock since clock_epoch */
+    private LongSupplier clock = System::nanoTime;
+    private long timebase = TIMEBASE_HZ;
+    private long clock_epoch = clock.getAsLong();
 
     public PseudoVM(Machine machine) {
+        this(machine, DEFAULT_MEMORY);
+    }
+
+    /** RAM is allocated page by page as the guest touches it, so mem_size is only an upper bound. */
+    public PseudoVM(Machine machine, long mem_size) {
+        this(machine, new PagedMemory(mem_size));
+    }
+
+    public PseudoVM(Machine machine, Memory memory) {
+        this(machine, memory, 1);
+    }
+
+    /**
+     * A machine with several harts sharing the memory. Each slice runs every hart on its own thread,
+     * the boot hart on the caller's. All harts start at the same address with their hart id in a0.
+     */
+    public PseudoVM(Machine machine, Memory memory, int harts) {
+        if (harts < 1)
+            throw new IllegalArgumentException("A machine needs at least one hart");
+        if (Long.compareUnsigned(memory.size(), Bus.MMIO_BASE) > 0)
+            throw new IllegalArgumentException("Memory must end below the devices at 0x" + Long.toHexString(Bus.MMIO_BASE));
         this.machine = machine;
-        this.arch = new RISCV(this, machine, 4096*1024);
+        for (String type : machine.components().values()) {
+            switch (type) {
+                case "eeprom": eeprom = new Eeprom(machine.eeprom()); break;
+                case "gpu": gpu = new Gpu(); break;
+                case "screen": screen = new Screen(); break;
+            }
+        }
+        if (eeprom != null)
+            bus.attach(Bus.EEPROM, eeprom);
+        if (gpu != null) {
+            gpu.bind(screen);
+            bus.attach(Bus.GPU, gpu);
+        }
+        if (screen != null)
+            bus.attach(Bus.SCREEN, screen);
+        this.harts = new RISCV[harts];
+        for (int i = 0; i < harts; i++)
+            this.harts[i] = new RISCV(this, machine, memory, i);
+        this.arch = this.harts[0];
+        this.hartThreads = new ThreadPoolExecutor[harts];
+        for (int i = 1; i < harts; i++) {
+            int id = i;
+            hartThreads[i] = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "jerv-hart-" + id);
+                t.setDaemon(true);
+                return t;
+            });
+            hartThreads[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    public int hartCount() {
+        return harts.length;
+    }
+
+    /** Raises a software interrupt on the given hart. */
+    public void sendIpi(int hart) {
+        harts[hart].raiseIpi();
+    }
+
+    /**
+     * Clones this VM, typically after booting it once. The clone starts where this VM is and shares
+     * all of its memory copy-on-write, so it only costs memory for the pages either side writes
+     * afterwards. The machine is shared as well. Neither VM may be running while forking.
+     *
+     * The machine's own devices are copied. Devices attached with {@link #attach} are replaced by what
+     * their {@link Device#fork} returns, and if one can't be forked neither can the VM. The disk is
+     * left out, see {@link #attachDisk}.
+     */
+    public PseudoVM fork() {
+        /* Before anything is forked, so a device that refuses leaves no half-made child behind */
+        Map<Long, Device> devices = new LinkedHashMap<>();
+        for (Map.Entry<Long, Device> e : attached.entrySet())
+            devices.put(e.getKey(), e.getValue().fork());
+        PseudoVM child = new PseudoVM(machine, arch.memory.fork(), harts.length);
+        for (Map.Entry<Long, Device> e : devices.entrySet())
+            child.attach(e.getKey(), e.getValue());
+        for (int i = 0; i < harts.length; i++)
+            child.harts[i].copyState(harts[i]);
+        child.allowDynamicResize = allowDynamicResize;
+        if (gpu != null)
+            child.gpu.copyFrom(gpu);
+        if (screen != null)
+            child.screen.copyFrom(screen);
+        child.is_booted = is_booted;
+        child.elf = elf;
+        child.sliceNanos = sliceNanos;
+        child.ips = ips;
+        child.clock = clock;
+        child.timebase = timebase;
+        child.clock_epoch = clock_epoch;
+        return child;
+    }
+
+    /** Sets how long each run() call should take, e.g. short for interactive guests. */
+    public void setSliceTarget(long nanos) {
+        if (nanos <= 0)
+            throw new IllegalArgumentException("Slice target must be positive");
+        this.sliceNanos = nanos;
+    }
+
+    /**
+     * Replaces the clock behind the time CSR, e.g. with game ticks or a fixed clock for deterministic
+     * runs. The guest's time keeps counting on from where it was.
+     */
+    public void setClock(LongSupplier nanos, long hz) {
+        if (hz <= 0 || hz > 1_000_000_000)
+            throw new IllegalArgumentException("Timebase must be between 1 Hz and 1 GHz");
+        long now = time();
+        this.clock = nanos;
+        this.timebase = hz;
+        setTime(now);
+    }
+
+    /** The time CSR, in timebase ticks since the VM was created. */
+    long time() {
+        long elapsed = clock.getAsLong() - clock_epoch;
+        return elapsed / 1_000_000_000 * timebase + elapsed % 1_000_000_000 * timebase / 1_000_000_000;
+    }
+
+    /** Moves the epoch so time() reads ticks now, for restoring snapshots. */
+    void setTime(long ticks) {
+        clock_epoch = clock.getAsLong() - (ticks / timebase * 1_000_000_000 + ticks % timebase * 1_000_000_000 / timebase);
+    }
+
+    /** Guest instructions per second, smoothed over recent slices. */
+    public double instructionsPerSecond() {
+        return ips;
+    }
+
+    public long runCalls() {
+        return run_calls;
+    }
+
+    public long runNanos() {
+        return run_nanos;
+    }
+
+    /** Cycles the next run() call will be given. */
+    public int cycleBudget() {
+        return (int)Math.max(MIN_BUDGET, Math.min(MAX_BUDGET, ips * sliceNanos / 1e9));
+    }
+
+    /** Configured guest RAM in bytes. */
+    public long nominalMemory() {
+        return arch.memory.size();
+    }
+
+    /** Guest RAM in bytes that is actually backed by host memory. */
+    public long residentMemory() {
+        return arch.memory.residentBytes();
+    }
+
+    /**
+     * Attaches a device for the guest at base, which must be at or past {@link Bus#MMIO_BASE}. Only
+     * while the VM isn't running.
+     */
+    public void attach(long base, Device device) {
+        bus.attach(base, device);
+        attached.put(base, device);
+    }
+
+    /**
+     * Attaches a disk, whose completions raise the boot hart's external interrupt. Forks don't get the
+     * disk, the image can only have one writer.
+     */
+    public void attachDisk(VirtioBlock disk) {
+        disk.connect(arch.memory, arch);
+        bus.attach(Bus.DISK, disk);
+    }
+
+    /** The screen the guest draws on, or null if the machine has no display. */
+    public Screen screen() {
+        return screen;
     }
 
     void bsod(String msg) {
@@ -26,27 +242,20 @@ public class PseudoVM {
             return;
 
         System.err.println(msg);
-        System.err.printf("pc = %08X, op = %08X\n"
-                , arch.pc, (short)(arch.memory[(int)arch.pc]&0x7F));
+        if (Long.compareUnsigned(arch.pc, arch.mem_size) < 0)
+            System.err.printf("pc = %08X, op = %08X\n"
+                    , arch.pc, (short)(arch.memory.read8(arch.pc)&0x7F));
+        else
+            System.err.printf("pc = %08X\n", arch.pc);
         try {
-            if (addr_gpu != null) {
-                machine.invoke(addr_gpu, "setForeground", new Object[]{0xFFFFFF, false});
-                Object[] gpuDepthO = machine.invoke(addr_gpu, "getDepth", new Object[]{});
-                int depth = 1;
-                if (gpuDepthO != null && gpuDepthO.length >= 1 && gpuDepthO[0] instanceof Integer)
-                    depth = (Integer) gpuDepthO[0];
-                machine.invoke(addr_gpu, "setBackground", new Object[]{0x0000FF, false});
-                Object[] gpuSizeO = machine.invoke(addr_gpu, "getResolution",
-                        new Object[]{});
-                int w = 40;
-                int h = 16;
-                if (gpuSizeO != null && gpuSizeO.length >= 1 && gpuSizeO[0] instanceof Integer)
-                    w = (Integer) gpuSizeO[0];
-                if (gpuSizeO != null && gpuSizeO.length >= 2 && gpuSizeO[1] instanceof Integer)
-                    h = (Integer) gpuSizeO[1];
-                machine.invoke(addr_gpu, "fill", new Object[]{1, 1, w, h, " "});
-                machine.invoke(addr_gpu, "set", new Object[]{w / 2 + 1 - 6, h / 2 - 1, "FATAL ERROR:"});
-                machine.invoke(addr_gpu, "set", new Object[]{w / 2 + 1 - msg.length() / 2, h / 2 + 1, msg});
+            if (gpu != null) {
+                gpu.setForeground(0xFFFFFF);
+                gpu.setBackground(0x0000FF);
+                int w = gpu.width() > 0 ? gpu.width() : 40;
+                int h = gpu.height() > 0 ? gpu.height() : 16;
+                gpu.fill(1, 1, w, h, ' ');
+                gpu.set(w / 2 + 1 - 6, h / 2 - 1, "FATAL ERROR:");
+                gpu.set(w / 2 + 1 - msg.length() / 2, h / 2 + 1, msg);
             }
         } catch (Exception e) {
             System.err.printf("exception fired in BSOD message - ignored\n");
@@ -55,6 +264,18 @@ public class PseudoVM {
         this.arch.hard_halted = true;
     }
 
+    /** Marks a VM restored from a snapshot as booted, so run() resumes it instead of booting it again. */
+    void resumeBooted() {
+        this.is_booted = true;
+        if (Elf.isElf(machine.eeprom()))
+            this.elf = new Elf(machine.eeprom());
+    }
+
+    /** The ELF file the VM booted from, for symbol lookups, or null if it booted a raw binary. */
+    public Elf elf() {
+        return elf;
+    }
+
     Object run(int mode) throws Exception {
         if (!is_booted) {
             if (mode != 0) {
@@ -69,55 +290,44 @@ public class PseudoVM {
             Map<String, String> m = this.machine.components();
             for(String k: m.keySet()) {
                 String v = m.get(k);
-                if(v.equals("computer")) this.addr_comp = k;
-                if(v.equals("gpu")) this.addr_gpu = k;
-                if(v.equals("screen")) this.addr_screen = k;
-                if(v.equals("eeprom")) this.addr_eeprom = k;
                 System.out.printf(" - %s = %s\n", k, v);
             }
 
-            if (addr_screen != null && addr_gpu != null) {
-                machine.invoke(addr_gpu, "bind", new Object[]{addr_screen});
-            }
-
-            if (addr_gpu != null) {
-                machine.invoke(addr_gpu, "setForeground", new Object[]{0xFFFFFF, false});
-                machine.invoke(addr_gpu, "setBackground", new Object[]{0x000000, false});
-                Object[] gpuSizeO = machine.invoke(addr_gpu, "getResolution", new Object[]{});
-                int w = 40;
-                int h = 16;
-                if(gpuSizeO.length >= 1 && gpuSizeO[0] instanceof Integer)
-                    w = (Integer)gpuSizeO[0];
-                if(gpuSizeO.length >= 2 && gpuSizeO[1] instanceof Integer)
-                    h = (Integer)gpuSizeO[1];
-                machine.invoke(addr_gpu, "fill", new Object[]{1, 1, w, h, " "});
-                machine.invoke(addr_gpu, "set", new Object[]{w/2, h/2, ":-)"});
+            if (gpu != null) {
+                gpu.setForeground(0xFFFFFF);
+                gpu.setBackground(0x000000);
+                int w = gpu.width() > 0 ? gpu.width() : 40;
+                int h = gpu.height() > 0 ? gpu.height() : 16;
+                gpu.fill(1, 1, w, h, ' ');
+                gpu.set(w/2, h/2, ":-)");
             }
 
             // Clear RAM
-            Arrays.fill(arch.memory, (byte) 0);
+            arch.memory.clear();
 
-            // Setup stack pointer
-            arch.regs[2] = arch.mem_size;
+            // Setup stack pointers
+            for (RISCV h : harts)
+                h.reset();
             System.err.printf("Stack pointer: 0x%X", arch.regs[2]);
 
             // Load EEPROM
-            if(addr_eeprom != null) {
-                Object[] eeDataO = machine.invoke(addr_eeprom, "get", new Object[]{});
-                if (eeDataO != null && eeDataO.length >= 1 && eeDataO[0] instanceof byte[]) {
-                    byte[] eeprom_data = (byte[])eeDataO[0];
-                    try {
-                        for(int i = 0; i < eeprom_data.length; i++) {
-                            arch.mem_write_8(arch.progLoad()+i, eeprom_data[i]);
-                        }
-
-                        System.err.printf("BIOS loaded - EEPROM size = %08X, pc = %08X\n"
-                                , eeprom_data.length, arch.pc);
-                    } catch(Exception e) {
-                        System.err.printf("exception fired in EEPROM load\n");
-                        e.printStackTrace();
-                        bsod("Exception loading EEPROM!");
+            if(eeprom != null) {
+                ByteBuffer eeprom_data = eeprom.contents();
+                try {
+                    // Mapped rather than copied, pages are only materialized when the guest touches them
+                    if (Elf.isElf(eeprom_data)) {
+                        elf = new Elf(eeprom_data);
+                        elf.load(this);
+                    } else {
+                        arch.mapImage(arch.progLoad(), eeprom_data);
                     }
+
+                    System.err.printf("BIOS loaded - EEPROM size = %08X, pc = %08X\n"
+                            , eeprom_data.remaining(), arch.pc);
+                } catch(Exception e) {
+                    System.err.printf("exception fired in EEPROM load\n");
+                    e.printStackTrace();
+                    bsod("Exception loading EEPROM!");
                 }
             } else {
                 bsod("No EEPROM found!");
@@ -131,9 +341,29 @@ public class PseudoVM {
             if(mode == 1) return (Integer)0;
 
             if(!arch.hard_halted) {
-                // TODO: adaptive cycle count
-                int cycs = (mode == 0 ? 200 : 40*1000*1000/20);
-                arch.run_cycles(cycs);
+                int cycs = (mode == 0 ? 200 : cycleBudget());
+                int count = mode == 0 ? 1 : harts.length;
+                Profile.SliceEvent event = null;
+                if (Profile.ENABLED) {
+                    event = new Profile.SliceEvent();
+                    event.begin();
+                }
+                int before = arch.cycles();
+                long start = System.nanoTime();
+                runHarts(count, cycs);
+                long elapsed = System.nanoTime() - start;
+                int ran = arch.cycles() - before;
+                if (elapsed >= MIN_SAMPLE_NANOS && ran > 0)
+                    ips += SMOOTHING * (ran * 1e9 / elapsed - ips);
+                run_calls++;
+                run_nanos += elapsed;
+                if (Profile.ENABLED && event.shouldCommit()) {
+                    event.harts = count;
+                    event.budget = cycs;
+                    event.instructions = ran;
+                    event.ips = ips;
+                    event.commit();
+                }
                 if(arch.hard_halted){
                     bsod("Halted");
                 } else if(arch.sync_call) {
@@ -150,4 +380,18 @@ public class PseudoVM {
 
         return (Integer)0;
     }
+
+    /* Runs a slice on the first count harts, the secondary ones in parallel on their own threads */
+    private void runHarts(int count, int cycs) throws InterruptedException, ExecutionException {
+        Future<?>[] running = new Future<?>[count];
+        for (int i = 1; i < count; i++) {
+            RISCV h = harts[i];
+            if (!h.hard_halted)
+                running[i] = hartThreads[i].submit(() -> h.run_cycles(cycs));
+        }
+        arch.run_cycles(cycs);
+        for (int i = 1; i < count; i++)
+            if (running[i] != null)
+                running[i].get();
+    }
 }
@@ -1,36 +1,85 @@
 package no.pepega;
 
 import java.io.IOException;
-import java.util.Scanner;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 
 public class RISCV {
+    /** Stack each secondary hart gets below the one before it at reset. */
+    static final long HART_STACK = 64*1024;
+
     Machine machine;
     PseudoVM vm;
+    final int hartid;
 
     long[] regs;
     long pc;
-    byte[] memory;
-    int mem_size;
+    Memory memory;
+    long mem_size;
+    DecodeCache icache;
+    Jit jit;
+    Csr csr;
+    Mmu mmu;
+    /* Devices, for physical addresses past RAM */
+    Bus bus;
+    /* Set by the Mmu while addresses are translated, i.e. in Sv39 mode below M mode */
+    boolean paging;
+    /* Physical address of the instruction being executed */
+    private long fetch_pa;
+    /* The instruction of the last compiled block that threw, see blockFaulted */
+    private int block_fault;
 
     public boolean step = false;
     public boolean hard_halted;
     boolean need_sleep;
     boolean sync_call;
+    /* Machine software interrupt, raised by other harts or the host */
+    volatile boolean ipi_pending;
+    /* The external interrupt line, held high by devices with completions the guest hasn't acknowledged */
+    volatile boolean irq_pending;
 
     private int cycles;
     private int cycle_wait;
+    /* Instructions retired before the current slice, the rest are counted by cycles since slice_start */
+    private long retired;
+    private int slice_start;
+    /* Executed instructions by op ordinal, null unless profiling */
+    final long[] op_counts = Profile.newOpCounts();
+    /* Where executed instructions are recorded, null unless tracing */
+    private final Trace.Ring trace;
+
+    /* LR/SC reservation: the address and the value LR loaded, -1 when there is none */
+    private long reservation_addr = -1;
+    private long reservation_value;
+
+    public RISCV (PseudoVM vm, Machine machine, long mem_size) {
+        this(vm, machine, new PagedMemory(mem_size));
+    }
 
-    public RISCV (PseudoVM vm, Machine machine, int mem_size) {
+    /** Runs on the given memory backend, e.g. an {@link OffHeapMemory} for large guests. */
+    public RISCV (PseudoVM vm, Machine machine, Memory memory) {
+        this(vm, machine, memory, 0);
+    }
+
+    /** One hart of a multi-hart machine, all harts of a machine share the memory. */
+    RISCV (PseudoVM vm, Machine machine, Memory memory, int hartid) {
+        long mem_size = memory.size();
         this.machine = machine;
         this.vm = vm;
+        this.hartid = hartid;
 
         this.regs = new long[32];
-        // Set SP to the end of memory (x2 is SP)
-        this.regs[2] = mem_size;
         this.pc = 0;
 
-        this.memory = new byte[mem_size];
+        this.memory = memory;
         this.mem_size = mem_size;
+        this.bus = vm.bus;
+        reset();
+        this.csr = new Csr(this);
+        this.mmu = new Mmu(this, memory);
+        this.icache = new DecodeCache(memory.pageCount());
+        this.jit = Jit.INTERPRET_ONLY || Trace.ENABLED ? null : new Jit(this, memory.pageCount());
+        this.trace = Trace.ring(hartid);
 
         this.hard_halted = false;
         this.need_sleep = false;
@@ -40,161 +89,472 @@ public class RISCV {
         this.cycle_wait = 0;
     }
 
-    public void execute(Instruction i) {
+    /** Sets the registers a hart starts with: a0 holds the hart id, and each hart gets its own stack. */
+    void reset() {
+        // Set SP to the end of memory (x2 is SP)
+        this.regs[2] = mem_size - hartid * HART_STACK;
+        this.regs[10] = hartid;
+    }
+
+    /** Cycles run so far. Wraps around, so only differences are meaningful. */
+    int cycles() {
+        return cycles;
+    }
+
+    /**
+     * Instructions retired, offset by the position of the reading instruction in a compiled block,
+     * which only adds its length to cycles once it is done.
+     */
+    long instret(int offset) {
+        return retired + (cycles - slice_start) + offset;
+    }
+
+    long cycle(int offset) {
+        return instret(offset) + csr.cycle_offset;
+    }
 
-        if (i == null) {
-            dumpRegs();
-            panic("Unknown instruction");
+    long time() {
+        return vm.time();
+    }
+
+    void setInstret(long value) {
+        retired = value - (cycles - slice_start);
+    }
+
+    /** Takes over the architectural state of another hart, for forks. */
+    void copyState(RISCV from) {
+        pc = from.pc;
+        System.arraycopy(from.regs, 0, regs, 0, regs.length);
+        cycles = from.cycles;
+        cycle_wait = from.cycle_wait;
+        retired = from.retired;
+        slice_start = from.slice_start;
+        csr.copyFrom(from.csr);
+        hard_halted = from.hard_halted;
+        need_sleep = from.need_sleep;
+        sync_call = from.sync_call;
+        step = from.step;
+        ipi_pending = from.ipi_pending;
+    }
+
+    /** Writes the architectural state, for snapshots. */
+    void saveState(ByteBuffer out) {
+        out.putLong(pc);
+        for (long r : regs)
+            out.putLong(r);
+        out.putInt(cycles);
+        out.putInt(cycle_wait);
+        out.put((byte)((hard_halted ? 1 : 0) | (need_sleep ? 2 : 0) | (sync_call ? 4 : 0) | (step ? 8 : 0) | (ipi_pending ? 16 : 0)));
+        out.putLong(instret(0));
+        csr.saveState(out);
+    }
+
+    /** Reads back what {@link #saveState} wrote. */
+    void loadState(ByteBuffer in) {
+        pc = in.getLong();
+        for (int i = 0; i < regs.length; i++)
+            regs[i] = in.getLong();
+        cycles = in.getInt();
+        cycle_wait = in.getInt();
+        byte flags = in.get();
+        hard_halted = (flags & 1) != 0;
+        need_sleep = (flags & 2) != 0;
+        sync_call = (flags & 4) != 0;
+        step = (flags & 8) != 0;
+        ipi_pending = (flags & 16) != 0;
+        retired = in.getLong();
+        slice_start = cycles;
+        csr.loadState(in);
+    }
+
+    public void execute(long d) {
+
+        if (d == Instruction.ILLEGAL) {
+            if (csr.mtvec == 0) {
+                dumpRegs();
+                panic("Unknown instruction");
+            } else {
+                this.pc = csr.trap(Csr.CAUSE_ILLEGAL_INSTRUCTION, pc, 0);
+            }
             return;
         }
 
+        int rd = Instruction.rd(d);
+        int rs1 = Instruction.rs1(d);
+        int rs2 = Instruction.rs2(d);
+        int imm = Instruction.imm(d);
+
         regs[0] = 0;
 
-        switch (i.op) {
+        switch (Instruction.op(d)) {
             case Add: {
-                regs[i.rd] = regs[i.rs1] + regs[i.rs2];
-                //System.out.printf("0x%02X: Add x%d, x%d, x%d\n", pc, i.rd, i.rs1, i.rs2);
+                regs[rd] = regs[rs1] + regs[rs2];
+                break;
+            }
+            case Addw: {
+                regs[rd] = (int)(regs[rs1] + regs[rs2]);
                 break;
             }
             case Addi: {
-                regs[i.rd] = regs[i.rs1] + i.immediate;
-                //System.out.printf("0x%02X: Addi x%d, x%d, %d\n", pc, i.rd, i.rs1, i.immediate);
+                regs[rd] = regs[rs1] + imm;
                 break;
             }
             case Addiw: {
-                //System.out.printf("x%d = x%d[%d]+%d = ", i.rd, i.rs1, regs[i.rs1], i.immediate);
-                regs[i.rd] = Integer.toUnsignedLong((int) (regs[i.rs1] + i.immediate));
-                //System.out.printf("%d\n", regs[i.rd]);
-                if (((regs[i.rd]>>>31)&1) != 0) {
-                    regs[i.rd] |= Integer.toUnsignedLong(0xFFFFFFFF)<<32;
-                }else{
-                    regs[i.rd] &= 0xFFFFFFFF;
-                }
-                //System.out.printf("0x%02X: Addiw x%d, x%d, %d\n", pc, i.rd, i.rs1, i.immediate);
+                regs[rd] = (int)(regs[rs1] + imm);
+                break;
+            }
+            case Sub: {
+                regs[rd] = regs[rs1] - regs[rs2];
+                break;
+            }
+            case Subw: {
+                regs[rd] = (int)(regs[rs1] - regs[rs2]);
+                break;
+            }
+            case Mul: {
+                regs[rd] = regs[rs1] * regs[rs2];
+                break;
+            }
+            case Mulh: {
+                regs[rd] = Math.multiplyHigh(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Mulhsu: {
+                regs[rd] = mulhsu(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Mulhu: {
+                regs[rd] = mulhu(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Mulw: {
+                regs[rd] = (int)regs[rs1] * (int)regs[rs2];
+                break;
+            }
+            case Div: {
+                regs[rd] = div(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Divu: {
+                regs[rd] = divu(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Rem: {
+                regs[rd] = rem(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Remu: {
+                regs[rd] = remu(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Divw: {
+                regs[rd] = divw(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Divuw: {
+                regs[rd] = divuw(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Remw: {
+                regs[rd] = remw(regs[rs1], regs[rs2]);
+                break;
+            }
+            case Remuw: {
+                regs[rd] = remuw(regs[rs1], regs[rs2]);
                 break;
             }
             case And: {
-                regs[i.rd] = regs[i.rs1] & regs[i.rs2];
-                //System.out.printf("0x%02X: And x%d, x%d, x%d\n", pc, i.rd, i.rs1, i.rs2);
+                regs[rd] = regs[rs1] & regs[rs2];
                 break;
             }
             case Andi: {
-                regs[i.rd] = regs[i.rs1] & i.immediate;
-                //System.out.printf("0x%02X: And x%d, x%d, %d\n", pc, i.rd, i.rs1, i.immediate);
+                regs[rd] = regs[rs1] & imm;
+                break;
+            }
+            case Or: {
+                regs[rd] = regs[rs1] | regs[rs2];
+                break;
+            }
+            case Ori: {
+                regs[rd] = regs[rs1] | imm;
+                break;
+            }
+            case Xor: {
+                regs[rd] = regs[rs1] ^ regs[rs2];
+                break;
+            }
+            case Xori: {
+                regs[rd] = regs[rs1] ^ imm;
+                break;
+            }
+            case Slt: {
+                regs[rd] = regs[rs1] < regs[rs2] ? 1 : 0;
+                break;
+            }
+            case Slti: {
+                regs[rd] = regs[rs1] < imm ? 1 : 0;
+                break;
+            }
+            case Sltu: {
+                regs[rd] = Long.compareUnsigned(regs[rs1], regs[rs2]) < 0 ? 1 : 0;
+                break;
+            }
+            case Sltiu: {
+                regs[rd] = Long.compareUnsigned(regs[rs1], imm) < 0 ? 1 : 0;
+                break;
+            }
+            /* Java already masks long shift amounts to 6 bits, and int shift amounts to 5 */
+            case Sll: {
+                regs[rd] = regs[rs1] << regs[rs2];
+                break;
+            }
+            case Slli: {
+                regs[rd] = regs[rs1] << imm;
+                break;
+            }
+            case Sllw: {
+                regs[rd] = (int)regs[rs1] << regs[rs2];
+                break;
+            }
+            case Slliw: {
+                regs[rd] = (int)regs[rs1] << imm;
+                break;
+            }
+            case Srl: {
+                regs[rd] = regs[rs1] >>> regs[rs2];
+                break;
+            }
+            case Srli: {
+                regs[rd] = regs[rs1] >>> imm;
+                break;
+            }
+            case Srlw: {
+                regs[rd] = (int)regs[rs1] >>> regs[rs2];
+                break;
+            }
+            case Srliw: {
+                regs[rd] = (int)regs[rs1] >>> imm;
+                break;
+            }
+            case Sra: {
+                regs[rd] = regs[rs1] >> regs[rs2];
+                break;
+            }
+            case Srai: {
+                regs[rd] = regs[rs1] >> imm;
+                break;
+            }
+            case Sraw: {
+                regs[rd] = (int)regs[rs1] >> regs[rs2];
+                break;
+            }
+            case Sraiw: {
+                regs[rd] = (int)regs[rs1] >> imm;
+                break;
+            }
+            case Lui: {
+                regs[rd] = imm;
                 break;
             }
             case Auipc: {
-                regs[i.rd] = i.opcode&0xFFFFF000;
-                if ((i.opcode&0x80000000) != 0)
-                    regs[i.rd] |= (long)0xFFFFFFFF<<32;
-                regs[i.rd] += pc;
+                regs[rd] = pc + imm;
+                break;
+            }
+            case LuiAddi: {
+                regs[rd] = imm;
+                pc += 4;
+                break;
+            }
+            case AuipcAddi: {
+                regs[rd] = pc + imm;
+                pc += 4;
+                break;
+            }
+            case AuipcJalr: {
+                // The auipc part of the offset, see Instruction.fuse
+                regs[rs1] = pc + ((imm + 0x800) & ~0xFFF);
+                long target = (pc + imm) & ~1L;
+                regs[rd] = pc + 8;
+                pc = target - 4;
+                break;
+            }
+            case SlliSrli: {
+                regs[rd] = regs[rs1] << imm >>> (imm >> 8);
+                pc += 4;
                 break;
             }
             case Beq: {
-                //System.out.printf("0x%02X: Beq x%d, x%d, %d # 0x%02X\n", pc, i.rs1, i.rs2, i.immediate, pc+i.immediate);
-                if (regs[i.rs1] == regs[i.rs2]) {
-                    //System.out.println("Beq Jumped");
-                    pc += i.immediate-4;
-                }
+                if (regs[rs1] == regs[rs2])
+                    pc += imm-4;
                 break;
             }
             case Bne: {
-                //System.out.printf("0x%02X: Bne x%d, x%d, %d # 0x%02X\n", pc, i.rs1, i.rs2, i.immediate, pc+i.immediate);
-                if (regs[i.rs1] != regs[i.rs2]) {
-                    //System.out.println("Bne Jumped");
-                    pc += i.immediate-4;
-                }
+                if (regs[rs1] != regs[rs2])
+                    pc += imm-4;
                 break;
             }
             case Blt: {
-                //System.out.printf("0x%02X: Blt x%d, x%d, %d\n", pc, i.rs1, i.rs2, i.immediate);
-                if (regs[i.rs1] < regs[i.rs2]) {
-                    //System.out.println("Blt Jumped");
-                    pc += i.immediate-4;
-                }
+                if (regs[rs1] < regs[rs2])
+                    pc += imm-4;
                 break;
             }
             case Bge: {
-                //System.out.printf("0x%02X: Bge x%d, x%d, %d\n", pc, i.rs1, i.rs2, i.immediate);
-                if (regs[i.rs1] >= regs[i.rs2]) {
-                    //System.out.println("Bge Jumped");
-                    pc += i.immediate-4;
-                }
+                if (regs[rs1] >= regs[rs2])
+                    pc += imm-4;
                 break;
             }
             case Bltu: {
-                //System.out.printf("0x%02X: Bltu x%d, x%d, %d\n", pc, i.rs1, i.rs2, i.immediate);
-                if (Long.compareUnsigned(regs[i.rs1], regs[i.rs2]) < 0) {
-                    //System.out.println("Bltu Jumped");
-                    pc += i.immediate-4;
-                }
+                if (Long.compareUnsigned(regs[rs1], regs[rs2]) < 0)
+                    pc += imm-4;
                 break;
             }
             case Bgeu: {
-                //System.out.printf("0x%02X: Bgeu x%d, x%d, %d\n", pc, i.rs1, i.rs2, i.immediate);
-                if (Long.compareUnsigned(regs[i.rs1], regs[i.rs2]) >= 0) {
-                    //System.out.println("Bgeu Jumped");
-                    pc += i.immediate-4;
-                }
+                if (Long.compareUnsigned(regs[rs1], regs[rs2]) >= 0)
+                    pc += imm-4;
                 break;
             }
             case Jal: {
-                if (((i.opcode>>31)&0x1) != 0)
-                    i.immediate |= (long)0xFFFFFFFF<<32;
-                //System.out.printf("0x%02X: Jal x%d, %d\n", pc, i.rd, i.immediate);
-                regs[i.rd] = pc+4;
-                pc += i.immediate-4;
+                regs[rd] = pc+4;
+                pc += imm-4;
                 break;
             }
             case Jalr: {
-                //System.out.printf("0x%02X: Jalr x%d, %d\n", pc, i.rd, i.immediate);
-                regs[i.rd] = pc+i.immediate;
-                //pc += ((regs[i.rs1]+i.immediate)&(~(long)1))-4;
+                long target = (regs[rs1]+imm)&~1L;
+                regs[rd] = pc+4;
+                pc = target-4;
                 break;
             }
             case Sb: {
-                write8((int)(regs[i.rs1]+i.immediate), (byte)regs[i.rs2]);
-                //System.out.printf("0x%02X: Sb x%d, %d(x%d)\n", pc, i.rs2, i.immediate, i.rs1);
+                write8(regs[rs1]+imm, (byte)regs[rs2]);
                 break;
             }
             case Sh: {
-                write16((int)(regs[i.rs1]+i.immediate), (short)regs[i.rs2]);
-                //System.out.printf("0x%02X: Sh x%d, %d(x%d)\n", pc, i.rs2, i.immediate, i.rs1);
+                write16(regs[rs1]+imm, (short)regs[rs2]);
                 break;
             }
             case Sw: {
-                write32((int)(regs[i.rs1]+i.immediate), (int)regs[i.rs2]);
-                //System.out.printf("0x%02X: Sw x%d, %d(x%d)\n", pc, i.rs2, i.immediate, i.rs1);
+                write32(regs[rs1]+imm, (int)regs[rs2]);
                 break;
             }
             case Sd: {
-                write64((int)(regs[i.rs1]+i.immediate), (long)regs[i.rs2]);
-                //System.out.printf("0x%02X: %08x Sd x%d, %d(x%d)\n", pc, inst, i.rs2, i.immediate, i.rs1);
+                write64(regs[rs1]+imm, regs[rs2]);
+                break;
+            }
+            case Lb: {
+                regs[rd] = read8(regs[rs1]+imm);
+                break;
+            }
+            case Lbu: {
+                regs[rd] = Byte.toUnsignedLong(read8(regs[rs1]+imm));
+                break;
+            }
+            case Lh: {
+                regs[rd] = read16(regs[rs1]+imm);
+                break;
+            }
+            case Lhu: {
+                regs[rd] = Short.toUnsignedLong(read16(regs[rs1]+imm));
+                break;
+            }
+            case Lw: {
+                regs[rd] = read32(regs[rs1]+imm);
+                break;
+            }
+            case Lwu: {
+                regs[rd] = Integer.toUnsignedLong(read32(regs[rs1]+imm));
+                break;
+            }
+            case Ld: {
+                regs[rd] = read64(regs[rs1]+imm);
+                break;
+            }
+            case LrW: {
+                regs[rd] = lrW(regs[rs1]);
+                break;
+            }
+            case LrD: {
+                regs[rd] = lrD(regs[rs1]);
+                break;
+            }
+            case ScW: {
+                regs[rd] = scW(regs[rs1], regs[rs2]);
+                break;
+            }
+            case ScD: {
+                regs[rd] = scD(regs[rs1], regs[rs2]);
+                break;
+            }
+            case AmoswapW: case AmoaddW: case AmoxorW: case AmoandW: case AmoorW:
+            case AmominW: case AmomaxW: case AmominuW: case AmomaxuW: {
+                regs[rd] = amoW(regs[rs1], amoOp(Instruction.op(d)), regs[rs2]);
+                break;
+            }
+            case AmoswapD: case AmoaddD: case AmoxorD: case AmoandD: case AmoorD:
+            case AmominD: case AmomaxD: case AmominuD: case AmomaxuD: {
+                regs[rd] = amoD(regs[rs1], amoOp(Instruction.op(d)), regs[rs2]);
+                break;
+            }
+            case Csrrw: case Csrrs: case Csrrc: case Csrrwi: case Csrrsi: case Csrrci: {
+                csrOp(Instruction.op(d), rd, rs1, imm);
+                break;
+            }
+            case RdCycle: {
+                regs[rd] = cycle(0);
+                break;
+            }
+            case RdTime: {
+                regs[rd] = time();
+                break;
+            }
+            case RdInstRet: {
+                regs[rd] = instret(0);
+                break;
+            }
+            case Ecall: {
+                raise(Csr.CAUSE_ECALL_U + csr.priv, 0, "Unhandled ECALL");
                 break;
             }
-            case Lb: /* LB */ {
-                regs[i.rd] = memory[(int)(regs[i.rs1]+i.immediate)];
-                //System.out.printf("0x%02X: Lb x%d, %d(x%d)\n", pc, i.rd, i.immediate, i.rs1);
+            case Ebreak: {
+                raise(Csr.CAUSE_BREAKPOINT, pc, "Unhandled EBREAK");
                 break;
             }
-            case Lh: /* LH */ {
-                regs[i.rd] = read16((int)(regs[i.rs1]+i.immediate));
-                //System.out.printf("0x%02X: Lh x%d, %d(x%d)\n", pc, i.rd, i.immediate, i.rs1);
+            case Mret: {
+                if (csr.priv < Csr.PRIV_M)
+                    raise(Csr.CAUSE_ILLEGAL_INSTRUCTION, 0, "MRET below M mode");
+                else
+                    pc = csr.mret() - 4;
                 break;
             }
-            case Lw: /* LW */ {
-                regs[i.rd] = read32((int) (regs[i.rs1]+i.immediate));
-                //System.out.printf("0x%02X: Lw x%d, %d(x%d)\n", pc, i.rd, i.immediate, i.rs1);
+            case Sret: {
+                if (csr.priv < Csr.PRIV_S)
+                    raise(Csr.CAUSE_ILLEGAL_INSTRUCTION, 0, "SRET in U mode");
+                else
+                    pc = csr.sret() - 4;
                 break;
             }
-            case Ld: /* LD */ {
-                regs[i.rd] = read64((int)(regs[i.rs1]+i.immediate));
-                //System.out.printf("0x%02X: Ld x%d, %d(x%d)\n", pc, i.rd, i.immediate, i.rs1);
+            case SfenceVma: {
+                // rs1 = x0 flushes all addresses, the ASID in rs2 is ignored as there are none
+                if (csr.priv < Csr.PRIV_S)
+                    raise(Csr.CAUSE_ILLEGAL_INSTRUCTION, 0, "SFENCE.VMA in U mode");
+                else
+                    mmu.fence(regs[rs1], rs1 == 0);
                 break;
             }
-            case Lwu: /* LWU */ {
-                regs[i.rd] = Integer.toUnsignedLong(read32((int)(regs[i.rs1]+i.immediate)));
-                System.out.printf("0x%02X: Lwu x%d, %d(x%d)\n", pc, i.rd, i.immediate, i.rs1);
+            case Wfi: {
+                // Give up the rest of the slice until something can wake the hart
+                if ((csr.pending() & csr.mie) == 0)
+                    need_sleep = true;
+                break;
+            }
+            case Fence: {
+                // Stronger than the fence asked for, but a fence is rare enough that it doesn't matter
+                VarHandle.fullFence();
+                break;
+            }
+            case FenceI: {
+                icache.flush();
+                if (jit != null)
+                    jit.flush();
                 break;
             }
             default: {
@@ -204,12 +564,64 @@ public class RISCV {
         }
 
         this.pc += 4;
-        if (this.pc >= this.mem_size || this.pc == 0)
-            vm.bsod("Program counter out of range!");
+        checkPc();
+    }
+
+    /* Zicsr. CSRRW doesn't read when rd is x0, and CSRRS/CSRRC don't write when the source is x0 or 0 */
+    private void csrOp(Instruction.Inst op, int rd, int rs1, int number) {
+        boolean immediate = op == Instruction.Inst.Csrrwi || op == Instruction.Inst.Csrrsi || op == Instruction.Inst.Csrrci;
+        boolean swap = op == Instruction.Inst.Csrrw || op == Instruction.Inst.Csrrwi;
+        long src = immediate ? rs1 : regs[rs1];
+        try {
+            long old = !swap || rd != 0 ? csr.read(number) : 0;
+            if (swap)
+                csr.write(number, src);
+            else if (rs1 != 0)
+                csr.write(number, op == Instruction.Inst.Csrrs || op == Instruction.Inst.Csrrsi ? old | src : old & ~src);
+            regs[rd] = old;
+        } catch (Csr.IllegalAccess e) {
+            raise(Csr.CAUSE_ILLEGAL_INSTRUCTION, 0, String.format("Illegal access to CSR 0x%03X", number));
+        }
+    }
+
+    /* Traps from inside execute, which adds 4 to pc afterwards. Without a trap handler the machine halts as before */
+    private void raise(long cause, long tval, String msg) {
+        if (csr.mtvec == 0)
+            panic(msg);
+        else
+            pc = csr.trap(cause, pc, tval) - 4;
+    }
+
+    /* With paging on, pc is virtual and fetching from a bad one faults instead */
+    private void checkPc() {
+        if (paging)
+            return;
+        if (Long.compareUnsigned(this.pc, this.mem_size) >= 0 || this.pc == 0)
+            fault("Program counter out of range!");
     }
 
     private void panic(String str) {
-        vm.bsod(str);
+        fault(str);
+    }
+
+    /* Only the boot hart takes the machine down, a secondary hart that goes astray just stops */
+    private void fault(String msg) {
+        if (hartid == 0) {
+            vm.bsod(msg);
+        } else {
+            System.err.printf("Hart %d stopped: %s\n", hartid, msg);
+            this.hard_halted = true;
+        }
+    }
+
+    /** Raises a software interrupt on this hart. Taken once traps are implemented, until then only recorded. */
+    void raiseIpi() {
+        this.ipi_pending = true;
+    }
+
+    /** Raises or lowers the external interrupt line of this hart. Devices call it from any thread. */
+    void setExternalInterrupt(boolean level) {
+        this.irq_pending = level;
     }
 
     private void dumpRegs() {
@@ -231,46 +643,330 @@ public class RISCV {
     }
 
     public int fetch() {
-        return read32((int)pc);
+        return memory.read32(paging ? mmu.fetch(pc) : pc);
+    }
+
+    /**
+     * Returns the packed decoded instruction at pc, decoding and caching it on a miss. The cache is
+     * indexed by physical address, so it is shared by all mappings of a page. A pair fuses only within
+     * a page, so writing to either instruction drops the fused entry with the page.
+     */
+    public long fetchDecoded() {
+        long pa = paging ? mmu.fetch(pc) : pc;
+        fetch_pa = pa;
+        long d = icache.get(pa);
+        if (d == 0) {
+            int word = memory.read32(pa);
+            d = Instruction.decodePacked(word);
+            if (DecodeCache.FUSE && Instruction.fusable(d) && (pa & (DecodeCache.PAGE_SIZE - 1)) != DecodeCache.PAGE_SIZE - 4) {
+                d = Instruction.fuse(d, Instruction.decodePacked(memory.read32(pa + 4), false));
+                if ((d & Instruction.FUSED) != 0)
+                    icache.fused++;
+            }
+            icache.put(pa, d, word);
+        }
+        return d;
     }
 
     public int progLoad() {
         return 0x00;
     }
 
-    private short read16(int addr) {
-        return (short)((memory[addr]) | memory[(addr+1)]<<8);
+    /*
+     * The memory helpers are package-private so compiled blocks can call them. With paging on they
+     * translate first, and accesses straddling two pages are split in halves, since the pages needn't
+     * be next to each other. A split store translates the second page before writing the first half,
+     * so it either faults or completes.
+     */
+    byte read8(long addr) {
+        if (paging)
+            addr = mmu.load(addr);
+        if (Long.compareUnsigned(addr, mem_size) >= 0)
+            return (byte)busRead(addr, 1);
+        return memory.read8(addr);
     }
 
-    private int read32(int addr) {
-        return Byte.toUnsignedInt(memory[addr]) | Byte.toUnsignedInt(memory[(addr+1)])<<8 | Byte.toUnsignedInt(memory[(addr+2)])<<16 | Byte.toUnsignedInt(memory[(addr+3)])<<24;
+    short read16(long addr) {
+        if (paging) {
+            if ((addr & 0xFFF) > 0xFFE)
+                return (short)((read8(addr) & 0xFF) | read8(addr + 1) << 8);
+            addr = mmu.load(addr);
+        }
+        if (Long.compareUnsigned(addr, mem_size) >= 0)
+            return (short)busRead(addr, 2);
+        return memory.read16(addr);
     }
 
-    private long read64(int addr) {
-        return Integer.toUnsignedLong(read32(addr)) | Integer.toUnsignedLong(read32(addr+4))<<32;
+    int read32(long addr) {
+        if (paging) {
+            if ((addr & 0xFFF) > 0xFFC)
+                return (read16(addr) & 0xFFFF) | read16(addr + 2) << 16;
+            addr = mmu.load(addr);
+        }
+        if (Long.compareUnsigned(addr, mem_size) >= 0)
+            return (int)busRead(addr, 4);
+        return memory.read32(addr);
     }
 
-    private void write8(int addr, byte data) {
-        memory[addr] = data;
+    long read64(long addr) {
+        if (paging) {
+            if ((addr & 0xFFF) > 0xFF8)
+                return (read32(addr) & 0xFFFFFFFFL) | (long)read32(addr + 4) << 32;
+            addr = mmu.load(addr);
+        }
+        if (Long.compareUnsigned(addr, mem_size) >= 0)
+            return busRead(addr, 8);
+        return memory.read64(addr);
     }
 
-    private void write16(int addr, short data) {
-        write8(addr, (byte)(data));
-        write8(addr+1, (byte)(data>>>8));
+    void write8(long addr, byte data) {
+        if (paging)
+            addr = mmu.store(addr);
+        if (Long.compareUnsigned(addr, mem_size) >= 0) {
+            busWrite(addr, 1, data);
+            return;
+        }
+        memory.write8(addr, data);
+        codeWritten(addr);
     }
 
-    private void write32(int addr, int data) {
-        write16(addr, (short)(data));
-        write16(addr+1, (short)(data>>>16));
+    /* Wider stores may straddle two pages, so both ends are checked for code */
+    void write16(long addr, short data) {
+        if (paging) {
+            if ((addr & 0xFFF) > 0xFFE) {
+                mmu.store(addr + 1);
+                write8(addr, (byte)data);
+                write8(addr + 1, (byte)(data >> 8));
+                return;
+            }
+            addr = mmu.store(addr);
+        }
+        if (Long.compareUnsigned(addr, mem_size) >= 0) {
+            busWrite(addr, 2, data);
+            return;
+        }
+        memory.write16(addr, data);
+        codeWritten(addr);
+        codeWritten(addr+1);
+    }
+
+    void write32(long addr, int data) {
+        if (paging) {
+            if ((addr & 0xFFF) > 0xFFC) {
+                mmu.store(addr + 3);
+                write16(addr, (short)data);
+                write16(addr + 2, (short)(data >> 16));
+                return;
+            }
+            addr = mmu.store(addr);
+        }
+        if (Long.compareUnsigned(addr, mem_size) >= 0) {
+            busWrite(addr, 4, data);
+            return;
+        }
+        memory.write32(addr, data);
+        codeWritten(addr);
+        codeWritten(addr+3);
+    }
+
+    void write64(long addr, long data) {
+        if (paging) {
+            if ((addr & 0xFFF) > 0xFF8) {
+                mmu.store(addr + 7);
+                write32(addr, (int)data);
+                write32(addr + 4, (int)(data >> 32));
+                return;
+            }
+            addr = mmu.store(addr);
+        }
+        if (Long.compareUnsigned(addr, mem_size) >= 0) {
+            busWrite(addr, 8, data);
+            return;
+        }
+        memory.write64(addr, data);
+        codeWritten(addr);
+        codeWritten(addr+7);
+    }
+
+    /* Physical addresses past RAM go to the devices on the bus, and fault where there is none */
+    private long busRead(long addr, int width) {
+        int i = bus.find(addr);
+        if (i < 0)
+            throw mmu.accessFault(Mmu.LOAD, addr);
+        return bus.read(i, addr, width);
+    }
+
+    private void busWrite(long addr, int width, long data) {
+        int i = bus.find(addr);
+        if (i < 0)
+            throw mmu.accessFault(Mmu.STORE, addr);
+        bus.write(i, addr, width, data);
+    }
+
+    /*
+     * Atomics. SC succeeds if the word still holds the value LR loaded, checked with a compare-and-set,
+     * so no hart ever takes a lock or has to check other harts' reservations on plain stores. A store
+     * of the same value in between goes unnoticed, which guests can't rely on anyway. Reservations are
+     * on physical addresses, and SC and AMOs translate as stores, even an SC that fails. Misaligned ones
+     * trap before translating, as the guest would see on hardware without misaligned atomics.
+     */
+    long lrW(long addr) {
+        if ((addr & (3)) != 0)
+            throw mmu.misaligned(Mmu.LOAD, addr);
+        if (paging)
+            addr = mmu.load(addr);
+        reservation_value = memory.read32(addr);
+        reservation_addr = addr;
+        VarHandle.acquireFence();
+        return reservation_value;
+    }
+
+    long lrD(long addr) {
+        if ((addr & (7)) != 0)
+            throw mmu.misaligned(Mmu.LOAD, addr);
+        if (paging)
+            addr = mmu.load(addr);
+        reservation_value = memory.read64(addr);
+        reservation_addr = addr;
+        VarHandle.acquireFence();
+        return reservation_value;
+    }
+
+    /** Returns 0 on success and 1 on failure, as SC writes to rd. */
+    long scW(long addr, long value) {
+        if ((addr & (3)) != 0)
+            throw mmu.misaligned(Mmu.STORE, addr);
+        if (paging)
+            addr = mmu.store(addr);
+        boolean reserved = reservation_addr == addr;
+        reservation_addr = -1;
+        if (!reserved)
+            return 1;
+        if (memory.cas32(addr, (int)reservation_value, (int)value) != (int)reservation_value)
+            return 1;
+        codeWritten(addr);
+        return 0;
+    }
+
+    long scD(long addr, long value) {
+        if ((addr & (7)) != 0)
+            throw mmu.misaligned(Mmu.STORE, addr);
+        if (paging)
+            addr = mmu.store(addr);
+        boolean reserved = reservation_addr == addr;
+        reservation_addr = -1;
+        if (!reserved)
+            return 1;
+        if (memory.cas64(addr, reservation_value, value) != reservation_value)
+            return 1;
+        codeWritten(addr);
+        return 0;
+    }
+
+    long amoW(long addr, int op, long value) {
+        if ((addr & (3)) != 0)
+            throw mmu.misaligned(Mmu.STORE, addr);
+        if (paging)
+            addr = mmu.store(addr);
+        long old = memory.amo32(addr, op, (int)value);
+        codeWritten(addr);
+        return old;
+    }
+
+    long amoD(long addr, int op, long value) {
+        if ((addr & (7)) != 0)
+            throw mmu.misaligned(Mmu.STORE, addr);
+        if (paging)
+            addr = mmu.store(addr);
+        long old = memory.amo64(addr, op, value);
+        codeWritten(addr);
+        return old;
+    }
+
+    /*
+     * M extension. Division by zero gives all ones for quotients and the dividend for remainders, and
+     * the one overflowing signed division gives the dividend and a remainder of 0, which is what the
+     * JVM does anyway. Compiled blocks call these too.
+     */
+    static long mulhu(long a, long b) {
+        // Math.unsignedMultiplyHigh is JDK 18+, this is how it is implemented there
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
     }
 
-    private void write64(int addr, long data) {
-        write32(addr, (int)(data));
-        write32(addr+1, (int)(data>>>32));
+    static long mulhsu(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((b >> 63) & a);
     }
 
-    public void mem_write_8(int addr, byte data) {
-        memory[addr] = data;
+    static long div(long a, long b) {
+        return b == 0 ? -1 : a / b;
+    }
+
+    static long divu(long a, long b) {
+        return b == 0 ? -1 : Long.divideUnsigned(a, b);
+    }
+
+    static long rem(long a, long b) {
+        return b == 0 ? a : a % b;
+    }
+
+    static long remu(long a, long b) {
+        return b == 0 ? a : Long.remainderUnsigned(a, b);
+    }
+
+    static long divw(long a, long b) {
+        return (int)b == 0 ? -1 : (int)a / (int)b;
+    }
+
+    static long divuw(long a, long b) {
+        return (int)b == 0 ? -1 : Integer.divideUnsigned((int)a, (int)b);
+    }
+
+    static long remw(long a, long b) {
+        return (int)b == 0 ? (int)a : (int)a % (int)b;
+    }
+
+    static long remuw(long a, long b) {
+        return (int)b == 0 ? (int)a : Integer.remainderUnsigned((int)a, (int)b);
+    }
+
+    /** The {@link Memory} operation an AMO instruction performs. */
+    static int amoOp(Instruction.Inst op) {
+        switch (op) {
+            case AmoswapW: case AmoswapD: return Memory.AMO_SWAP;
+            case AmoaddW: case AmoaddD: return Memory.AMO_ADD;
+            case AmoxorW: case AmoxorD: return Memory.AMO_XOR;
+            case AmoandW: case AmoandD: return Memory.AMO_AND;
+            case AmoorW: case AmoorD: return Memory.AMO_OR;
+            case AmominW: case AmominD: return Memory.AMO_MIN;
+            case AmomaxW: case AmomaxD: return Memory.AMO_MAX;
+            case AmominuW: case AmominuD: return Memory.AMO_MINU;
+            case AmomaxuW: case AmomaxuD: return Memory.AMO_MAXU;
+            default: throw new IllegalArgumentException(op + " is not an AMO");
+        }
+    }
+
+    /** Maps a read-only image into guest memory, see {@link Memory#map}. */
+    public void mapImage(long addr, ByteBuffer image) {
+        memory.map(addr, image);
+        for (long a = addr; a < addr + image.remaining(); a += Memory.PAGE_SIZE)
+            codeWritten(a);
+    }
+
+    public void mem_write_8(long addr, byte data) {
+        memory.write8(addr, data);
+        codeWritten(addr);
+    }
+
+    /** Called by a compiled block when the index-th instruction in it throws. */
+    void blockFaulted(int index) {
+        block_fault = index;
+    }
+
+    /** Drops decoded and compiled code for the page containing the physical address addr. */
+    void codeWritten(long addr) {
+        icache.invalidate(addr);
+        if (jit != null)
+            jit.invalidate(addr);
     }
 
     public void run_cycles(int ccount) {
@@ -278,28 +974,82 @@ public class RISCV {
         assert(ccount < 0x40000000);
 
         int cyc_end = this.cycles + ccount - this.cycle_wait;
+        this.slice_start = this.cycles;
 
+        boolean block_start = true;
+        CompiledBlock last = null;
         this.need_sleep = false;
         while(!this.hard_halted && !this.need_sleep && (cyc_end - this.cycles) >= 0) {
-            long pc = this.pc;
-
             try {
-                int inst = fetch();
-                Instruction i = Instruction.decode(inst);
-                //long oldpc = this.pc;
-                //this.dumpRegs();
-                this.execute(i);
-                //Instruction.printInfo(i, oldpc, inst);
-                //this.dumpRegs();
-                //new Scanner(System.in).nextLine();
+                if (block_start && (ipi_pending || irq_pending || csr.mip != 0) && csr.mtvec != 0) {
+                    long cause = csr.interrupt();
+                    if (cause != 0) {
+                        this.pc = csr.trap(cause, this.pc, 0);
+                        last = null;
+                    }
+                }
+                long pc = this.pc;
+
+                /* Compiled blocks run on physical addresses, so only while paging is off */
+                if (block_start && jit != null && !paging) {
+                    CompiledBlock b = jit.next(last, pc);
+                    if (b == null)
+                        b = jit.enter(pc, last);
+                    if (b != null) {
+                        try {
+                            this.pc = b.run(this, regs);
+                        } catch (Mmu.PageFault f) {
+                            /* The block wrote back everything before the faulting instruction */
+                            this.pc = b.pc + 4L*block_fault;
+                            this.cycles += block_fault;
+                            throw f;
+                        }
+                        this.cycles += b.length;
+                        jit.runs++;
+                        if (Profile.ENABLED) {
+                            for (int op : b.ops)
+                                op_counts[op]++;
+                        }
+                        checkPc();
+                        last = b;
+                        continue;
+                    }
+                }
+                last = null;
+
+                long d = fetchDecoded();
+                /* What the trace needs from before the instruction runs */
+                int word = Trace.ENABLED ? icache.word(fetch_pa) : 0;
+                int rs1 = Instruction.rs1(d);
+                /* x0 is only zeroed once execute() starts, it may still hold what the last instruction left there */
+                long base = Trace.ENABLED && rs1 != 0 ? regs[rs1] : 0;
+                this.execute(d);
+                if (Trace.ENABLED)
+                    trace.record(pc, word, d, base, regs);
+                this.cycles += Instruction.retires(d);
+                if (Profile.ENABLED && d != Instruction.ILLEGAL)
+                    op_counts[Instruction.op(d).ordinal()]++;
+                block_start = d == Instruction.ILLEGAL || BlockCompiler.endsBlock(Instruction.op(d));
+            } catch (Mmu.PageFault f) {
+                /* The faulting instruction doesn't retire, the trap handler starts a new block */
+                if (csr.mtvec == 0)
+                    fault(String.format("%s fault at 0x%X, cause %d", f.cause == 4 || f.cause == 6 ? "Misaligned" : f.cause < Mmu.FETCH ? "Access" : "Page", f.tval, f.cause));
+                else
+                    this.pc = csr.trap(f.cause, this.pc, f.tval);
+                block_start = true;
+                last = null;
             } catch (RuntimeException e) {
                 System.err.printf("Exception in MIPS emu - halted!\n");
-                this.vm.bsod(e.getMessage());
+                fault(e.getMessage());
                 e.printStackTrace();
                 this.hard_halted = true;
             }
         }
 
+        if (Trace.ENABLED)
+            trace.flush();
         this.cycle_wait = Math.max(0, this.cycles - cyc_end);
+        this.retired += this.cycles - this.slice_start;
+        this.slice_start = this.cycles;
     }
 }
@@ -0,0 +1,241 @@
+package no.pepega;
+
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs many VMs on a fixed pool of threads. Each turn a worker takes the VM that has waited longest
+ * and gives it one {@link PseudoVM#run} call, i.e. one run_cycles budget, then puts it back in line.
+ *
+ * A VM that asks to sleep is left out of the queue for a tick, and one waiting on a synchronous call
+ * is left out until {@link #wake} is called for it. A VM is dropped once it halts.
+ *
+ * Each VM is only ever run by one worker at a time, but not always the same one, so VMs must not
+ * depend on which thread runs them.
+ */
+public class Scheduler implements AutoCloseable {
+    /** How long a sleeping guest stays out of the queue, one game tick. */
+    static final long SLEEP_MILLIS = 50;
+
+    enum State { READY, RUNNING, SLEEPING, PARKED, HALTED }
+
+    /** A VM hosted by the scheduler, with its accounting. */
+    public class Guest {
+        final PseudoVM vm;
+        /* Where the guest's statistics are registered over JMX, when profiling */
+        private ObjectName mbean;
+        private State state = State.READY;
+        private boolean wakePending;
+
+        private long readySince;
+        private long cpuNanos;
+        private long quanta;
+        private long queueNanos;
+        private long maxQueueNanos;
+
+        Guest(PseudoVM vm) {
+            this.vm = vm;
+        }
+
+        public PseudoVM vm() {
+            return vm;
+        }
+
+        public synchronized State state() {
+            return state;
+        }
+
+        /**
+         * Host CPU time spent running this guest, as the worker thread's CPU clock counts it. Secondary
+         * harts run on threads of their own and aren't included.
+         */
+        public synchronized long cpuNanos() {
+            return cpuNanos;
+        }
+
+        public synchronized long quanta() {
+            return quanta;
+        }
+
+        /** This guest's part of all CPU time the scheduler has handed out, from 0 to 1. */
+        public double cpuShare() {
+            long total = totalCpuNanos.sum();
+            return total == 0 ? 0 : (double)cpuNanos() / total;
+        }
+
+        /** Mean time from being ready to run until a worker picked it up. */
+        public synchronized long meanQueueNanos() {
+            return quanta == 0 ? 0 : queueNanos / quanta;
+        }
+
+        public synchronized long maxQueueNanos() {
+            return maxQueueNanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%-8s %6d quanta, %8.1f ms cpu (%5.1f%%), queued %.3f ms mean / %.3f ms max, %.1f MIPS",
+                    state, quanta, cpuNanos / 1e6, 100*cpuShare(), meanQueueNanos() / 1e6, maxQueueNanos / 1e6,
+                    vm.instructionsPerSecond() / 1e6);
+        }
+
+        private void runQuantum() {
+            long start = System.nanoTime();
+            synchronized (this) {
+                long waited = start - readySince;
+                queueNanos += waited;
+                maxQueueNanos = Math.max(maxQueueNanos, waited);
+                state = State.RUNNING;
+            }
+
+            long cpuStart = cpuTime();
+            Object r;
+            try {
+                r = vm.run(vm.is_booted ? 1 : 0);
+            } catch (Exception e) {
+                System.err.printf("Guest crashed:\n");
+                e.printStackTrace();
+                vm.arch.hard_halted = true;
+                r = null;
+            }
+
+            long spent = cpuTime() - cpuStart;
+            totalCpuNanos.add(spent);
+            boolean halted = false;
+            synchronized (this) {
+                cpuNanos += spent;
+                quanta++;
+                if (vm.arch.hard_halted) {
+                    state = State.HALTED;
+                    halted = true;
+                } else if (r == null) {
+                    if (wakePending) {
+                        wakePending = false;
+                        makeReady();
+                    } else {
+                        state = State.PARKED;
+                    }
+                } else if (r.equals(1)) {
+                    state = State.SLEEPING;
+                    timer.schedule(this::wakeFromSleep, SLEEP_MILLIS, TimeUnit.MILLISECONDS);
+                } else {
+                    makeReady();
+                }
+            }
+            if (halted) {
+                if (mbean != null)
+                    Profile.unregister(mbean);
+                halted();
+            }
+        }
+
+        private synchronized void wakeFromSleep() {
+            if (state == State.SLEEPING)
+                makeReady();
+        }
+
+        private synchronized void wake() {
+            vm.arch.sync_call = false;
+            if (state == State.PARKED)
+                makeReady();
+            else if (state == State.RUNNING)
+                wakePending = true;
+        }
+
+        private void makeReady() {
+            state = State.READY;
+            readySince = System.nanoTime();
+            ready.add(this);
+        }
+    }
+
+    /* Per-thread CPU clocks, or the wall clock where the JVM has none */
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_CLOCK = threads.isCurrentThreadCpuTimeSupported();
+
+    private static long cpuTime() {
+        return CPU_CLOCK ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private final LinkedBlockingQueue<Guest> ready = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jerv-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final List<Thread> workers = new ArrayList<>();
+    private final List<Guest> guests = new ArrayList<>();
+    private final LongAdder totalCpuNanos = new LongAdder();
+    private int live;
+
+    public Scheduler(int threads) {
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::work, "jerv-worker-" + i);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+    }
+
+    /** Adds a VM, booting it first if it hasn't been yet. */
+    public Guest submit(PseudoVM vm) {
+        Guest g = new Guest(vm);
+        synchronized (this) {
+            guests.add(g);
+            live++;
+            if (Profile.ENABLED)
+                g.mbean = Profile.register(vm, "guest-" + guests.size());
+        }
+        synchronized (g) {
+            g.makeReady();
+        }
+        return g;
+    }
+
+    /** Resumes a guest parked on a synchronous call, once the host has handled the call. */
+    public void wake(Guest g) {
+        g.wake();
+    }
+
+    public synchronized List<Guest> guests() {
+        return new ArrayList<>(guests);
+    }
+
+    /** Blocks until every submitted VM has halted. */
+    public synchronized void awaitAll() throws InterruptedException {
+        while (live > 0)
+            wait();
+    }
+
+    private synchronized void halted() {
+        live--;
+        if (live == 0)
+            notifyAll();
+    }
+
+    private void work() {
+        try {
+            while (true)
+                ready.take().runQuantum();
+        } catch (InterruptedException e) {
+            // Shut down
+        }
+    }
+
+    /** Stops the workers. VMs still running finish their current quantum first. */
+    @Override
+    public void close() {
+        for (Thread t : workers)
+            t.interrupt();
+        timer.shutdownNow();
+    }
+}
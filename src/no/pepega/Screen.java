@@ -0,0 +1,88 @@
+package no.pepega;
+
+import java.util.Arrays;
+
+/**
+ * A text screen of character cells with a foreground and background color each, drawn on by a
+ * {@link Gpu}. On the bus the cells are 4 bytes each, row by row, holding the character. Writing a
+ * cell there keeps its colors.
+ */
+public final class Screen implements Device {
+    static final int WIDTH = 80;
+    static final int HEIGHT = 25;
+
+    private final int width;
+    private final int height;
+    private final int[] chars;
+    private final int[] fg;
+    private final int[] bg;
+
+    public Screen() {
+        this(WIDTH, HEIGHT);
+    }
+
+    public Screen(int width, int height) {
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException("A screen needs at least one cell");
+        this.width = width;
+        this.height = height;
+        this.chars = new int[width * height];
+        this.fg = new int[chars.length];
+        this.bg = new int[chars.length];
+        Arrays.fill(chars, ' ');
+        Arrays.fill(fg, 0xFFFFFF);
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /** Sets the cell at x, y, counting from 1. Cells off the screen are ignored. */
+    synchronized void set(int x, int y, int ch, int foreground, int background) {
+        if (x < 1 || x > width || y < 1 || y > height)
+            return;
+        int i = (y - 1) * width + x - 1;
+        chars[i] = ch;
+        fg[i] = foreground;
+        bg[i] = background;
+    }
+
+    /** The text of row y, counting from 1. */
+    public synchronized String line(int y) {
+        return new String(chars, (y - 1) * width, width);
+    }
+
+    synchronized void copyFrom(Screen from) {
+        if (from.width != width || from.height != height)
+            throw new IllegalArgumentException("Screens differ in size");
+        System.arraycopy(from.chars, 0, chars, 0, chars.length);
+        System.arraycopy(from.fg, 0, fg, 0, fg.length);
+        System.arraycopy(from.bg, 0, bg, 0, bg.length);
+    }
+
+    @Override
+    public long size() {
+        return (4L * chars.length + Memory.PAGE_SIZE - 1) & -Memory.PAGE_SIZE;
+    }
+
+    /* Only whole cells, narrower accesses read the low bytes of the character */
+    @Override
+    public synchronized long read(long offset, int width) {
+        int i = (int)(offset >>> 2);
+        if (i >= chars.length)
+            return 0;
+        long mask = width == 8 ? -1L : (1L << (8*width)) - 1;
+        return (chars[i] & 0xFFFFFFFFL) & mask;
+    }
+
+    @Override
+    public synchronized void write(long offset, int width, long value) {
+        int i = (int)(offset >>> 2);
+        if (i < chars.length)
+            chars[i] = (int)value;
+    }
+}
@@ -0,0 +1,302 @@
+package no.pepega;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Saves a VM to a file and brings it back, so a guest only has to boot once.
+ *
+ * Only pages that are not all zeroes are written. Without compression every page is stored
+ * page-aligned, and restoring maps the file and hands the pages to {@link Memory#map}, so nothing is
+ * read until the guest touches it and a restore costs about the same for any guest size. The file must
+ * not change while a VM restored from it is running. With compression each page is deflated on its own
+ * in parallel, and restoring inflates them all up front.
+ *
+ * Layout, little-endian:
+ * <pre>
+ *   magic, version, flags, page count            4 ints
+ *   memory size, data offset, eeprom offset       3 longs
+ *   hart count, then each hart's state            int, see RISCV.saveState
+ *   time CSR                                      long
+ *   eeprom length, components                     int, then int count and string pairs
+ *   page table                                    page number and stored length, 2 ints per page
+ *   page data                                     from the data offset, page aligned
+ *   eeprom                                        from the eeprom offset, page aligned
+ * </pre>
+ */
+public class Snapshot {
+    static final int MAGIC = 0x5652454A; // "JERV"
+    static final int VERSION = 4;
+    static final int FLAG_COMPRESSED = 1;
+
+    private static final int PAGE_SIZE = Memory.PAGE_SIZE;
+    /* Bytes RISCV.saveState writes: pc, registers, cycle counters, flags, instret and the CSRs */
+    private static final int HART_STATE = 8*33 + 9 + 8 + Csr.STATE_SIZE;
+    /* Mappings are limited to 2 GiB, so page data is mapped in pieces this size */
+    private static final long MAP_CHUNK = 1L << 30;
+    /* Compressed pages are inflated this many at a time, so restoring never holds the whole guest twice */
+    private static final int BATCH = 4096;
+
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+    private static final ThreadLocal<byte[]> PAGE_BUF = ThreadLocal.withInitial(() -> new byte[PAGE_SIZE]);
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    /** Writes the VM to file. The VM must not be running meanwhile. */
+    public static void save(PseudoVM vm, Path file, boolean compress) throws IOException {
+        Memory mem = vm.arch.memory;
+        ByteBuffer eeprom = vm.machine.eeprom();
+
+        int[] pages = IntStream.range(0, mem.pageCount()).parallel().filter(p -> {
+            byte[] buf = PAGE_BUF.get();
+            return mem.copyPage(p, buf) && !Arrays.equals(buf, ZERO_PAGE);
+        }).toArray();
+
+        byte[][] deflated = null;
+        if (compress) {
+            deflated = Arrays.stream(pages).parallel().mapToObj(p -> {
+                byte[] buf = PAGE_BUF.get();
+                mem.copyPage(p, buf);
+                return deflate(buf);
+            }).toArray(byte[][]::new);
+        }
+
+        ByteBuffer meta = ByteBuffer.allocate(64 + vm.hartCount()*HART_STATE + 64 + componentsSize(vm.machine.components()) + 8*pages.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        meta.position(40);
+        meta.putInt(vm.hartCount());
+        for (RISCV h : vm.harts)
+            h.saveState(meta);
+        meta.putLong(vm.time());
+        meta.putInt(eeprom.remaining());
+        meta.putInt(vm.machine.components().size());
+        for (Map.Entry<String, String> e : vm.machine.components().entrySet()) {
+            putString(meta, e.getKey());
+            putString(meta, e.getValue());
+        }
+        long dataLength = 0;
+        for (int i = 0; i < pages.length; i++) {
+            int len = compress ? deflated[i].length : PAGE_SIZE;
+            meta.putInt(pages[i]);
+            meta.putInt(len);
+            dataLength += len;
+        }
+        long dataOffset = alignUp(meta.position());
+        long eepromOffset = alignUp(dataOffset + dataLength);
+        meta.flip();
+        meta.putInt(0, MAGIC);
+        meta.putInt(4, VERSION);
+        meta.putInt(8, compress ? FLAG_COMPRESSED : 0);
+        meta.putInt(12, pages.length);
+        meta.putLong(16, mem.size());
+        meta.putLong(24, dataOffset);
+        meta.putLong(32, eepromOffset);
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(ch, meta, 0);
+
+            ByteBuffer out = ByteBuffer.allocateDirect(256 * PAGE_SIZE);
+            long pos = dataOffset;
+            byte[] buf = PAGE_BUF.get();
+            for (int i = 0; i < pages.length; i++) {
+                byte[] data = buf;
+                if (compress)
+                    data = deflated[i];
+                else
+                    mem.copyPage(pages[i], buf);
+                if (out.remaining() < data.length) {
+                    out.flip();
+                    pos += writeFully(ch, out, pos);
+                    out.clear();
+                }
+                out.put(data);
+            }
+            out.flip();
+            writeFully(ch, out, pos);
+
+            writeFully(ch, eeprom, eepromOffset);
+        }
+    }
+
+    /** Restores a VM saved by {@link #save}, with its memory on the backend memoryFactory creates for the saved size. */
+    public static PseudoVM restore(Path file, LongFunction<Memory> memoryFactory) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer fixed = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(ch, fixed, 0);
+            if (fixed.getInt(0) != MAGIC || fixed.getInt(4) != VERSION)
+                throw new IOException(file + " is not a JERV snapshot");
+            boolean compressed = (fixed.getInt(8) & FLAG_COMPRESSED) != 0;
+            int pageCount = fixed.getInt(12);
+            long memSize = fixed.getLong(16);
+            long dataOffset = fixed.getLong(24);
+            long eepromOffset = fixed.getLong(32);
+
+            ByteBuffer meta = ByteBuffer.allocate((int)(dataOffset - 40)).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(ch, meta, 40);
+            meta.flip();
+
+            int hartCount = meta.getInt();
+            ByteBuffer hartState = meta.slice().order(ByteOrder.LITTLE_ENDIAN);
+            meta.position(meta.position() + hartCount*HART_STATE);
+            long time = meta.getLong();
+            int eepromLength = meta.getInt();
+            int compCount = meta.getInt();
+            Map<String, String> comps = new LinkedHashMap<>();
+            for (int i = 0; i < compCount; i++)
+                comps.put(getString(meta), getString(meta));
+
+            ByteBuffer eeprom = eepromLength == 0 ? ByteBuffer.allocate(0)
+                    : ch.map(FileChannel.MapMode.READ_ONLY, eepromOffset, eepromLength);
+            Machine machine = new Machine(eeprom.order(ByteOrder.LITTLE_ENDIAN), comps);
+            PseudoVM vm = new PseudoVM(machine, memoryFactory.apply(memSize), hartCount);
+            for (RISCV h : vm.harts)
+                h.loadState(hartState);
+            vm.setTime(time);
+            vm.resumeBooted();
+
+            int[] pages = new int[pageCount];
+            int[] lengths = new int[pageCount];
+            for (int i = 0; i < pageCount; i++) {
+                pages[i] = meta.getInt();
+                lengths[i] = meta.getInt();
+            }
+            if (compressed)
+                inflatePages(ch, vm.arch.memory, dataOffset, pages, lengths);
+            else
+                mapPages(ch, vm.arch.memory, dataOffset, pages);
+            return vm;
+        }
+    }
+
+    /** Maps runs of consecutive pages straight from the file. */
+    private static void mapPages(FileChannel ch, Memory mem, long dataOffset, int[] pages) throws IOException {
+        ByteBuffer chunk = null;
+        long chunkStart = -1;
+        int i = 0;
+        while (i < pages.length) {
+            long off = (long)i * PAGE_SIZE;
+            if (chunk == null || off >= chunkStart + MAP_CHUNK) {
+                chunkStart = off - off % MAP_CHUNK;
+                long len = Math.min(MAP_CHUNK, (long)pages.length * PAGE_SIZE - chunkStart);
+                chunk = ch.map(FileChannel.MapMode.READ_ONLY, dataOffset + chunkStart, len);
+            }
+            /* A run ends where guest pages stop being consecutive, or at the end of the mapped piece */
+            int j = i + 1;
+            while (j < pages.length && pages[j] == pages[j - 1] + 1 && (long)j * PAGE_SIZE < chunkStart + MAP_CHUNK)
+                j++;
+            mem.map((long)pages[i] * PAGE_SIZE, chunk.slice((int)(off - chunkStart), (j - i) * PAGE_SIZE));
+            i = j;
+        }
+    }
+
+    private static void inflatePages(FileChannel ch, Memory mem, long dataOffset, int[] pages, int[] lengths) throws IOException {
+        long[] offsets = new long[pages.length];
+        long total = 0;
+        for (int i = 0; i < pages.length; i++) {
+            offsets[i] = total;
+            total += lengths[i];
+        }
+        ByteBuffer data = ByteBuffer.allocate(0);
+        long chunkStart = 0;
+        byte[][] batch = new byte[BATCH][];
+        int start = 0;
+        while (start < pages.length) {
+            int end = Math.min(pages.length, start + BATCH);
+            if (offsets[end - 1] + lengths[end - 1] > chunkStart + data.capacity()) {
+                chunkStart = offsets[start];
+                long len = Math.min(MAP_CHUNK, total - chunkStart);
+                data = ch.map(FileChannel.MapMode.READ_ONLY, dataOffset + chunkStart, len);
+                /* Batch didn't fit in one mapping, make it smaller */
+                while (offsets[end - 1] + lengths[end - 1] > chunkStart + data.capacity())
+                    end--;
+            }
+            ByteBuffer src = data;
+            long base = chunkStart;
+            int from = start;
+            IntStream.range(start, end).parallel().forEach(i -> {
+                byte[] page = new byte[PAGE_SIZE];
+                inflate(src, (int)(offsets[i] - base), lengths[i], page);
+                batch[i - from] = page;
+            });
+            for (int i = start; i < end; i++)
+                mem.writePage(pages[i], batch[i - start]);
+            start = end;
+        }
+    }
+
+    private static byte[] deflate(byte[] page) {
+        Deflater d = DEFLATER.get();
+        d.reset();
+        d.setInput(page);
+        d.finish();
+        byte[] out = new byte[PAGE_SIZE + 64];
+        int len = d.deflate(out);
+        return Arrays.copyOf(out, len);
+    }
+
+    private static void inflate(ByteBuffer src, int off, int len, byte[] page) {
+        Inflater inf = INFLATER.get();
+        inf.reset();
+        try {
+            inf.setInput(src.slice(off, len));
+            if (inf.inflate(page) != PAGE_SIZE)
+                throw new IllegalStateException("Truncated page in snapshot");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt page in snapshot", e);
+        }
+    }
+
+    private static long alignUp(long v) {
+        return (v + PAGE_SIZE - 1) & ~(long)(PAGE_SIZE - 1);
+    }
+
+    private static int componentsSize(Map<String, String> comps) {
+        int size = 0;
+        for (Map.Entry<String, String> e : comps.entrySet())
+            size += 8 + e.getKey().getBytes(StandardCharsets.UTF_8).length + e.getValue().getBytes(StandardCharsets.UTF_8).length;
+        return size;
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.putInt(b.length);
+        out.put(b);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static long writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        long written = 0;
+        while (buf.hasRemaining())
+            written += ch.write(buf, pos + written);
+        return written;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        long read = 0;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos + read);
+            if (n < 0)
+                throw new IOException("Snapshot is truncated");
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package no.pepega;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Execution tracing, turned on with -Djerv.trace=file. Every executed instruction is written to the
+ * file as a fixed-size binary record, which {@link #main} turns back into text afterwards.
+ *
+ * Each hart fills its own ring buffer, so recording is a few array stores, with no locks and no
+ * formatting. A single writer thread drains all rings to the file through a FileChannel.
+ * When a ring is full its hart waits for the writer rather than dropping records. ENABLED is a constant,
+ * so with tracing off the checks in the interpreter are folded away, like those of {@link Profile}.
+ * Compiled blocks can't record single instructions, so the JIT is off while tracing.
+ *
+ * The file is a header of magic, version and record size, 4 ints, then records of, little-endian:
+ * <pre>
+ *   pc                     long
+ *   instruction word       int
+ *   hart id                short
+ *   rd, flags              2 bytes, rd is 0 if the instruction writes no register, flags has MEM_ADDR
+ *                          set if the address is valid
+ *   rd after execution     long, 0 if rd is 0, whether the instruction had no destination or wrote x0
+ *   memory address         long, for loads, stores and atomics
+ * </pre>
+ * Records of one hart are in execution order, the harts' records are interleaved in chunks.
+ */
+final class Trace {
+    static final String FILE = System.getProperty("jerv.trace");
+    static final boolean ENABLED = FILE != null;
+
+    static final int MAGIC = 0x4352544A; // "JTRC"
+    static final int VERSION = 1;
+    static final int RECORD = 32;
+    static final int MEM_ADDR = 1;
+
+    /* Records per ring, a power of two */
+    private static final int RING_RECORDS = 1 << 16;
+    /* How long the writer sleeps when all rings are empty */
+    private static final long IDLE_NANOS = 100_000;
+
+    /*
+     * How the address of each op is found: not at all, rs1 + imm, or rs1 alone for atomics. Indexed by
+     * the op byte of a packed instruction, so ILLEGAL needs no check either.
+     */
+    private static final byte[] ADDRESSING = new byte[256];
+    /* Ops without a destination register, whose rd field must not be recorded as a result */
+    private static final boolean[] NO_RD = new boolean[256];
+
+    private static final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private static FileChannel out;
+    private static Thread writer;
+    private static volatile boolean closing;
+
+    static {
+        for (Instruction.Inst op : Instruction.OPS) {
+            switch (op) {
+                case Lb: case Lh: case Lw: case Ld: case Lbu: case Lhu: case Lwu: case Ldu:
+                case Sb: case Sh: case Sw: case Sd:
+                    ADDRESSING[op.ordinal() + 1] = 1;
+                    break;
+                case LrW: case LrD: case ScW: case ScD:
+                case AmoswapW: case AmoswapD: case AmoaddW: case AmoaddD: case AmoxorW: case AmoxorD:
+                case AmoandW: case AmoandD: case AmoorW: case AmoorD: case AmominW: case AmominD:
+                case AmomaxW: case AmomaxD: case AmominuW: case AmominuD: case AmomaxuW: case AmomaxuD:
+                    ADDRESSING[op.ordinal() + 1] = 2;
+                    break;
+            }
+            switch (op) {
+                case Sb: case Sh: case Sw: case Sd:
+                case Beq: case Bne: case Blt: case Bge: case Bltu: case Bgeu:
+                case Fence: case FenceI: case Ecall: case Ebreak: case Mret: case Sret: case Wfi: case SfenceVma:
+                    NO_RD[op.ordinal() + 1] = true;
+                    break;
+            }
+        }
+    }
+
+    private Trace() {
+    }
+
+    /** A new ring for a hart, starting the writer with the first one, or null when tracing is off. */
+    static synchronized Ring ring(int hartid) {
+        if (!ENABLED)
+            return null;
+        if (writer == null)
+            start();
+        Ring r = new Ring(hartid);
+        rings.add(r);
+        return r;
+    }
+
+    private static void start() {
+        try {
+            out = FileChannel.open(Paths.get(FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD).putInt(0).flip();
+            writeFully(out, header);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open trace file " + FILE, e);
+        }
+        writer = new Thread(Trace::drainLoop, "jerv-trace");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Trace::close));
+    }
+
+    /** Writes out what is left in the rings and closes the file. Harts must not record meanwhile. */
+    static void close() {
+        Thread w;
+        synchronized (Trace.class) {
+            w = writer;
+        }
+        if (w == null)
+            return;
+        closing = true;
+        LockSupport.unpark(w);
+        try {
+            w.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void drainLoop() {
+        try {
+            while (true) {
+                boolean done = closing;
+                long written = 0;
+                for (Ring r : rings)
+                    written += r.drain(out);
+                if (done && written == 0)
+                    break;
+                if (written == 0)
+                    LockSupport.parkNanos(IDLE_NANOS);
+            }
+            out.close();
+        } catch (IOException e) {
+            System.err.printf("Trace writer failed: %s\n", e.getMessage());
+        }
+    }
+
+    private static void writeFully(WritableByteChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            ch.write(buf);
+    }
+
+    /**
+     * One hart's records, 4 longs each. Only that hart fills it, and only the writer thread moves the
+     * tail, so the two sides just hand over positions: the hart releases head every PUBLISH records and
+     * at the end of each slice, the writer releases tail after copying records out.
+     */
+    static final class Ring {
+        private static final VarHandle HEAD;
+        private static final VarHandle TAIL;
+        private static final int LONGS = RECORD / 8;
+        private static final int PUBLISH = 256;
+
+        static {
+            try {
+                MethodHandles.Lookup l = MethodHandles.lookup();
+                HEAD = l.findVarHandle(Ring.class, "head", long.class);
+                TAIL = l.findVarHandle(Ring.class, "tail", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final long[] records = new long[RING_RECORDS * LONGS];
+        private final long hart_bits;
+        /* Records filled by the hart, published to the writer, and written out, all counting from the start */
+        private long next;
+        private long head;
+        private long tail;
+        /* The hart's last look at how far it may fill, so it only reads tail when that is reached */
+        private long limit = RING_RECORDS;
+        /* The writer's staging buffer, records are copied out of the array before writing */
+        private ByteBuffer staging;
+
+        private Ring(int hartid) {
+            this.hart_bits = (long) (hartid & 0xFFFF) << 32;
+        }
+
+        /**
+         * Records the instruction d with the given word, which ran at pc. Base is the value rs1 had
+         * before, regs are the registers after.
+         */
+        void record(long pc, int word, long d, long base, long[] regs) {
+            if (next == limit)
+                waitForSpace();
+            int at = (int) (next & (RING_RECORDS - 1)) * LONGS;
+            int rd = NO_RD[(int) d & 0xFF] ? 0 : Instruction.rd(d);
+            long addr = 0;
+            long flags = 0;
+            int mode = ADDRESSING[(int) d & 0xFF];
+            if (mode != 0) {
+                addr = base + (mode == 1 ? Instruction.imm(d) : 0);
+                flags = MEM_ADDR;
+            }
+            long[] r = records;
+            r[at] = pc;
+            r[at + 1] = (word & 0xFFFFFFFFL) | hart_bits | (long) rd << 48 | flags << 56;
+            /* execute() only zeroes x0 before the next instruction, so after e.g. a j it still holds pc + 4 */
+            r[at + 2] = rd == 0 ? 0 : regs[rd];
+            r[at + 3] = addr;
+            if ((++next & (PUBLISH - 1)) == 0)
+                HEAD.setRelease(this, next);
+        }
+
+        /** Hands all complete records to the writer, called when the hart stops running for a while. */
+        void flush() {
+            HEAD.setRelease(this, next);
+        }
+
+        /* The writer may only run once this hart yields the CPU, so don't spin */
+        private void waitForSpace() {
+            flush();
+            while (next == (limit = (long) TAIL.getAcquire(this) + RING_RECORDS)) {
+                LockSupport.unpark(writer);
+                Thread.yield();
+            }
+        }
+
+        /* Writes out the published records, returns how many */
+        private long drain(FileChannel ch) throws IOException {
+            long h = (long) HEAD.getAcquire(this);
+            long t = tail;
+            if (h == t)
+                return 0;
+            if (staging == null)
+                staging = ByteBuffer.allocateDirect(RING_RECORDS / 4 * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+            int from = (int) (t & (RING_RECORDS - 1));
+            int n = (int) Math.min(Math.min(h - t, RING_RECORDS - from), RING_RECORDS / 4);
+            staging.clear();
+            staging.asLongBuffer().put(records, from * LONGS, n * LONGS);
+            staging.limit(n * RECORD);
+            writeFully(ch, staging);
+            TAIL.setRelease(this, t + n);
+            return n;
+        }
+    }
+
+    /**
+     * Prints a trace file as text: hart, pc, symbol when an ELF image is given, the instruction word and
+     * its disassembly, the value written to rd and the memory address.
+     * Usage: Trace trace-file [elf-image]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: Trace trace-file [elf-image]");
+            System.exit(2);
+        }
+        Elf elf = null;
+        if (args.length > 1) {
+            try (FileChannel ch = FileChannel.open(Paths.get(args[1]), StandardOpenOption.READ)) {
+                elf = new Elf(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            }
+        }
+        decode(Paths.get(args[0]), elf, Channels.newChannel(System.out));
+    }
+
+    /** Writes the text of a trace file to out, with symbols from elf if it isn't null. */
+    static void decode(Path file, Elf elf, WritableByteChannel out) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && ch.read(header) >= 0);
+            header.flip();
+            if (header.remaining() < 16 || header.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a trace file");
+            if (header.getInt(4) != VERSION || header.getInt(8) != RECORD)
+                throw new IOException(String.format("Trace version %d is not supported", header.getInt(4)));
+
+            ByteBuffer in = ByteBuffer.allocate(RECORD * 4096).order(ByteOrder.LITTLE_ENDIAN);
+            StringBuilder sb = new StringBuilder();
+            while (ch.read(in) >= 0 || in.position() > 0) {
+                in.flip();
+                if (in.remaining() < RECORD)
+                    break;
+                sb.setLength(0);
+                while (in.remaining() >= RECORD) {
+                    int at = in.position();
+                    long pc = in.getLong(at);
+                    int word = in.getInt(at + 8);
+                    int rd = in.get(at + 14);
+                    sb.append(in.getShort(at + 12)).append(' ');
+                    sb.append(String.format("%08x", pc));
+                    if (elf != null) {
+                        String sym = elf.symbolize(pc);
+                        if (sym != null)
+                            sb.append(" <").append(sym).append('>');
+                    }
+                    sb.append(String.format(": %08x\t", word));
+                    Disassembler.format(sb, pc, word);
+                    if (rd != 0)
+                        sb.append("\t# ").append(Instruction.regName(rd)).append(String.format("=%x", in.getLong(at + 16)));
+                    if ((in.get(at + 15) & MEM_ADDR) != 0)
+                        sb.append(rd != 0 ? " " : "\t# ").append(String.format("[%x]", in.getLong(at + 24)));
+                    sb.append('\n');
+                    in.position(at + RECORD);
+                }
+                in.compact();
+                writeFully(out, ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1)));
+            }
+        }
+    }
+}
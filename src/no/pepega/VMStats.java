@@ -0,0 +1,138 @@
+package no.pepega;
+
+import java.util.Map;
+
+/** The MXBean {@link Profile#register} puts up for a VM. */
+class VMStats implements VMStatsMXBean {
+    private final PseudoVM vm;
+
+    VMStats(PseudoVM vm) {
+        this.vm = vm;
+    }
+
+    @Override
+    public int getHarts() {
+        return vm.hartCount();
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        return vm.instructionsPerSecond();
+    }
+
+    @Override
+    public long getInstructionsRetired() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.instret(0);
+        return sum;
+    }
+
+    @Override
+    public long getRunCalls() {
+        return vm.runCalls();
+    }
+
+    @Override
+    public long getRunNanos() {
+        return vm.runNanos();
+    }
+
+    @Override
+    public long getResidentBytes() {
+        return vm.residentMemory();
+    }
+
+    @Override
+    public long getDecodeCacheHits() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.icache.hits();
+        return sum;
+    }
+
+    @Override
+    public long getDecodeCacheMisses() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.icache.misses();
+        return sum;
+    }
+
+    @Override
+    public long getDecodeCacheInvalidations() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.icache.invalidations();
+        return sum;
+    }
+
+    @Override
+    public long getTlbHits() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.mmu.hits();
+        return sum;
+    }
+
+    @Override
+    public long getTlbMisses() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.mmu.misses();
+        return sum;
+    }
+
+    @Override
+    public long getPageFaults() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.mmu.faults();
+        return sum;
+    }
+
+    @Override
+    public long getJitBlocksCompiled() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.jit == null ? 0 : h.jit.compiled();
+        return sum;
+    }
+
+    @Override
+    public long getJitBlockRuns() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.jit == null ? 0 : h.jit.runs();
+        return sum;
+    }
+
+    @Override
+    public long getJitChained() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.jit == null ? 0 : h.jit.chained();
+        return sum;
+    }
+
+    @Override
+    public long getJitIndirectHits() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.jit == null ? 0 : h.jit.ibtcHits();
+        return sum;
+    }
+
+    @Override
+    public long getJitInvalidations() {
+        long sum = 0;
+        for (RISCV h : vm.harts)
+            sum += h.jit == null ? 0 : h.jit.invalidations();
+        return sum;
+    }
+
+    @Override
+    public Map<String, Long> getOpCounts() {
+        return Profile.opCounts(vm);
+    }
+}
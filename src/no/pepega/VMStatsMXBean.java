@@ -0,0 +1,49 @@
+package no.pepega;
+
+import java.util.Map;
+
+/**
+ * Statistics of one VM over JMX, registered by {@link Profile#register}. Counters are summed over all
+ * harts and read without stopping the VM, so they can be slightly behind.
+ */
+public interface VMStatsMXBean {
+    int getHarts();
+
+    /** Guest instructions per second, smoothed over recent slices. */
+    double getInstructionsPerSecond();
+
+    long getInstructionsRetired();
+
+    /** Calls to PseudoVM.run that ran guest code, and the wall time spent in them. */
+    long getRunCalls();
+
+    long getRunNanos();
+
+    long getResidentBytes();
+
+    long getDecodeCacheHits();
+
+    long getDecodeCacheMisses();
+
+    long getDecodeCacheInvalidations();
+
+    /** TLB hits are only counted if jerv.profile is set, misses are page table walks. */
+    long getTlbHits();
+
+    long getTlbMisses();
+
+    long getPageFaults();
+
+    long getJitBlocksCompiled();
+
+    long getJitBlockRuns();
+
+    long getJitChained();
+
+    long getJitIndirectHits();
+
+    long getJitInvalidations();
+
+    /** Executed instructions by op. Empty unless jerv.profile is set. */
+    Map<String, Long> getOpCounts();
+}
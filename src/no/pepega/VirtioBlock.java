@@ -0,0 +1,447 @@
+package no.pepega;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A virtio block device on the MMIO transport, version 2 (virtio 1.1, sections 4.2 and 5.2), with one
+ * split virtqueue. The disk is an image file mapped into host memory, so a request copies straight
+ * between the mapping and guest RAM, with no buffers in between and no system calls but a flush.
+ *
+ * A notify runs every request the driver has made available, then publishes them to the used ring
+ * with a single index update and raises the boot hart's external interrupt once for the whole batch.
+ * The line stays high until the driver acknowledges the interrupt. Like a real DMA engine the device
+ * doesn't keep instruction caches coherent, guests run fence.i before executing code read from disk.
+ *
+ * The image's size is rounded down to whole sectors. Indirect descriptors aren't offered, and the
+ * request header must be a descriptor of its own, as drivers lay it out anyway.
+ */
+public final class VirtioBlock implements Device, AutoCloseable {
+    /* MMIO registers */
+    static final int MAGIC = 0x000;
+    static final int VERSION = 0x004;
+    static final int DEVICE_ID = 0x008;
+    static final int VENDOR_ID = 0x00c;
+    static final int DEVICE_FEATURES = 0x010;
+    static final int DEVICE_FEATURES_SEL = 0x014;
+    static final int DRIVER_FEATURES = 0x020;
+    static final int DRIVER_FEATURES_SEL = 0x024;
+    static final int QUEUE_SEL = 0x030;
+    static final int QUEUE_NUM_MAX = 0x034;
+    static final int QUEUE_NUM = 0x038;
+    static final int QUEUE_READY = 0x044;
+    static final int QUEUE_NOTIFY = 0x050;
+    static final int INTERRUPT_STATUS = 0x060;
+    static final int INTERRUPT_ACK = 0x064;
+    static final int STATUS = 0x070;
+    static final int QUEUE_DESC_LOW = 0x080;
+    static final int QUEUE_DESC_HIGH = 0x084;
+    static final int QUEUE_DRIVER_LOW = 0x090;
+    static final int QUEUE_DRIVER_HIGH = 0x094;
+    static final int QUEUE_DEVICE_LOW = 0x0a0;
+    static final int QUEUE_DEVICE_HIGH = 0x0a4;
+    static final int CONFIG_GENERATION = 0x0fc;
+    /* The block device configuration: capacity in sectors at 0, block size at 0x14 */
+    static final int CONFIG = 0x100;
+
+    static final int MAGIC_VALUE = 0x74726976;
+    static final int BLOCK_DEVICE = 2;
+    /* "JERV" */
+    static final int VENDOR = 0x5652454A;
+
+    static final long F_RO = 1L << 5;
+    static final long F_BLK_SIZE = 1L << 6;
+    static final long F_FLUSH = 1L << 9;
+    static final long F_VERSION_1 = 1L << 32;
+
+    /* Device status bits the device looks at */
+    static final int STATUS_FEATURES_OK = 8;
+
+    static final int QUEUE_SIZE = 256;
+    static final int SECTOR_SIZE = 512;
+
+    static final int DESC_NEXT = 1;
+    static final int DESC_WRITE = 2;
+    static final int AVAIL_NO_INTERRUPT = 1;
+
+    /* Request types and status */
+    static final int T_IN = 0;
+    static final int T_OUT = 1;
+    static final int T_FLUSH = 4;
+    static final int T_GET_ID = 8;
+    static final int S_OK = 0;
+    static final int S_IOERR = 1;
+    static final int S_UNSUPP = 2;
+
+    static final int HEADER_SIZE = 16;
+    static final int ID_SIZE = 20;
+
+    /* A mapping can't exceed 2 GiB, so larger images are mapped in pieces */
+    private static final long SEGMENT = 1L << 30;
+
+    private static final byte[] ID = "jerv-virtio-blk".getBytes(StandardCharsets.US_ASCII);
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    /* One view per segment, repositioned for each transfer rather than sliced */
+    private final ByteBuffer[] views;
+    private final long capacity;
+    private final boolean read_only;
+
+    private Memory memory;
+    private RISCV hart;
+
+    private int status;
+    private int device_features_sel;
+    private int driver_features_sel;
+    private long driver_features;
+    private int queue_sel;
+    private int queue_num = QUEUE_SIZE;
+    private boolean queue_ready;
+    private long desc;
+    private long avail;
+    private long used;
+    private int last_avail;
+    private int used_idx;
+    private int interrupt_status;
+
+    /* The descriptors of the request being run, so walking a chain doesn't allocate */
+    private final long[] chain_addr = new long[QUEUE_SIZE];
+    private final int[] chain_len = new int[QUEUE_SIZE];
+    private final boolean[] chain_write = new boolean[QUEUE_SIZE];
+
+    private long requests;
+    private long batches;
+    private long interrupts;
+    private long bytes_read;
+    private long bytes_written;
+
+    /** Opens the image, which is written through unless readOnly is set. */
+    public VirtioBlock(Path image, boolean readOnly) throws IOException {
+        this.read_only = readOnly;
+        this.channel = readOnly ? FileChannel.open(image, StandardOpenOption.READ)
+                : FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.capacity = channel.size() & -SECTOR_SIZE;
+            int count = (int)((capacity + SEGMENT - 1) / SEGMENT);
+            this.segments = new MappedByteBuffer[count];
+            this.views = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * SEGMENT;
+                segments[i] = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                        start, Math.min(SEGMENT, capacity - start));
+                views[i] = segments[i].duplicate();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Gives the device the guest RAM it reads and writes, and the hart it interrupts. */
+    synchronized void connect(Memory memory, RISCV hart) {
+        this.memory = memory;
+        this.hart = hart;
+    }
+
+    /** Size of the disk in bytes. */
+    public long capacity() {
+        return capacity;
+    }
+
+    public synchronized long requests() {
+        return requests;
+    }
+
+    /** Notifies that found requests to run. */
+    public synchronized long batches() {
+        return batches;
+    }
+
+    public synchronized long interrupts() {
+        return interrupts;
+    }
+
+    /** Bytes read from the disk into guest memory. */
+    public synchronized long bytesRead() {
+        return bytes_read;
+    }
+
+    public synchronized long bytesWritten() {
+        return bytes_written;
+    }
+
+    /** Writes back whatever the guest wrote and closes the image. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!read_only)
+            for (MappedByteBuffer s : segments)
+                s.force();
+        channel.close();
+    }
+
+    @Override
+    public long size() {
+        return Memory.PAGE_SIZE;
+    }
+
+    @Override
+    public synchronized long read(long offset, int width) {
+        if (offset >= CONFIG)
+            return config((int)offset - CONFIG, width);
+        switch ((int)offset) {
+            case MAGIC: return MAGIC_VALUE;
+            case VERSION: return 2;
+            case DEVICE_ID: return BLOCK_DEVICE;
+            case VENDOR_ID: return VENDOR;
+            case DEVICE_FEATURES: return (features() >>> (32*device_features_sel)) & 0xFFFFFFFFL;
+            case QUEUE_NUM_MAX: return queue_sel == 0 ? QUEUE_SIZE : 0;
+            case QUEUE_READY: return queue_sel == 0 && queue_ready ? 1 : 0;
+            case INTERRUPT_STATUS: return interrupt_status;
+            case STATUS: return status;
+            case CONFIG_GENERATION: return 0;
+            default: return 0;
+        }
+    }
+
+    @Override
+    public synchronized void write(long offset, int width, long value) {
+        int v = (int)value;
+        switch ((int)offset) {
+            case DEVICE_FEATURES_SEL: device_features_sel = v & 1; break;
+            case DRIVER_FEATURES_SEL: driver_features_sel = v & 1; break;
+            case DRIVER_FEATURES: {
+                int shift = 32*driver_features_sel;
+                driver_features = (driver_features & ~(0xFFFFFFFFL << shift)) | (value & 0xFFFFFFFFL) << shift;
+                break;
+            }
+            case QUEUE_SEL: queue_sel = v; break;
+            case QUEUE_NUM: {
+                if (queue_sel == 0 && v > 0 && v <= QUEUE_SIZE && (v & (v - 1)) == 0)
+                    queue_num = v;
+                break;
+            }
+            case QUEUE_READY: {
+                if (queue_sel == 0)
+                    queue_ready = (v & 1) != 0;
+                break;
+            }
+            case QUEUE_DESC_LOW: desc = low(desc, v); break;
+            case QUEUE_DESC_HIGH: desc = high(desc, v); break;
+            case QUEUE_DRIVER_LOW: avail = low(avail, v); break;
+            case QUEUE_DRIVER_HIGH: avail = high(avail, v); break;
+            case QUEUE_DEVICE_LOW: used = low(used, v); break;
+            case QUEUE_DEVICE_HIGH: used = high(used, v); break;
+            case QUEUE_NOTIFY: {
+                if (v == 0)
+                    process();
+                break;
+            }
+            case INTERRUPT_ACK: {
+                interrupt_status &= ~v;
+                if (interrupt_status == 0 && hart != null)
+                    hart.setExternalInterrupt(false);
+                break;
+            }
+            case STATUS: {
+                if (v == 0) {
+                    reset();
+                    break;
+                }
+                /* Features the device doesn't offer fail the negotiation */
+                if ((v & STATUS_FEATURES_OK) != 0 && (driver_features & ~features()) != 0)
+                    v &= ~STATUS_FEATURES_OK;
+                status = v;
+                break;
+            }
+        }
+    }
+
+    private long features() {
+        return F_VERSION_1 | F_BLK_SIZE | F_FLUSH | (read_only ? F_RO : 0);
+    }
+
+    private static long low(long reg, int v) {
+        return (reg & ~0xFFFFFFFFL) | (v & 0xFFFFFFFFL);
+    }
+
+    private static long high(long reg, int v) {
+        return (reg & 0xFFFFFFFFL) | (long)v << 32;
+    }
+
+    /* Reads of the configuration space may be narrower than its fields */
+    private long config(int offset, int width) {
+        long value = 0;
+        for (int i = 0; i < width; i++) {
+            int at = offset + i;
+            long b = 0;
+            if (at < 8)
+                b = (capacity / SECTOR_SIZE) >>> (8*at);
+            else if (at >= 0x14 && at < 0x18)
+                b = SECTOR_SIZE >>> (8*(at - 0x14));
+            value |= (b & 0xFF) << (8*i);
+        }
+        return value;
+    }
+
+    private void reset() {
+        status = 0;
+        device_features_sel = 0;
+        driver_features_sel = 0;
+        driver_features = 0;
+        queue_sel = 0;
+        queue_num = QUEUE_SIZE;
+        queue_ready = false;
+        desc = avail = used = 0;
+        last_avail = 0;
+        used_idx = 0;
+        interrupt_status = 0;
+        if (hart != null)
+            hart.setExternalInterrupt(false);
+    }
+
+    /* Runs every available request, then publishes them all and interrupts once */
+    private void process() {
+        if (!queue_ready || memory == null)
+            return;
+        Memory m = memory;
+        int done = 0;
+        int avail_idx = m.read16(avail + 2) & 0xFFFF;
+        while (last_avail != avail_idx) {
+            int head = m.read16(avail + 4 + 2*(last_avail & (queue_num - 1))) & 0xFFFF;
+            long entry = used + 4 + 8*(used_idx & (queue_num - 1));
+            m.write32(entry, head);
+            m.write32(entry + 4, request(m, head));
+            last_avail = (last_avail + 1) & 0xFFFF;
+            used_idx = (used_idx + 1) & 0xFFFF;
+            done++;
+            /* Requests made while these ran join the batch */
+            if (last_avail == avail_idx)
+                avail_idx = m.read16(avail + 2) & 0xFFFF;
+        }
+        if (done == 0)
+            return;
+        /* Harts on other threads must see the entries before the index */
+        VarHandle.releaseFence();
+        m.write16(used + 2, (short)used_idx);
+        requests += done;
+        batches++;
+        if ((m.read16(avail) & AVAIL_NO_INTERRUPT) == 0) {
+            interrupt_status |= 1;
+            interrupts++;
+            hart.setExternalInterrupt(true);
+        }
+    }
+
+    /* Runs the request whose chain starts at descriptor head, and returns how many bytes it wrote to guest memory */
+    private int request(Memory m, int head) {
+        int n = 0;
+        int i = head;
+        while (true) {
+            if (n == queue_num || i >= queue_num)
+                return 0;
+            long d = desc + 16L*i;
+            int flags = m.read16(d + 12);
+            chain_addr[n] = m.read64(d);
+            chain_len[n] = m.read32(d + 8);
+            chain_write[n] = (flags & DESC_WRITE) != 0;
+            n++;
+            if ((flags & DESC_NEXT) == 0)
+                break;
+            i = m.read16(d + 14) & 0xFFFF;
+        }
+        /* Without a status byte to write there is no way to answer */
+        if (n < 2 || !chain_write[n - 1] || chain_len[n - 1] < 1)
+            return 0;
+
+        int written = 0;
+        int result;
+        try {
+            written = run(m, n);
+            result = written < 0 ? -written : S_OK;
+            if (written < 0)
+                written = 0;
+        } catch (IndexOutOfBoundsException | UncheckedIOException e) {
+            result = S_IOERR;
+        }
+        m.write8(chain_addr[n - 1], (byte)result);
+        return written + 1;
+    }
+
+    /* The request in the first n descriptors of the chain. Returns the bytes written to guest memory, or minus the status on failure */
+    private int run(Memory m, int n) {
+        if (chain_write[0] || chain_len[0] < HEADER_SIZE)
+            return -S_IOERR;
+        int type = m.read32(chain_addr[0]);
+        long sector = m.read64(chain_addr[0] + 8);
+        switch (type) {
+            case T_IN: case T_OUT: {
+                boolean in = type == T_IN;
+                if (!in && read_only)
+                    return -S_IOERR;
+                long total = 0;
+                for (int k = 1; k < n - 1; k++) {
+                    if (chain_write[k] != in || chain_len[k] < 0)
+                        return -S_IOERR;
+                    total += chain_len[k] & 0xFFFFFFFFL;
+                }
+                /* Checked before scaling, a sector number from the guest can be anything and the product would wrap */
+                if (Long.compareUnsigned(sector, capacity / SECTOR_SIZE) > 0)
+                    return -S_IOERR;
+                long pos = sector * SECTOR_SIZE;
+                if (total > capacity - pos)
+                    return -S_IOERR;
+                for (int k = 1; k < n - 1; k++) {
+                    transfer(m, pos, chain_addr[k], chain_len[k], in);
+                    pos += chain_len[k];
+                }
+                if (in)
+                    bytes_read += total;
+                else
+                    bytes_written += total;
+                return in ? (int)total : 0;
+            }
+            case T_FLUSH: {
+                if (!read_only)
+                    for (MappedByteBuffer s : segments)
+                        s.force();
+                return 0;
+            }
+            case T_GET_ID: {
+                if (n < 3 || !chain_write[1])
+                    return -S_IOERR;
+                int len = Math.min(ID_SIZE, chain_len[1]);
+                for (int k = 0; k < len; k++)
+                    m.write8(chain_addr[1] + k, k < ID.length ? ID[k] : 0);
+                return len;
+            }
+            default:
+                return -S_UNSUPP;
+        }
+    }
+
+    /* Copies between the image at pos and guest memory at addr, a mapped segment at a time */
+    private void transfer(Memory m, long pos, long addr, int len, boolean in) {
+        while (len > 0) {
+            int s = (int)(pos / SEGMENT);
+            int off = (int)(pos % SEGMENT);
+            int chunk = Math.min(len, segments[s].capacity() - off);
+            ByteBuffer view = views[s];
+            view.limit(off + chunk).position(off);
+            if (in)
+                m.store(addr, view);
+            else
+                m.load(addr, view);
+            pos += chunk;
+            addr += chunk;
+            len -= chunk;
+        }
+    }
+}